@@ -180,6 +180,7 @@ public class SLAMonAndroidAgentService extends Service {
         public static final String CONNECTED_TO_AFM = "CONNECTED_TO_AFM";
         public static final String FATAL_ERROR = "FATAL_ERROR";
         public static final String TEMPORARY_ERROR = "TEMPORARY_ERROR";
+        public static final String CIRCUIT_STATE_CHANGE = "CIRCUIT_STATE_CHANGE";
         public static final String TASK_STARTED = "TASK_STARTED";
         public static final String TASK_COMPLETED = "TASK_COMPLETED";
         public static final String TASK_ERROR = "TASK_ERROR";
@@ -4,6 +4,7 @@ import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
 import org.slamon.Agent;
 import org.slamon.AgentEventListener;
+import org.slamon.CircuitBreaker;
 
 import static org.slamon.Agent.ConnectionState.CONNECTED;
 import static org.slamon.Agent.ConnectionState.CONNECTING;
@@ -50,20 +51,28 @@ public class SLAMonEventListener implements AgentEventListener {
     }
 
     @Override
-    public void taskCompleted() {
-        Intent intent = new Intent(TASK_COMPLETED);
+    public void taskCompleted(String taskId, String taskType, long durationMs) {
+        Intent intent = new Intent(TASK_COMPLETED).putExtra("taskId", taskId).putExtra("taskType", taskType)
+                .putExtra("duration", durationMs);
         broadcastManager.sendBroadcast(intent);
     }
 
     @Override
-    public void taskError(String message) {
-        Intent intent = new Intent(TASK_ERROR).putExtra("message", message);
+    public void taskError(String taskId, String taskType, long durationMs, String message) {
+        Intent intent = new Intent(TASK_ERROR).putExtra("taskId", taskId).putExtra("taskType", taskType)
+                .putExtra("duration", durationMs).putExtra("message", message);
         broadcastManager.sendBroadcast(intent);
     }
 
     @Override
-    public void taskStarted() {
-        Intent intent = new Intent(TASK_STARTED);
+    public void taskStarted(String taskId, String taskType) {
+        Intent intent = new Intent(TASK_STARTED).putExtra("taskId", taskId).putExtra("taskType", taskType);
+        broadcastManager.sendBroadcast(intent);
+    }
+
+    @Override
+    public void circuitStateChanged(String circuit, CircuitBreaker.State state) {
+        Intent intent = new Intent(CIRCUIT_STATE_CHANGE).putExtra("circuit", circuit).putExtra("state", state.name());
         broadcastManager.sendBroadcast(intent);
     }
 
@@ -16,6 +16,7 @@ import android.text.style.ForegroundColorSpan;
 import android.view.View;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
+import org.slamon.CircuitBreaker;
 import org.slamon.android.R;
 
 import java.text.SimpleDateFormat;
@@ -145,15 +146,22 @@ public class SlamonActivity extends Activity {
                     updateTextView(String.format("The Agent encountered a temporary error: %s",
                             intent.getStringExtra("message")), Color.RED);
                     break;
+                case CIRCUIT_STATE_CHANGE:
+                    if (CircuitBreaker.State.OPEN.name().equals(intent.getStringExtra("state"))) {
+                        updateTextView("Agent Fleet Manager is not responding, backing off", Color.RED);
+                    }
+                    break;
                 case TASK_STARTED:
-                    updateTextView("The Agent has started executing a task", Color.WHITE);
+                    updateTextView(String.format("The Agent has started executing a %s task",
+                            intent.getStringExtra("taskType")), Color.WHITE);
                     break;
                 case TASK_COMPLETED:
-                    updateTextView("The Agent successfully completed a task", Color.GREEN);
+                    updateTextView(String.format("The Agent successfully completed a %s task in %d ms",
+                            intent.getStringExtra("taskType"), intent.getLongExtra("duration", 0)), Color.GREEN);
                     break;
                 case TASK_ERROR:
-                    updateTextView(String.format("The Agent completed a task with error: %s",
-                            intent.getStringExtra("message")), Color.MAGENTA);
+                    updateTextView(String.format("The Agent completed a %s task with error: %s",
+                            intent.getStringExtra("taskType"), intent.getStringExtra("message")), Color.MAGENTA);
                     break;
                 case PUSH_NOTIFICATION:
                     updateTextView(intent.getStringExtra("message"), Color.CYAN);
@@ -168,6 +176,7 @@ public class SlamonActivity extends Activity {
             this.addAction(CONNECTION_STATE_CHANGE);
             this.addAction(FATAL_ERROR);
             this.addAction(TEMPORARY_ERROR);
+            this.addAction(CIRCUIT_STATE_CHANGE);
             this.addAction(TASK_STARTED);
             this.addAction(TASK_COMPLETED);
             this.addAction(TASK_ERROR);
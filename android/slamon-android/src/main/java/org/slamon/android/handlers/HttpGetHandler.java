@@ -2,6 +2,7 @@ package org.slamon.android.handlers;
 
 import com.google.api.client.http.*;
 import com.google.api.client.http.javanet.NetHttpTransport;
+import org.slamon.PooledHttpTransport;
 import org.slamon.TaskHandler;
 
 import java.util.HashMap;
@@ -11,7 +12,21 @@ import java.util.Map;
  * An example task handler that uses HTTP GET to provided url and reports the status code
  */
 public class HttpGetHandler extends TaskHandler {
-    public HttpRequestFactory requestFactory = new NetHttpTransport().createRequestFactory();
+    // Each probe opens a fresh connection by default, so that connection setup to the url is probed too
+    private static volatile boolean sReuseConnections = false;
+
+    public HttpRequestFactory requestFactory = (sReuseConnections ?
+            PooledHttpTransport.getShared() : new NetHttpTransport()).createRequestFactory();
+
+    /**
+     * Send probes over kept-alive connections of the shared {@link PooledHttpTransport}
+     * instead of opening a new connection for each probe.
+     *
+     * @param reuse true to reuse connections between probes
+     */
+    public static void setReuseConnections(boolean reuse) {
+        sReuseConnections = reuse;
+    }
 
     @Override
     public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
@@ -26,6 +41,7 @@ public class HttpGetHandler extends TaskHandler {
         try {
             HttpResponse response = request.execute();
             result.put("status", response.getStatusCode());
+            response.disconnect();
         } catch (HttpResponseException e) {
             result.put("status", e.getStatusCode());
         }
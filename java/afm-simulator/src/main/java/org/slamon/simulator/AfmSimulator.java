@@ -0,0 +1,606 @@
+package org.slamon.simulator;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-in for the Agent Fleet Manager, for load and latency testing of agents
+ * and BPMS clients without the Python AFM and its database. Implements the agent API,
+ * POST /tasks and POST /tasks/response, and the BPMS API, POST /task and GET /task/{id},
+ * on the HTTP server embedded in the JDK.
+ * <p>
+ * Agents get tasks posted by BPMS clients and tasks made up by an optional {@link TaskGenerator}.
+ * Responses can be delayed by a random latency and fail with a given error rate.
+ * Protocols up to capability fingerprints are supported, see {@link #setMaxProtocol(int)}.
+ * Tasks are forgotten once their results have been fetched, or right away for generated tasks,
+ * so that memory use stays flat in long runs.
+ */
+public class AfmSimulator implements HttpHandler {
+
+    public static final int BATCH_RESULTS_PROTOCOL = 2;
+    public static final int LONG_POLL_PROTOCOL = 3;
+    public static final int CAPABILITY_HASH_PROTOCOL = 4;
+
+    public static final long DEFAULT_RETURN_INTERVAL_MS = 60 * 1000;
+
+    private static final int CONNECTION_BACKLOG = 1024;
+
+    static {
+        // The server writes responses in pieces, which Nagle's algorithm holds back until
+        // the delayed ack of the client, adding tens of milliseconds to every request
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * Task known by the simulator, posted by a BPMS client or generated.
+     */
+    private static class SimulatedTask {
+        String id;
+        String testId;
+        String type;
+        int version;
+        Map<?, ?> data;
+        boolean generated;
+        String claimed;
+        String completed;
+        String failed;
+        Object result;
+        String error;
+
+        Map<String, Object> toJSON() {
+            Map<String, Object> json = new HashMap<String, Object>();
+            json.put("task_id", id);
+            json.put("task_type", type);
+            json.put("task_version", version);
+            json.put("task_data", data);
+            return json;
+        }
+    }
+
+    /**
+     * Capabilities of an agent, and the fingerprint they were sent with.
+     */
+    private static class AgentCapabilities {
+        String hash;
+        Map<String, List<Integer>> versions = new HashMap<String, List<Integer>>();
+        Map<String, Integer> maxTasks = new HashMap<String, Integer>();
+    }
+
+    final private Logger logger = Logger.getLogger(AfmSimulator.class.getCanonicalName());
+    final private HttpServer mServer;
+    final private ExecutorService mExecutor;
+    final private Gson mGson = new Gson();
+    final private Random mRandom = new Random();
+    final private LinkedList<SimulatedTask> mPendingTasks = new LinkedList<SimulatedTask>();
+    final private Map<String, SimulatedTask> mTasks = new HashMap<String, SimulatedTask>();
+    final private Map<String, AgentCapabilities> mAgents = new HashMap<String, AgentCapabilities>();
+    final private AtomicLong mTaskRequests = new AtomicLong();
+    final private AtomicLong mResultPosts = new AtomicLong();
+    final private AtomicLong mTaskPosts = new AtomicLong();
+    final private AtomicLong mTaskQueries = new AtomicLong();
+    final private AtomicLong mTasksAssigned = new AtomicLong();
+    final private AtomicLong mResultsReceived = new AtomicLong();
+    final private AtomicLong mErrors = new AtomicLong();
+    private int mMaxProtocol = CAPABILITY_HASH_PROTOCOL;
+    private long mReturnIntervalMs = DEFAULT_RETURN_INTERVAL_MS;
+    private long mMinLatencyMs = 0;
+    private long mMaxLatencyMs = 0;
+    private double mErrorRate = 0;
+    private TaskGenerator mTaskGenerator;
+    private boolean mStopped = false;
+
+    /**
+     * Start simulator listening on a free port of the loopback interface.
+     */
+    public AfmSimulator() throws IOException {
+        this(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    /**
+     * Start simulator listening on the given address.
+     *
+     * @param address address to listen on, port 0 for any free port
+     */
+    public AfmSimulator(InetSocketAddress address) throws IOException {
+        // Room for connections of a whole fleet of agents starting at once
+        mServer = HttpServer.create(address, CONNECTION_BACKLOG);
+        // Held long poll requests each take a thread
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/", this);
+        mServer.start();
+        logger.log(Level.INFO, "AFM simulator listening at " + getUrl());
+    }
+
+    public String getUrl() {
+        InetSocketAddress address = mServer.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + "/";
+    }
+
+    /**
+     * @param protocol newest protocol to accept, newer requests are rejected like older AFMs do
+     */
+    public synchronized void setMaxProtocol(int protocol) {
+        mMaxProtocol = protocol;
+    }
+
+    /**
+     * @param intervalMs time to the next poll given to agents in responses
+     */
+    public synchronized void setReturnInterval(long intervalMs) {
+        mReturnIntervalMs = intervalMs;
+    }
+
+    /**
+     * Delay responses by a random latency, uniformly distributed between the bounds.
+     *
+     * @param minLatencyMs minimum latency in milliseconds
+     * @param maxLatencyMs maximum latency in milliseconds
+     */
+    public synchronized void setLatency(long minLatencyMs, long maxLatencyMs) {
+        mMinLatencyMs = minLatencyMs;
+        mMaxLatencyMs = Math.max(minLatencyMs, maxLatencyMs);
+    }
+
+    /**
+     * @param errorRate share of requests failing with a server error, between 0 and 1
+     */
+    public synchronized void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * @param generator generator for tasks in addition to posted tasks, or null for posted tasks only
+     */
+    public synchronized void setTaskGenerator(TaskGenerator generator) {
+        mTaskGenerator = generator;
+    }
+
+    /**
+     * @return number of task requests received from agents
+     */
+    public long getTaskRequestCount() {
+        return mTaskRequests.get();
+    }
+
+    /**
+     * @return number of result posts received from agents, a batch counting as one
+     */
+    public long getResultPostCount() {
+        return mResultPosts.get();
+    }
+
+    /**
+     * @return number of tasks posted by BPMS clients
+     */
+    public long getTaskPostCount() {
+        return mTaskPosts.get();
+    }
+
+    /**
+     * @return number of task queries received from BPMS clients
+     */
+    public long getTaskQueryCount() {
+        return mTaskQueries.get();
+    }
+
+    /**
+     * @return number of tasks handed out to agents
+     */
+    public long getTasksAssigned() {
+        return mTasksAssigned.get();
+    }
+
+    /**
+     * @return number of task results received from agents
+     */
+    public long getResultsReceived() {
+        return mResultsReceived.get();
+    }
+
+    /**
+     * @return number of requests failed on purpose or rejected as invalid
+     */
+    public long getErrorCount() {
+        return mErrors.get();
+    }
+
+    /**
+     * @return number of posted tasks not yet handed out to agents
+     */
+    public synchronized int getPendingTaskCount() {
+        return mPendingTasks.size();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            mStopped = true;
+            notifyAll();
+        }
+        mServer.stop(0);
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            if (path.length() > 1 && path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+
+            simulateLatency();
+            if (simulateError()) {
+                respond(exchange, 500, "");
+                return;
+            }
+
+            if (method.equals("POST") && path.equals("/tasks")) {
+                mTaskRequests.incrementAndGet();
+                handleTasksRequest(exchange, readRequest(exchange));
+            } else if (method.equals("POST") && path.equals("/tasks/response")) {
+                mResultPosts.incrementAndGet();
+                handleResults(exchange, readRequest(exchange));
+            } else if (method.equals("POST") && path.equals("/task")) {
+                mTaskPosts.incrementAndGet();
+                handleTaskPost(exchange, readRequest(exchange));
+            } else if (method.equals("GET") && path.startsWith("/task/")) {
+                mTaskQueries.incrementAndGet();
+                handleTaskQuery(exchange, path.substring("/task/".length()));
+            } else {
+                respond(exchange, 404, "");
+            }
+        } catch (JsonParseException e) {
+            reject(exchange, "Invalid JSON: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // Missing or mistyped fields
+            reject(exchange, "Invalid request: " + e);
+        } catch (InterruptedException e) {
+            respond(exchange, 500, "");
+        }
+    }
+
+    private void simulateLatency() throws InterruptedException {
+        long latency;
+        synchronized (this) {
+            latency = mMinLatencyMs + (long) (mRandom.nextDouble() * (mMaxLatencyMs - mMinLatencyMs));
+        }
+        if (latency > 0) {
+            TimeUnit.MILLISECONDS.sleep(latency);
+        }
+    }
+
+    private synchronized boolean simulateError() {
+        if (mErrorRate > 0 && mRandom.nextDouble() < mErrorRate) {
+            mErrors.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private Map<?, ?> readRequest(HttpExchange exchange) throws IOException {
+        Map<?, ?> request = mGson.fromJson(new InputStreamReader(exchange.getRequestBody(), "UTF-8"), Map.class);
+        if (request == null) {
+            throw new JsonParseException("no content");
+        }
+        return request;
+    }
+
+    private void handleTasksRequest(HttpExchange exchange, Map<?, ?> request)
+            throws IOException, InterruptedException {
+        int protocol = ((Number) request.get("protocol")).intValue();
+        String agentId = (String) request.get("agent_id");
+        int maxTasks = ((Number) request.get("max_tasks")).intValue();
+        List<Map<String, Object>> tasks = new ArrayList<Map<String, Object>>();
+        boolean capabilitiesRequired = false;
+        long returnInterval;
+        synchronized (this) {
+            if (protocol > mMaxProtocol || protocol == BATCH_RESULTS_PROTOCOL) {
+                reject(exchange, "Unsupported protocol " + protocol);
+                return;
+            }
+            AgentCapabilities capabilities = agentCapabilities(protocol, agentId, request);
+            if (capabilities == null) {
+                capabilitiesRequired = true;
+            } else {
+                long endTime = System.currentTimeMillis();
+                if (protocol >= LONG_POLL_PROTOCOL && request.get("wait_timeout") != null) {
+                    endTime += ((Number) request.get("wait_timeout")).longValue() * 1000;
+                }
+                assignTasks(agentId, capabilities, maxTasks, tasks);
+                // Hold long poll requests until there are tasks for the agent
+                while (tasks.isEmpty() && !mStopped && System.currentTimeMillis() < endTime) {
+                    wait(endTime - System.currentTimeMillis());
+                    assignTasks(agentId, capabilities, maxTasks, tasks);
+                }
+            }
+            returnInterval = mReturnIntervalMs;
+        }
+        mTasksAssigned.addAndGet(tasks.size());
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("tasks", tasks);
+        response.put("return_time", new DateTime(System.currentTimeMillis() + returnInterval).toString());
+        if (protocol >= LONG_POLL_PROTOCOL) {
+            response.put("protocol", protocol);
+        }
+        if (capabilitiesRequired) {
+            response.put("capabilities_required", true);
+        }
+        respond(exchange, 200, mGson.toJson(response));
+    }
+
+    /**
+     * Get capabilities of the requesting agent, storing capabilities sent with the request.
+     * Must be called holding the lock of the simulator.
+     *
+     * @return capabilities, or null if the agent only sent a fingerprint not known by the simulator
+     */
+    private AgentCapabilities agentCapabilities(int protocol, String agentId, Map<?, ?> request) {
+        String hash = protocol >= CAPABILITY_HASH_PROTOCOL ? (String) request.get("capabilities_hash") : null;
+        Map<?, ?> json = (Map<?, ?>) request.get("agent_capabilities");
+        AgentCapabilities capabilities;
+        if (json == null) {
+            capabilities = mAgents.get(agentId);
+            if (hash == null || capabilities == null || !hash.equals(capabilities.hash)) {
+                return null;
+            }
+        } else {
+            capabilities = new AgentCapabilities();
+            capabilities.hash = hash;
+            for (Map.Entry<?, ?> entry : json.entrySet()) {
+                String type = (String) entry.getKey();
+                Map<?, ?> info = (Map<?, ?>) entry.getValue();
+                List<Integer> versions = new ArrayList<Integer>();
+                if (info.get("versions") != null) {
+                    for (Object version : (List<?>) info.get("versions")) {
+                        versions.add(((Number) version).intValue());
+                    }
+                } else {
+                    versions.add(((Number) info.get("version")).intValue());
+                }
+                capabilities.versions.put(type, versions);
+                if (info.get("max_tasks") != null) {
+                    capabilities.maxTasks.put(type, ((Number) info.get("max_tasks")).intValue());
+                }
+            }
+            mAgents.put(agentId, capabilities);
+        }
+        // Task limits are sent separately from capabilities sent with a fingerprint
+        Map<String, Integer> maxTasks = new HashMap<String, Integer>(capabilities.maxTasks);
+        Map<?, ?> capabilityMaxTasks = (Map<?, ?>) request.get("capability_max_tasks");
+        if (capabilityMaxTasks != null) {
+            for (Map.Entry<?, ?> entry : capabilityMaxTasks.entrySet()) {
+                maxTasks.put((String) entry.getKey(), ((Number) entry.getValue()).intValue());
+            }
+        }
+        AgentCapabilities result = new AgentCapabilities();
+        result.hash = capabilities.hash;
+        result.versions = capabilities.versions;
+        result.maxTasks = maxTasks;
+        return result;
+    }
+
+    /**
+     * Hand out posted tasks the agent is capable of, and fill remaining slots with generated tasks.
+     * Must be called holding the lock of the simulator.
+     */
+    private void assignTasks(String agentId, AgentCapabilities capabilities, int maxTasks,
+                             List<Map<String, Object>> tasks) {
+        Map<String, Integer> typeCounts = new HashMap<String, Integer>();
+        String now = new DateTime().toString();
+        Iterator<SimulatedTask> pending = mPendingTasks.iterator();
+        while (pending.hasNext() && tasks.size() < maxTasks) {
+            SimulatedTask task = pending.next();
+            List<Integer> versions = capabilities.versions.get(task.type);
+            if (versions != null && versions.contains(task.version) && hasSlot(capabilities, typeCounts, task.type)) {
+                pending.remove();
+                task.claimed = now;
+                tasks.add(task.toJSON());
+                count(typeCounts, task.type);
+            }
+        }
+        if (mTaskGenerator == null) {
+            return;
+        }
+        for (Map.Entry<String, List<Integer>> capability : capabilities.versions.entrySet()) {
+            String type = capability.getKey();
+            int version = Collections.max(capability.getValue());
+            while (tasks.size() < maxTasks && hasSlot(capabilities, typeCounts, type)) {
+                Map<String, Object> data = mTaskGenerator.generate(agentId, type, version);
+                if (data == null) {
+                    break;
+                }
+                SimulatedTask task = new SimulatedTask();
+                task.id = UUID.randomUUID().toString();
+                task.type = type;
+                task.version = version;
+                task.data = data;
+                task.generated = true;
+                task.claimed = now;
+                mTasks.put(task.id, task);
+                tasks.add(task.toJSON());
+                count(typeCounts, type);
+            }
+        }
+    }
+
+    private static boolean hasSlot(AgentCapabilities capabilities, Map<String, Integer> typeCounts, String type) {
+        Integer max = capabilities.maxTasks.get(type);
+        Integer count = typeCounts.get(type);
+        return max == null || count == null || count < max;
+    }
+
+    private static void count(Map<String, Integer> typeCounts, String type) {
+        Integer count = typeCounts.get(type);
+        typeCounts.put(type, count == null ? 1 : count + 1);
+    }
+
+    private void handleResults(HttpExchange exchange, Map<?, ?> request) throws IOException {
+        int protocol = ((Number) request.get("protocol")).intValue();
+        List<Map<?, ?>> results = new ArrayList<Map<?, ?>>();
+        if (protocol == BATCH_RESULTS_PROTOCOL && mMaxProtocol >= BATCH_RESULTS_PROTOCOL) {
+            for (Object result : (List<?>) request.get("results")) {
+                results.add((Map<?, ?>) result);
+            }
+        } else if (protocol == 1) {
+            results.add(request);
+        } else {
+            reject(exchange, "Unsupported protocol " + protocol);
+            return;
+        }
+
+        String now = new DateTime().toString();
+        synchronized (this) {
+            // Accept the whole batch or nothing
+            for (Map<?, ?> result : results) {
+                SimulatedTask task = mTasks.get((String) result.get("task_id"));
+                if (task == null || task.claimed == null || task.completed != null || task.failed != null) {
+                    reject(exchange, "Result for unknown or finished task " + result.get("task_id"));
+                    return;
+                }
+            }
+            for (Map<?, ?> result : results) {
+                SimulatedTask task = mTasks.get((String) result.get("task_id"));
+                if (result.get("task_error") != null) {
+                    task.failed = now;
+                    task.error = (String) result.get("task_error");
+                } else {
+                    task.completed = now;
+                    task.result = result.get("task_data");
+                }
+                // Nobody is going to query generated tasks
+                if (task.generated) {
+                    mTasks.remove(task.id);
+                }
+            }
+        }
+        mResultsReceived.addAndGet(results.size());
+        respond(exchange, 200, "");
+    }
+
+    private void handleTaskPost(HttpExchange exchange, Map<?, ?> request) throws IOException {
+        SimulatedTask task = new SimulatedTask();
+        task.id = (String) request.get("task_id");
+        task.testId = (String) request.get("test_id");
+        task.type = (String) request.get("task_type");
+        task.version = ((Number) request.get("task_version")).intValue();
+        task.data = (Map<?, ?>) request.get("task_data");
+        if (task.data == null) {
+            task.data = new HashMap<String, Object>();
+        }
+        if (task.id == null || task.testId == null || task.type == null) {
+            reject(exchange, "Missing task fields");
+            return;
+        }
+        synchronized (this) {
+            if (mTasks.containsKey(task.id)) {
+                reject(exchange, "Duplicate task " + task.id);
+                return;
+            }
+            mTasks.put(task.id, task);
+            mPendingTasks.add(task);
+            // Wake up held long poll requests
+            notifyAll();
+        }
+        respond(exchange, 200, "");
+    }
+
+    private void handleTaskQuery(HttpExchange exchange, String taskId) throws IOException {
+        Map<String, Object> json;
+        synchronized (this) {
+            SimulatedTask task = mTasks.get(taskId);
+            if (task == null) {
+                respond(exchange, 404, "");
+                return;
+            }
+            json = task.toJSON();
+            json.put("test_id", task.testId);
+            if (task.failed != null) {
+                json.put("task_failed", task.failed);
+                json.put("task_error", task.error);
+            } else if (task.completed != null) {
+                json.put("task_completed", task.completed);
+                json.put("task_result", task.result);
+            }
+            // Clients stop querying once the task has finished
+            if (task.failed != null || task.completed != null) {
+                mTasks.remove(taskId);
+            }
+        }
+        respond(exchange, 200, mGson.toJson(json));
+    }
+
+    private void reject(HttpExchange exchange, String message) throws IOException {
+        logger.log(Level.FINE, "Rejecting request to " + exchange.getRequestURI() + ": " + message);
+        mErrors.incrementAndGet();
+        respond(exchange, 400, "");
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] content = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, content.length > 0 ? content.length : -1);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content);
+        out.close();
+    }
+
+    /**
+     * Run simulator from the command line.
+     * <p>
+     * Usage: AfmSimulator [--port PORT] [--return-interval MS] [--latency MIN_MS-MAX_MS]
+     * [--error-rate RATE] [--generate PROBABILITY] [--max-protocol PROTOCOL]
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        int port = options.containsKey("--port") ? Integer.parseInt(options.get("--port")) : 8080;
+        AfmSimulator simulator = new AfmSimulator(new InetSocketAddress(port));
+        if (options.containsKey("--return-interval")) {
+            simulator.setReturnInterval(Long.parseLong(options.get("--return-interval")));
+        }
+        if (options.containsKey("--latency")) {
+            String[] latency = options.get("--latency").split("-");
+            simulator.setLatency(Long.parseLong(latency[0]), Long.parseLong(latency[latency.length - 1]));
+        }
+        if (options.containsKey("--error-rate")) {
+            simulator.setErrorRate(Double.parseDouble(options.get("--error-rate")));
+        }
+        if (options.containsKey("--generate")) {
+            simulator.setTaskGenerator(new RandomTaskGenerator(Double.parseDouble(options.get("--generate"))));
+        }
+        if (options.containsKey("--max-protocol")) {
+            simulator.setMaxProtocol(Integer.parseInt(options.get("--max-protocol")));
+        }
+    }
+}
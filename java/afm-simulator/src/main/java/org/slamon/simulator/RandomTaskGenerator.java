@@ -0,0 +1,49 @@
+package org.slamon.simulator;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates a task for each free task slot with the given probability,
+ * optionally limited to a single task type.
+ */
+public class RandomTaskGenerator implements TaskGenerator {
+
+    final private double mProbability;
+    final private String mTaskType;
+    final private Map<String, Object> mData;
+    final private Random mRandom = new Random();
+
+    /**
+     * @param probability probability to generate a task for a free task slot, between 0 and 1
+     */
+    public RandomTaskGenerator(double probability) {
+        this(probability, null, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * @param probability probability to generate a task for a free task slot, between 0 and 1
+     * @param taskType    task type to generate tasks of, or null for any type
+     * @param data        task data of the generated tasks
+     */
+    public RandomTaskGenerator(double probability, String taskType, Map<String, Object> data) {
+        mProbability = probability;
+        mTaskType = taskType;
+        mData = data;
+    }
+
+    @Override
+    public Map<String, Object> generate(String agentId, String taskType, int taskVersion) {
+        if (mTaskType != null && !mTaskType.equals(taskType)) {
+            return null;
+        }
+        synchronized (mRandom) {
+            if (mRandom.nextDouble() >= mProbability) {
+                return null;
+            }
+        }
+        return new HashMap<String, Object>(mData);
+    }
+}
@@ -0,0 +1,21 @@
+package org.slamon.simulator;
+
+import java.util.Map;
+
+/**
+ * Generates tasks for agents requesting tasks from {@link AfmSimulator},
+ * in addition to tasks posted to the simulator.
+ */
+public interface TaskGenerator {
+
+    /**
+     * Generate task for a free task slot of an agent. Called from request handling
+     * threads, for each task the agent is able to take.
+     *
+     * @param agentId     agent requesting tasks
+     * @param taskType    task type the agent is capable of
+     * @param taskVersion highest task version the agent is capable of
+     * @return task data of a new task, or null to not generate a task
+     */
+    Map<String, Object> generate(String agentId, String taskType, int taskVersion);
+}
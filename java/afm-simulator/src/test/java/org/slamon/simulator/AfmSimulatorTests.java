@@ -0,0 +1,211 @@
+package org.slamon.simulator;
+
+import com.google.gson.Gson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AfmSimulatorTests {
+
+    static final String TASK_ID = "de305d54-75b4-431b-adb2-eb6b9e546013";
+    static final String TEST_ID = "ee305d54-75b4-431b-adb2-eb6b9e546013";
+
+    final Gson gson = new Gson();
+    AfmSimulator simulator;
+    int status;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new AfmSimulator();
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+    @Test
+    public void testPostedTaskLifecycle() throws Exception {
+        Map<String, Object> post = new HashMap<String, Object>();
+        post.put("task_id", TASK_ID);
+        post.put("test_id", TEST_ID);
+        post.put("task_type", "wait");
+        post.put("task_version", 1);
+        post.put("task_data", Collections.singletonMap("time", 1));
+        request("POST", "task", post);
+        assertEquals(200, status);
+        assertEquals(1, simulator.getPendingTaskCount());
+
+        // Not finished yet
+        Map<?, ?> task = request("GET", "task/" + TASK_ID, null);
+        assertEquals(200, status);
+        assertNull(task.get("task_completed"));
+
+        Map<?, ?> response = request("POST", "tasks", tasksRequest(1, "wait", 2));
+        List<?> tasks = (List<?>) response.get("tasks");
+        assertEquals(1, tasks.size());
+        assertEquals(TASK_ID, ((Map<?, ?>) tasks.get(0)).get("task_id"));
+        assertNotNull(response.get("return_time"));
+
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("protocol", 1);
+        result.put("task_id", TASK_ID);
+        result.put("task_data", Collections.singletonMap("status", "ok"));
+        request("POST", "tasks/response", result);
+        assertEquals(200, status);
+        // Results are accepted only once
+        request("POST", "tasks/response", result);
+        assertEquals(400, status);
+
+        task = request("GET", "task/" + TASK_ID, null);
+        assertNotNull(task.get("task_completed"));
+        assertEquals("ok", ((Map<?, ?>) task.get("task_result")).get("status"));
+        // Finished tasks are forgotten once fetched
+        request("GET", "task/" + TASK_ID, null);
+        assertEquals(404, status);
+
+        assertEquals(1, simulator.getTasksAssigned());
+        assertEquals(1, simulator.getResultsReceived());
+    }
+
+    @Test
+    public void testGeneratedTasks() throws Exception {
+        simulator.setTaskGenerator(new RandomTaskGenerator(1.0));
+        Map<String, Object> request = tasksRequest(1, "wait", 5);
+        ((Map) ((Map) request.get("agent_capabilities")).get("wait")).put("max_tasks", 2);
+
+        List<?> tasks = (List<?>) request("POST", "tasks", request).get("tasks");
+        assertEquals(2, tasks.size());
+
+        Map<String, Object> batch = new HashMap<String, Object>();
+        batch.put("protocol", AfmSimulator.BATCH_RESULTS_PROTOCOL);
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        for (Object task : tasks) {
+            Map<String, Object> result = new HashMap<String, Object>();
+            result.put("task_id", ((Map<?, ?>) task).get("task_id"));
+            result.put("task_error", "failed");
+            results.add(result);
+        }
+        batch.put("results", results);
+        request("POST", "tasks/response", batch);
+        assertEquals(200, status);
+        assertEquals(2, simulator.getResultsReceived());
+        assertEquals(1, simulator.getResultPostCount());
+    }
+
+    @Test
+    public void testCapabilityHash() throws Exception {
+        simulator.setTaskGenerator(new RandomTaskGenerator(1.0));
+        Map<String, Object> request = tasksRequest(AfmSimulator.CAPABILITY_HASH_PROTOCOL, "wait", 1);
+        request.put("capabilities_hash", "abc");
+        Map<String, Object> capabilities = (Map<String, Object>) request.remove("agent_capabilities");
+
+        // Unknown fingerprint
+        Map<?, ?> response = request("POST", "tasks", request);
+        assertEquals(Boolean.TRUE, response.get("capabilities_required"));
+        assertTrue(((List<?>) response.get("tasks")).isEmpty());
+
+        request.put("agent_capabilities", capabilities);
+        response = request("POST", "tasks", request);
+        assertEquals(1, ((List<?>) response.get("tasks")).size());
+        assertEquals(4.0, response.get("protocol"));
+
+        request.remove("agent_capabilities");
+        response = request("POST", "tasks", request);
+        assertNull(response.get("capabilities_required"));
+        assertEquals(1, ((List<?>) response.get("tasks")).size());
+    }
+
+    @Test
+    public void testMaxProtocol() throws Exception {
+        simulator.setMaxProtocol(1);
+        request("POST", "tasks", tasksRequest(AfmSimulator.LONG_POLL_PROTOCOL, "wait", 1));
+        assertEquals(400, status);
+        request("POST", "tasks", tasksRequest(1, "wait", 1));
+        assertEquals(200, status);
+    }
+
+    @Test
+    public void testLongPollWakesUpOnPostedTask() throws Exception {
+        final Map<String, Object> post = new HashMap<String, Object>();
+        post.put("task_id", TASK_ID);
+        post.put("test_id", TEST_ID);
+        post.put("task_type", "wait");
+        post.put("task_version", 1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    request("POST", "task", post);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).start();
+
+        Map<String, Object> request = tasksRequest(AfmSimulator.LONG_POLL_PROTOCOL, "wait", 1);
+        request.put("wait_timeout", 10);
+        long startTime = System.currentTimeMillis();
+        List<?> tasks = (List<?>) request("POST", "tasks", request).get("tasks");
+        assertEquals(1, tasks.size());
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+    }
+
+    @Test
+    public void testErrorsAndLatency() throws Exception {
+        simulator.setErrorRate(1.0);
+        simulator.setLatency(100, 100);
+        long startTime = System.currentTimeMillis();
+        request("POST", "tasks", tasksRequest(1, "wait", 1));
+        assertEquals(500, status);
+        assertTrue(System.currentTimeMillis() - startTime >= 100);
+        assertEquals(1, simulator.getErrorCount());
+    }
+
+    private Map<String, Object> tasksRequest(int protocol, String taskType, int maxTasks) {
+        Map<String, Object> capabilities = new HashMap<String, Object>();
+        capabilities.put(taskType, new HashMap<String, Object>(Collections.singletonMap("version", 1)));
+        Map<String, Object> request = new HashMap<String, Object>();
+        request.put("protocol", protocol);
+        request.put("agent_id", "agent");
+        request.put("agent_name", "agent");
+        request.put("agent_time", "2015-02-17T22:19:41.620000+0200");
+        request.put("agent_capabilities", capabilities);
+        request.put("max_tasks", maxTasks);
+        return request;
+    }
+
+    private Map<?, ?> request(String method, String path, Object content) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(simulator.getUrl() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (content != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            OutputStream out = connection.getOutputStream();
+            out.write(gson.toJson(content).getBytes("UTF-8"));
+            out.close();
+        }
+        status = connection.getResponseCode();
+        if (status != 200) {
+            return null;
+        }
+        return gson.fromJson(new InputStreamReader(connection.getInputStream(), "UTF-8"), Map.class);
+    }
+}
@@ -0,0 +1,34 @@
+package org.slamon;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting work item parameters from jBPM, and task results back to jBPM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JbpmConversionBenchmark {
+
+    // jBPM passes all input parameters as strings
+    @Param({"42", "3.14", "http://www.example.com/", "\"quoted\""})
+    public String parameter;
+
+    final private Object mResult = new BigDecimal("0.125");
+
+    @Benchmark
+    public Object convertFromJBPM() {
+        return Util.convertFromJBPM(parameter);
+    }
+
+    @Benchmark
+    public Object convertToJBPM() {
+        return Util.convertToJBPM(mResult);
+    }
+}
@@ -0,0 +1,445 @@
+package org.slamon;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.gson.GsonFactory;
+import org.slamon.simulator.AfmSimulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a fleet of agents in a single JVM against an AFM, to see how the AFM and the agents
+ * behave with thousands of agents. The agents share a single connection pool for their blocking
+ * requests. The simulator posts tasks to the AFM at a given rate like a BPMS would, and the agents
+ * execute them with a handler simulating work. Works against {@link AfmSimulator} as well as a real AFM.
+ * <p>
+ * Agents schedule polls on the real clock, so to simulate hours of fleet activity in minutes,
+ * give short return intervals to agents from the AFM simulator and short task durations.
+ * <p>
+ * By default the agents run as identities of an {@link AgentPool} sharing a fixed number of
+ * executors, so that the thread count of the simulator does not grow with the fleet. Standalone
+ * agents with threads of their own, see {@link #setPooled(int)}, take several threads per agent,
+ * and with thousands of agents the run measures thread scheduling rather than the AFM.
+ */
+public class FleetSimulator {
+
+    static final String TASK_TYPE = "fleet_simulation";
+
+    private static final int POSTER_THREADS = 16;
+
+    /**
+     * Default number of executors shared by the agents of the pool.
+     */
+    public static final int DEFAULT_POOL_EXECUTORS = 256;
+
+    // Keeps the level of the agent library loggers from being garbage collected
+    private static final Logger sLibraryLogger = Logger.getLogger("org.slamon");
+
+    /**
+     * Handler recording how long tasks took from being posted to being started.
+     */
+    private static class SimulationHandler extends TaskHandler {
+        final Histogram mDispatchLatency = new Histogram();
+
+        @Override
+        public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+            mDispatchLatency.record(System.currentTimeMillis() - ((Number) inputParams.get("posted_at")).longValue());
+            long duration = ((Number) inputParams.get("duration_ms")).longValue();
+            if (duration > 0) {
+                Thread.sleep(duration);
+            }
+            return new HashMap<String, Object>();
+        }
+
+        @Override
+        public String getName() {
+            return TASK_TYPE;
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+    }
+
+    /**
+     * Aggregate results of a simulation run.
+     */
+    public static class Report {
+        final private int mAgents;
+        final private long mDurationMs;
+        final private long mTasksPosted;
+        final private long mPostErrors;
+        final private long mTasksCompleted;
+        final private long mTasksFailed;
+        final private long mAfmRequests;
+        final private long mAfmErrors;
+        final private Histogram.Snapshot mDispatchLatency;
+
+        Report(int agents, long durationMs, long tasksPosted, long postErrors, long tasksCompleted,
+               long tasksFailed, long afmRequests, long afmErrors, Histogram.Snapshot dispatchLatency) {
+            mAgents = agents;
+            mDurationMs = durationMs;
+            mTasksPosted = tasksPosted;
+            mPostErrors = postErrors;
+            mTasksCompleted = tasksCompleted;
+            mTasksFailed = tasksFailed;
+            mAfmRequests = afmRequests;
+            mAfmErrors = afmErrors;
+            mDispatchLatency = dispatchLatency;
+        }
+
+        public int getAgents() {
+            return mAgents;
+        }
+
+        public long getDurationMs() {
+            return mDurationMs;
+        }
+
+        public long getTasksPosted() {
+            return mTasksPosted;
+        }
+
+        public long getPostErrors() {
+            return mPostErrors;
+        }
+
+        public long getTasksCompleted() {
+            return mTasksCompleted;
+        }
+
+        public long getTasksFailed() {
+            return mTasksFailed;
+        }
+
+        /**
+         * @return task polls and result posts of all agents, including failed requests
+         */
+        public long getAfmRequests() {
+            return mAfmRequests;
+        }
+
+        public long getAfmErrors() {
+            return mAfmErrors;
+        }
+
+        /**
+         * @return time from posting tasks to agents starting them, in milliseconds
+         */
+        public Histogram.Snapshot getDispatchLatency() {
+            return mDispatchLatency;
+        }
+
+        /**
+         * @return tasks completed per second
+         */
+        public double getThroughput() {
+            return perSecond(mTasksCompleted);
+        }
+
+        /**
+         * @return AFM requests per second by all agents
+         */
+        public double getAfmRequestRate() {
+            return perSecond(mAfmRequests);
+        }
+
+        private double perSecond(long count) {
+            return mDurationMs > 0 ? count * 1000.0 / mDurationMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "agents: %d, duration: %d ms\n" +
+                            "tasks posted: %d, post errors: %d\n" +
+                            "tasks completed: %d, failed: %d, throughput: %.1f tasks/s\n" +
+                            "dispatch latency: p50 %d ms, p90 %d ms, p99 %d ms, max %d ms\n" +
+                            "AFM requests: %d, errors: %d, rate: %.1f requests/s",
+                    mAgents, mDurationMs,
+                    mTasksPosted, mPostErrors,
+                    mTasksCompleted, mTasksFailed, getThroughput(),
+                    mDispatchLatency.getPercentile(50), mDispatchLatency.getPercentile(90),
+                    mDispatchLatency.getPercentile(99), mDispatchLatency.getMax(),
+                    mAfmRequests, mAfmErrors, getAfmRequestRate());
+        }
+    }
+
+    final private Logger logger = Logger.getLogger(FleetSimulator.class.getCanonicalName());
+    final private String mUrl;
+    final private PooledHttpTransport mTransport = new PooledHttpTransport();
+    final private AtomicLong mTasksPosted = new AtomicLong();
+    final private AtomicLong mPostErrors = new AtomicLong();
+    private int mAgentCount = 100;
+    private int mConcurrency = 1;
+    private double mTaskRate = 10;
+    private long mTaskDurationMs = 100;
+    private long mLongPollTimeoutMs = 0;
+    private int mPoolExecutors = DEFAULT_POOL_EXECUTORS;
+    private volatile boolean mPosting;
+
+    /**
+     * @param url AFM address
+     */
+    public FleetSimulator(String url) {
+        mUrl = url.endsWith("/") ? url : url + "/";
+        // Polls of the whole fleet share the connections
+        mTransport.setMaxIdleConnectionsPerHost(64);
+    }
+
+    /**
+     * @param count       number of agents
+     * @param concurrency number of tasks each agent runs at once
+     */
+    public void setAgents(int count, int concurrency) {
+        mAgentCount = count;
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * @param tasksPerSecond number of tasks posted to the AFM per second
+     */
+    public void setTaskRate(double tasksPerSecond) {
+        mTaskRate = tasksPerSecond;
+    }
+
+    /**
+     * @param durationMs time each task takes to execute
+     */
+    public void setTaskDuration(long durationMs) {
+        mTaskDurationMs = durationMs;
+    }
+
+    /**
+     * @param timeoutMs long poll timeout of the agents, 0 to poll at the return times
+     */
+    public void setLongPollTimeout(long timeoutMs) {
+        mLongPollTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Set the number of executors shared by the agents of the pool, at most the number of agents
+     * times their concurrency. Pooled agents do not long poll, run standalone agents for that.
+     *
+     * @param executors number of executors shared by the agents, 0 to run standalone agents
+     */
+    public void setPooled(int executors) {
+        mPoolExecutors = executors;
+    }
+
+    /**
+     * Run the fleet for the given time, posting tasks all along.
+     *
+     * @param durationMs time to run in milliseconds
+     * @return aggregate results of the run
+     */
+    public Report run(long durationMs) throws InterruptedException {
+        // Request logging of thousands of agents would dominate the run
+        sLibraryLogger.setLevel(Level.WARNING);
+        SimulationHandler handler = new SimulationHandler();
+        TaskHandler.registerHandler(handler);
+
+        logger.log(Level.INFO, "Starting " + mAgentCount + " agents");
+        List<Agent> agents = new ArrayList<Agent>(mAgentCount);
+        AgentPool pool = null;
+        if (mPoolExecutors > 0) {
+            if (mLongPollTimeoutMs > 0) {
+                logger.log(Level.WARNING, "Pooled agents do not long poll, run standalone agents to long poll");
+            }
+            pool = new AgentPool(mUrl, new AfmCommunicator(mUrl, mTransport));
+            for (int i = 0; i < mAgentCount; ++i) {
+                pool.addAgent(UUID.randomUUID().toString(), "fleet-" + i);
+            }
+            pool.start((int) Math.min(mPoolExecutors, (long) mAgentCount * mConcurrency));
+        } else {
+            for (int i = 0; i < mAgentCount; ++i) {
+                Agent agent = new Agent(UUID.randomUUID().toString(), "fleet-" + i,
+                        new AfmCommunicator(mUrl, mTransport));
+                agent.setLongPollTimeout(mLongPollTimeoutMs);
+                // Simulated tasks mostly wait, so a thread per task keeps the thread count down
+                agent.startWithThreadPerTask(mConcurrency);
+                agents.add(agent);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        Thread poster = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                postTasks();
+            }
+        }, "fleet-task-poster");
+        mPosting = true;
+        poster.start();
+        Thread.sleep(durationMs);
+        mPosting = false;
+        poster.join();
+        long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+
+        long completed = 0;
+        long failed = 0;
+        long requests = 0;
+        long errors = 0;
+        List<MetricsRegistry> registries = new ArrayList<MetricsRegistry>();
+        for (Agent agent : agents) {
+            registries.add(agent.getMetrics());
+        }
+        if (pool != null) {
+            registries.add(pool.getMetrics());
+        }
+        for (MetricsRegistry registry : registries) {
+            MetricsRegistry.Snapshot metrics = registry.snapshot();
+            completed += count(metrics.getCounters(), "agent.tasks_completed");
+            failed += count(metrics.getCounters(), "agent.tasks_failed");
+            errors += count(metrics.getCounters(), "afm.temporary_errors")
+                    + count(metrics.getCounters(), "afm.fatal_errors");
+            for (String name : new String[]{"afm.poll_ms", "afm.long_poll_ms", "afm.post_results_ms"}) {
+                Histogram.Snapshot histogram = metrics.getHistograms().get(name);
+                requests += histogram != null ? histogram.getCount() : 0;
+            }
+        }
+        Report report = new Report(mAgentCount, elapsedMs, mTasksPosted.get(), mPostErrors.get(),
+                completed, failed, requests + errors, errors, handler.mDispatchLatency.snapshot());
+
+        shutdown(agents);
+        if (pool != null) {
+            try {
+                pool.shutdown(10000);
+            } catch (TimeoutException e) {
+                logger.log(Level.WARNING, "Timeout while shutting down agent pool");
+            }
+        }
+        mTransport.shutdown();
+        return report;
+    }
+
+    private static long count(Map<String, Long> counters, String name) {
+        Long value = counters.get(name);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * Post tasks at the configured rate until stopped. Posts are sent from a pool of threads,
+     * so that the rate is kept up even when the AFM responds slowly under load.
+     */
+    private void postTasks() {
+        final HttpRequestFactory requests = mTransport.createRequestFactory();
+        final GenericUrl url = new GenericUrl(mUrl + "task");
+        ExecutorService executor = Executors.newFixedThreadPool(POSTER_THREADS);
+        long startTime = System.nanoTime();
+        long posted = 0;
+        while (mPosting) {
+            long due = (long) ((System.nanoTime() - startTime) / 1e9 * mTaskRate);
+            if (posted >= due) {
+                try {
+                    Thread.sleep(Math.max(1, (long) (1000 / mTaskRate)));
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    postTask(requests, url);
+                }
+            });
+            posted++;
+        }
+        executor.shutdownNow();
+    }
+
+    private void postTask(HttpRequestFactory requests, GenericUrl url) {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("posted_at", System.currentTimeMillis());
+        data.put("duration_ms", mTaskDurationMs);
+        Map<String, Object> task = new HashMap<String, Object>();
+        task.put("task_id", UUID.randomUUID().toString());
+        task.put("test_id", UUID.randomUUID().toString());
+        task.put("task_type", TASK_TYPE);
+        task.put("task_version", 1);
+        task.put("task_data", data);
+        try {
+            requests.buildPostRequest(url, new JsonHttpContent(GsonFactory.getDefaultInstance(), task))
+                    .execute().ignore();
+            mTasksPosted.incrementAndGet();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to post task: " + e.getMessage());
+            mPostErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Shut down agents in parallel, as agents holding long poll requests take a while to stop.
+     */
+    private void shutdown(List<Agent> agents) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(64);
+        for (final Agent agent : agents) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        agent.shutdown(mLongPollTimeoutMs + 10000);
+                    } catch (TimeoutException e) {
+                        logger.log(Level.WARNING, "Timeout while shutting down agent");
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(mLongPollTimeoutMs + 60000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run simulation from the command line, against a local AFM simulator unless an AFM address is given.
+     * <p>
+     * Usage: FleetSimulator [--url URL] [--agents COUNT] [--concurrency TASKS] [--rate TASKS_PER_SECOND]
+     * [--task-duration MS] [--duration MS] [--long-poll TIMEOUT_MS] [--return-interval MS] [--pool EXECUTORS]
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+
+        AfmSimulator afm = null;
+        String url = options.get("--url");
+        if (url == null) {
+            afm = new AfmSimulator();
+            afm.setReturnInterval(option(options, "--return-interval", 1000));
+            url = afm.getUrl();
+        }
+
+        FleetSimulator simulator = new FleetSimulator(url);
+        simulator.setAgents((int) option(options, "--agents", 100), (int) option(options, "--concurrency", 1));
+        simulator.setTaskRate(options.containsKey("--rate") ? Double.parseDouble(options.get("--rate")) : 10);
+        simulator.setTaskDuration(option(options, "--task-duration", 100));
+        simulator.setLongPollTimeout(option(options, "--long-poll", 0));
+        simulator.setPooled((int) option(options, "--pool", DEFAULT_POOL_EXECUTORS));
+        Report report = simulator.run(option(options, "--duration", 60000));
+        System.out.println(report);
+
+        if (afm != null) {
+            afm.stop();
+        }
+    }
+
+    private static long option(Map<String, String> options, String name, long defaultValue) {
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+}
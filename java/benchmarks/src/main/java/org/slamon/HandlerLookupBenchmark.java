@@ -0,0 +1,67 @@
+package org.slamon;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up task handlers for received tasks, and taking the capability
+ * snapshot and fingerprint sent on every poll.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerLookupBenchmark {
+
+    private static final int HANDLER_COUNT = 50;
+
+    private static class NopHandler extends TaskHandler {
+        final private String mName;
+        final private int mVersion;
+
+        NopHandler(String name, int version) {
+            mName = name;
+            mVersion = version;
+        }
+
+        @Override
+        public Map<String, Object> execute(Map<String, Object> inputParams) {
+            return inputParams;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public int getVersion() {
+            return mVersion;
+        }
+    }
+
+    private int mNext = 0;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < HANDLER_COUNT; ++i) {
+            TaskHandler.registerHandler(new NopHandler("task_type_" + i, 1));
+            TaskHandler.registerHandler(new NopHandler("task_type_" + i, 2));
+        }
+    }
+
+    @Benchmark
+    public TaskHandler getHandler() {
+        mNext = (mNext + 1) % HANDLER_COUNT;
+        return TaskHandler.getHandler("task_type_" + mNext, 2);
+    }
+
+    @Benchmark
+    public String capabilitiesFingerprint() {
+        return TaskHandler.capabilities().fingerprint();
+    }
+}
@@ -0,0 +1,73 @@
+package org.slamon;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP transport standing in for the AFM in benchmarks. Request content is serialized
+ * as it would be for the network, and every request gets the same canned response.
+ */
+class MockAfmTransport extends MockHttpTransport {
+
+    // Keeps the communicator logger and its level from being garbage collected
+    private static final Logger sCommunicatorLogger = Logger.getLogger(AfmCommunicator.class.getCanonicalName());
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    final private byte[] mResponse;
+
+    /**
+     * @param response JSON content of the responses
+     */
+    MockAfmTransport(String response) {
+        try {
+            mResponse = response.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create communicator talking to a mock AFM. Request logging is turned off,
+     * as it would otherwise dominate the measurements.
+     *
+     * @param response JSON content of the responses
+     */
+    static AfmCommunicator communicator(String response) {
+        sCommunicatorLogger.setLevel(Level.WARNING);
+        return new AfmCommunicator("http://localhost:8080", new MockAfmTransport(response));
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                if (getStreamingContent() != null) {
+                    getStreamingContent().writeTo(DISCARD);
+                }
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setContentType(Json.MEDIA_TYPE);
+                response.setContent(mResponse);
+                return response;
+            }
+        };
+    }
+}
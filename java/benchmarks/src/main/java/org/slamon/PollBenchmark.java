@@ -0,0 +1,74 @@
+package org.slamon;
+
+import com.google.api.client.json.gson.GsonFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polling the AFM for tasks: encoding the tasks request, and a full poll
+ * through {@link AfmCommunicator} against a mock AFM handing out tasks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PollBenchmark {
+
+    @Param({"1", "20"})
+    public int capabilityCount;
+
+    @Param({"0", "10"})
+    public int taskCount;
+
+    private Map<String, Integer> mCapabilities;
+    private Map<String, Integer> mCapabilityMaxTasks = Collections.emptyMap();
+    private String mCapabilitiesHash;
+    private TasksRequestTemplate mTemplate;
+    private AfmCommunicator mAfm;
+
+    @Setup
+    public void setup() throws Exception {
+        mCapabilities = Tasks.capabilities(capabilityCount);
+        mCapabilitiesHash = Capabilities.fingerprint(mCapabilities);
+        mTemplate = new TasksRequestTemplate(GsonFactory.getDefaultInstance());
+        mAfm = MockAfmTransport.communicator(Tasks.response(taskCount));
+    }
+
+    /**
+     * Encode request with unchanged capabilities, as on most polls.
+     */
+    @Benchmark
+    public byte[] encodeRequest() throws Exception {
+        return mTemplate.encode(AfmCommunicator.CAPABILITY_HASH_PROTOCOL, null, mCapabilitiesHash, false,
+                "agent-id", "agent-name", mCapabilities, mCapabilityMaxTasks, 4);
+    }
+
+    /**
+     * Encode request with all fields, as after capabilities have changed.
+     */
+    @Benchmark
+    public byte[] encodeRequestFull() throws Exception {
+        return new TasksRequestTemplate(GsonFactory.getDefaultInstance()).encode(
+                AfmCommunicator.CAPABILITY_HASH_PROTOCOL, null, mCapabilitiesHash, true,
+                "agent-id", "agent-name", mCapabilities, mCapabilityMaxTasks, 4);
+    }
+
+    /**
+     * Poll for tasks, including request encoding and response decoding.
+     */
+    @Benchmark
+    public void requestTasks(Blackhole blackhole) throws Exception {
+        List<Task> tasks = new ArrayList<Task>(taskCount);
+        blackhole.consume(mAfm.requestTasks("agent-id", "agent-name", mCapabilities, mCapabilityMaxTasks,
+                Math.max(1, taskCount), tasks));
+        blackhole.consume(tasks);
+    }
+}
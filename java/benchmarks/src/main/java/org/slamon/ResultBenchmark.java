@@ -0,0 +1,62 @@
+package org.slamon;
+
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.gson.GsonFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and posting task results, one by one and in batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int taskCount;
+
+    private List<Task> mTasks;
+    private AfmCommunicator mAfm;
+
+    @Setup
+    public void setup() throws Exception {
+        mTasks = Tasks.createFinished(taskCount);
+        mAfm = MockAfmTransport.communicator("{}");
+    }
+
+    /**
+     * Serialize results of all tasks as a single batch request.
+     */
+    @Benchmark
+    public byte[] serializeBatch() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JsonHttpContent(GsonFactory.getDefaultInstance(),
+                new TaskResultBatchRequest(AfmCommunicator.BATCH_RESULTS_PROTOCOL, mTasks)).writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Post results of all tasks one by one.
+     */
+    @Benchmark
+    public void postResults() throws Exception {
+        for (Task task : mTasks) {
+            mAfm.postResults(task);
+        }
+    }
+
+    /**
+     * Post results of all tasks in a single batch.
+     */
+    @Benchmark
+    public void postResultsBatch() throws Exception {
+        mAfm.postResults(mTasks);
+    }
+}
@@ -0,0 +1,70 @@
+package org.slamon;
+
+import com.google.api.client.json.gson.GsonFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sample tasks and AFM responses for benchmarks.
+ */
+class Tasks {
+
+    static final String RETURN_TIME = "2015-02-17T22:19:41.620000+0200";
+
+    /**
+     * @param count number of tasks
+     * @return tasks resembling the ones the AFM hands out
+     */
+    static List<Task> create(int count) {
+        List<Task> tasks = new ArrayList<Task>(count);
+        for (int i = 0; i < count; ++i) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("url", "http://www.example.com/service/" + i);
+            data.put("timeout", 30);
+            data.put("expected_status", 200);
+            tasks.add(new Task(String.format("8d7c1b32-1e2f-4d6a-9c3b-%012d", i), "http_get", 1, data));
+        }
+        return tasks;
+    }
+
+    /**
+     * @param count number of tasks
+     * @return finished tasks with results
+     */
+    static List<Task> createFinished(int count) {
+        List<Task> tasks = create(count);
+        for (Task task : tasks) {
+            task.task_result = new HashMap<String, Object>();
+            task.task_result.put("status", 200);
+            task.task_result.put("elapsed", 0.125);
+            task.task_result.put("content_length", 5123);
+        }
+        return tasks;
+    }
+
+    /**
+     * @param count number of tasks
+     * @return tasks request response in JSON
+     */
+    static String response(int count) throws IOException {
+        TasksRequestResponse response = new TasksRequestResponse(create(count), RETURN_TIME);
+        response.protocol = AfmCommunicator.CAPABILITY_HASH_PROTOCOL;
+        return GsonFactory.getDefaultInstance().toString(response);
+    }
+
+    /**
+     * @param count number of handlers
+     * @return capabilities of an agent with the given number of handlers
+     */
+    static Map<String, Integer> capabilities(int count) {
+        Map<String, Integer> capabilities = new HashMap<String, Integer>();
+        for (int i = 0; i < count; ++i) {
+            capabilities.put("task_type_" + i, 1);
+        }
+        return capabilities;
+    }
+}
@@ -0,0 +1,38 @@
+package org.slamon;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding tasks request responses of the AFM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TasksResponseBenchmark {
+
+    @Param({"0", "1", "10", "100"})
+    public int taskCount;
+
+    private String mResponse;
+
+    @Setup
+    public void setup() throws Exception {
+        mResponse = Tasks.response(taskCount);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws Exception {
+        List<Task> tasks = new ArrayList<Task>(taskCount);
+        blackhole.consume(TasksRequestResponse.read(new StringReader(mResponse), tasks));
+        blackhole.consume(tasks);
+    }
+}
@@ -32,6 +32,19 @@ public class Afm {
     static final HashMap<String, Afm> sAfmServers = new HashMap<String, Afm>();
     static final JsonFactory sJsonFactory = new GsonFactory();
 
+    static final FlightRecorderEvent POST_EVENT = new FlightRecorderEvent("org.slamon.jbpm.TaskPost", "Task Post")
+            .field(String.class, "taskId", "Task Id")
+            .field(String.class, "taskType", "Task Type")
+            .timespan("post", "Post")
+            .field(String.class, "error", "Error")
+            .register();
+
+    static final FlightRecorderEvent POLL_EVENT = new FlightRecorderEvent("org.slamon.jbpm.TaskResultPoll", "Task Result Poll")
+            .field(String.class, "taskId", "Task Id")
+            .timespan("request", "Request")
+            .field(boolean.class, "completed", "Completed")
+            .register();
+
     final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
     final HashMap<String, ResultCallback> mTasks = new HashMap<String, ResultCallback>();
     final String mUrl;
@@ -148,6 +161,7 @@ public class Afm {
      */
     public void postTask(Task task, ResultCallback callback) {
 
+        long postTime = System.nanoTime();
         try {
             log.log(Level.INFO, "Adding callback for task {0} into result map.", task.task_id);
             synchronized (mTasks) {
@@ -172,17 +186,26 @@ public class Afm {
             request.execute();
             // according to documentation, .execute() will throw HttpResponseException if
             // http status code >= 300 is received.
+            commitPostEvent(task, postTime, null);
 
             getTask(resultUrl, task);
         } catch (HttpResponseException e) {
             log.log(Level.SEVERE, "Failed to post task {0}: {1}.", new Object[]{task.task_id, e});
+            commitPostEvent(task, postTime, e.getMessage());
             completeTaskWithError(task, e.getMessage());
         } catch (Exception e) {
             log.log(Level.SEVERE, "Failed to post task {0}: {1}.", new Object[]{task.task_id, e});
+            commitPostEvent(task, postTime, String.valueOf(e.getMessage()));
             completeTaskWithError(task, e.getMessage());
         }
     }
 
+    private static void commitPostEvent(Task task, long postTime, String error) {
+        if (POST_EVENT.isEnabled()) {
+            POST_EVENT.commit(task.task_id, task.task_type, (System.nanoTime() - postTime) / 1000000, error);
+        }
+    }
+
     /**
      * Schedule result request to be issued for task.
      *
@@ -201,9 +224,14 @@ public class Afm {
                             log.log(Level.INFO, "Requesting results for task {0}...", task.task_id);
                             HttpRequestFactory factory = mHttpTransport.createRequestFactory(new RequestInitializer());
                             HttpRequest request = factory.buildGetRequest(responseUrl);
+                            long requestTime = System.nanoTime();
                             Task resultTask = request.execute().parseAs(Task.class);
+                            boolean completed = resultTask.task_completed != null || resultTask.task_failed != null;
+                            if (POLL_EVENT.isEnabled()) {
+                                POLL_EVENT.commit(task.task_id, (System.nanoTime() - requestTime) / 1000000, completed);
+                            }
 
-                            if (resultTask.task_completed != null || resultTask.task_failed != null) {
+                            if (completed) {
                                 log.log(Level.INFO, "Got results for task {0}!", task.task_id);
                                 completeTask(resultTask);
                             } else {
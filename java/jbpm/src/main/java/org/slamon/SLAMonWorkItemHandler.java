@@ -19,6 +19,13 @@ public class SLAMonWorkItemHandler implements WorkItemHandler {
 
     static final Logger log = Logger.getLogger(Afm.class.getCanonicalName());
 
+    static final FlightRecorderEvent WORK_ITEM_EVENT = new FlightRecorderEvent("org.slamon.jbpm.WorkItem", "Work Item")
+            .field(String.class, "taskId", "Task Id")
+            .field(String.class, "taskType", "Task Type")
+            .timespan("total", "Total")
+            .field(boolean.class, "succeeded", "Succeeded")
+            .register();
+
     private String mUrl = null;
     private String mTaskType = null;
     private int mTaskVersion = 0;
@@ -43,6 +50,8 @@ public class SLAMonWorkItemHandler implements WorkItemHandler {
 
     public void executeWorkItem(final WorkItem workItem, final WorkItemManager manager) {
 
+        final long executeTime = System.nanoTime();
+
         Map<String, Object> input_params = workItem.getParameters();
 
         // First read all "generic" parameters from task, such as task type, version etc.
@@ -100,6 +109,8 @@ public class SLAMonWorkItemHandler implements WorkItemHandler {
             @Override
             public void succeeded(Task task) {
 
+                commitEvent(task, true);
+
                 synchronized (mItemIdMap) {
                     mItemIdMap.remove(localWorkItemId);
                 }
@@ -134,6 +145,8 @@ public class SLAMonWorkItemHandler implements WorkItemHandler {
             @Override
             public void failed(Task task) {
 
+                commitEvent(task, false);
+
                 synchronized (mItemIdMap) {
                     mItemIdMap.remove(localWorkItemId);
                 }
@@ -152,6 +165,12 @@ public class SLAMonWorkItemHandler implements WorkItemHandler {
                     }
                 }
             }
+
+            private void commitEvent(Task task, boolean succeeded) {
+                if (WORK_ITEM_EVENT.isEnabled()) {
+                    WORK_ITEM_EVENT.commit(task.task_id, task.task_type, (System.nanoTime() - executeTime) / 1000000, succeeded);
+                }
+            }
         });
     }
 
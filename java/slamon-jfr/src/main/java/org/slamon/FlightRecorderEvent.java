@@ -0,0 +1,143 @@
+package org.slamon;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Custom JDK Flight Recorder event type. Event types are defined at runtime through
+ * jdk.jfr.EventFactory, accessed by reflection to keep the library compatible with
+ * platforms without Flight Recorder, such as Java 6 and Android, where events are
+ * never enabled.
+ * <p>
+ * Values are only allocated for events committed while enabled:
+ * <pre>
+ * if (EVENT.isEnabled()) {
+ *     EVENT.commit(taskId, taskType, durationMs);
+ * }
+ * </pre>
+ */
+class FlightRecorderEvent {
+
+    final private Logger logger = Logger.getLogger(FlightRecorderEvent.class.getCanonicalName());
+    final private String mName;
+    final private String mLabel;
+    final private List<Object[]> mFields = new ArrayList<Object[]>();
+    // jdk.jfr.EventFactory of the event type, null if not available
+    private Object mFactory;
+    private Method mNewEvent;
+    private Method mSet;
+    private Method mCommit;
+    private Method mIsEnabled;
+    private Object mEventType;
+
+    /**
+     * @param name  event type name, e.g. org.slamon.AgentTask
+     * @param label human readable name of the event type
+     */
+    FlightRecorderEvent(String name, String label) {
+        mName = name;
+        mLabel = label;
+    }
+
+    /**
+     * Add field to the event type, in the order of the values given to {@link #commit(Object...)}.
+     *
+     * @param type  field type, a primitive type or String
+     * @param name  field name
+     * @param label human readable name of the field
+     */
+    FlightRecorderEvent field(Class<?> type, String name, String label) {
+        mFields.add(new Object[]{type, name, label, null});
+        return this;
+    }
+
+    /**
+     * Add duration field in milliseconds to the event type.
+     */
+    FlightRecorderEvent timespan(String name, String label) {
+        mFields.add(new Object[]{long.class, name, label, "MILLISECONDS"});
+        return this;
+    }
+
+    /**
+     * Register the event type with Flight Recorder, if available.
+     */
+    FlightRecorderEvent register() {
+        try {
+            Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+            Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+            List<Object> eventAnnotations = new ArrayList<Object>();
+            eventAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), mName));
+            eventAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), mLabel));
+            eventAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"SLAMon"}));
+            // Stack traces are not needed to tell where the time went, and would add to the cost
+            eventAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+
+            Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Constructor<?> descriptor = descriptorClass.getConstructor(Class.class, String.class, List.class);
+            List<Object> fields = new ArrayList<Object>();
+            for (Object[] field : mFields) {
+                List<Object> fieldAnnotations = new ArrayList<Object>();
+                fieldAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), field[2]));
+                if (field[3] != null) {
+                    fieldAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Timespan"), field[3]));
+                }
+                fields.add(descriptor.newInstance(field[0], field[1], fieldAnnotations));
+            }
+
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            mFactory = factoryClass.getMethod("create", List.class, List.class)
+                    .invoke(null, eventAnnotations, fields);
+            mNewEvent = factoryClass.getMethod("newEvent");
+            mEventType = factoryClass.getMethod("getEventType").invoke(mFactory);
+            mIsEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            mSet = eventClass.getMethod("set", int.class, Object.class);
+            mCommit = eventClass.getMethod("commit");
+        } catch (ClassNotFoundException e) {
+            mFactory = null;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to register Flight Recorder event " + mName + ": " + e);
+            mFactory = null;
+        }
+        return this;
+    }
+
+    /**
+     * @return true if a running recording has the event enabled
+     */
+    boolean isEnabled() {
+        if (mFactory == null) {
+            return false;
+        }
+        try {
+            return (Boolean) mIsEnabled.invoke(mEventType);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Commit event with the given field values.
+     *
+     * @param values values of the fields in the order they were added
+     */
+    void commit(Object... values) {
+        if (mFactory == null) {
+            return;
+        }
+        try {
+            Object event = mNewEvent.invoke(mFactory);
+            for (int i = 0; i < values.length; ++i) {
+                mSet.invoke(event, i, values[i]);
+            }
+            mCommit.invoke(event);
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Failed to commit Flight Recorder event " + mName + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.slamon;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderEventTests {
+
+    @Test
+    public void testEventRecorded() throws Exception {
+        FlightRecorderEvent event = new FlightRecorderEvent("org.slamon.TestEvent", "Test Event")
+                .field(String.class, "taskId", "Task Id")
+                .timespan("execution", "Execution")
+                .field(boolean.class, "failed", "Failed")
+                .register();
+        assertFalse(event.isEnabled());
+
+        File file = File.createTempFile("slamon", ".jfr");
+        file.deleteOnExit();
+        Recording recording = new Recording();
+        try {
+            recording.enable("org.slamon.TestEvent");
+            recording.start();
+
+            // Enabled as soon as the recording starts
+            assertTrue(event.isEnabled());
+            event.commit("task-1", 1500L, true);
+
+            recording.stop();
+            recording.dump(file.toPath());
+        } finally {
+            recording.close();
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+        assertEquals(1, events.size());
+        RecordedEvent recorded = events.get(0);
+        assertEquals("task-1", recorded.getString("taskId"));
+        assertEquals(Duration.ofMillis(1500), recorded.getDuration("execution"));
+        assertTrue(recorded.getBoolean("failed"));
+    }
+}
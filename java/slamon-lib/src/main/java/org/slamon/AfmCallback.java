@@ -0,0 +1,18 @@
+package org.slamon;
+
+/**
+ * Callback for the outcome of an asynchronous AFM request.
+ * Callbacks are called from the I/O thread of the transport, so they must not block.
+ *
+ * @param <T> type of the request result
+ */
+public interface AfmCallback<T> {
+
+    void completed(T result);
+
+    /**
+     * @param error {@link AfmCommunicator.FatalException} or {@link AfmCommunicator.TemporaryException}
+     */
+    void failed(Exception error);
+
+}
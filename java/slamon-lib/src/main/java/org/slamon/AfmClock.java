@@ -0,0 +1,48 @@
+package org.slamon;
+
+/**
+ * Estimates the offset of the AFM clock from the local clock, so that return times
+ * given by the AFM can be scheduled locally regardless of clock skew between the two.
+ * Each sample places the AFM time in the middle of the request round trip.
+ */
+class AfmClock {
+
+    // Weight of the newest sample in the moving average
+    private static final double SMOOTHING = 0.2;
+
+    // Samples from longer round trips, such as held long poll requests, are too uncertain
+    static final long MAX_SAMPLE_ROUND_TRIP_MS = 2000;
+
+    private double mOffsetMs;
+    private boolean mSampled = false;
+
+    /**
+     * Record AFM time of a response.
+     *
+     * @param requestTimeMs  local time when the request was sent
+     * @param responseTimeMs local time when the response was received
+     * @param afmTimeMs      AFM time of the response
+     * @return true if the sample was used
+     */
+    synchronized boolean sample(long requestTimeMs, long responseTimeMs, long afmTimeMs) {
+        long roundTripMs = responseTimeMs - requestTimeMs;
+        if (roundTripMs < 0 || roundTripMs > MAX_SAMPLE_ROUND_TRIP_MS) {
+            return false;
+        }
+        long offsetMs = afmTimeMs - (requestTimeMs + roundTripMs / 2);
+        if (!mSampled) {
+            mOffsetMs = offsetMs;
+            mSampled = true;
+        } else {
+            mOffsetMs += SMOOTHING * (offsetMs - mOffsetMs);
+        }
+        return true;
+    }
+
+    /**
+     * @return smoothed AFM time minus local time in milliseconds, 0 until sampled
+     */
+    synchronized long offset() {
+        return Math.round(mOffsetMs);
+    }
+}
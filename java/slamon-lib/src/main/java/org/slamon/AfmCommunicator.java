@@ -1,17 +1,28 @@
 package org.slamon;
 
 import com.google.api.client.http.*;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.Json;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.gson.Gson;
 import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
@@ -20,16 +31,84 @@ import java.util.logging.Logger;
  */
 public class AfmCommunicator {
 
-    HttpRequestFactory httpRequests = new NetHttpTransport().createRequestFactory();
+    /**
+     * Protocol version that adds posting results of several tasks in a single request.
+     */
+    public static final int BATCH_RESULTS_PROTOCOL = 2;
+
+    /**
+     * Protocol version that adds long polling, the AFM holds task requests until tasks are available.
+     */
+    public static final int LONG_POLL_PROTOCOL = 3;
+
+    /**
+     * Protocol version that adds capability fingerprints, capabilities are sent only when
+     * the AFM does not know them by their fingerprint.
+     */
+    public static final int CAPABILITY_HASH_PROTOCOL = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Protocols rejected by the AFM are tried again after this time, as the request may have been
+    // rejected for other reasons, or the AFM may have been upgraded meanwhile
+    static final long PROTOCOL_RETRY_INTERVAL_MS = 10 * 60 * 1000;
+
+    // Format of the HTTP Date header, e.g. Sun, 06 Nov 1994 08:49:37 GMT
+    private static final DateTimeFormatter HTTP_DATE_FORMAT =
+            DateTimeFormat.forPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'").withZoneUTC().withLocale(Locale.US);
+
+    static final FlightRecorderEvent REQUEST_EVENT = new FlightRecorderEvent("org.slamon.AfmRequest", "AFM Request")
+            .field(String.class, "url", "URL")
+            .timespan("request", "Request")
+            .field(String.class, "error", "Error")
+            .register();
+
+    HttpRequestFactory httpRequests;
     private JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
     private String afmServerURL;
     private Logger logger = Logger.getLogger(AfmCommunicator.class.getCanonicalName());
+    private volatile boolean batchResultsSupported = true;
+    private volatile boolean longPollSupported = true;
+    private volatile boolean capabilityHashSupported = true;
+    // Time to try protocols rejected by the AFM again, 0 if none are to be tried again
+    private volatile long longPollRetryTime = 0;
+    private volatile long capabilityHashRetryTime = 0;
+    private volatile long protocolRetryIntervalMs = PROTOCOL_RETRY_INTERVAL_MS;
+    final private Map<String, String> acceptedCapabilityHashes = new ConcurrentHashMap<String, String>();
+    // Templates by agent id, so that identities sharing the communicator keep their encoded requests
+    final private ConcurrentMap<String, TasksRequestTemplate> tasksRequestTemplates =
+            new ConcurrentHashMap<String, TasksRequestTemplate>();
+    private GenericUrl tasksUrl;
+    final private AfmClock afmClock = new AfmClock();
+    private MetricsRegistry metrics = new MetricsRegistry();
+    private AsyncHttpTransport asyncTransport;
 
     public AfmCommunicator(String url) {
+        this(url, PooledHttpTransport.getShared());
+    }
+
+    /**
+     * @param url       AFM address
+     * @param transport HTTP transport for AFM requests, shared keep-alive connection pool by default
+     */
+    public AfmCommunicator(String url, HttpTransport transport) {
         this.afmServerURL = url;
         if (!afmServerURL.endsWith("/")) {
             this.afmServerURL += "/";
         }
+        this.httpRequests = transport.createRequestFactory();
+    }
+
+    /**
+     * Set registry to record request metrics in, see {@link MetricsRegistry}.
+     *
+     * @param metrics metrics registry
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
     }
 
     /**
@@ -44,27 +123,253 @@ public class AfmCommunicator {
      */
     public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities,
                              int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
-        DateTime result;
-        TasksRequestResponse requestResponse;
-        TasksRequest tasksRequest = new TasksRequest(1, agentId, agentName, agentCapabilities, maxTasks);
-        GenericUrl genericUrl = new GenericUrl(afmServerURL + "tasks/");
-        HttpResponse response = sendPostRequest(tasksRequest, genericUrl);
+        return requestTasks(agentId, agentName, agentCapabilities, Collections.<String, Integer>emptyMap(),
+                maxTasks, receivedTasks);
+    }
+
+    /**
+     * Connects to the AFM and requests tasks that the agent is capable of performing,
+     * limiting the number of tasks of some task types.
+     *
+     * @param agentId            Agent's uuid
+     * @param agentName          Agent's name
+     * @param agentCapabilities  Map of tasks agent is capable of doing and their version number
+     * @param capabilityMaxTasks Map of task types and the maximum amount of tasks of the type
+     *                           the agent is capable of taking, for task types with own limits
+     * @param maxTasks           Maximum amount of tasks the agent is capable of taking at once
+     * @param receivedTasks      Collection to which received Tasks are appended
+     * @return timestamp from AFM when to contact again for tasks
+     */
+    public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities,
+                                 Map<String, Integer> capabilityMaxTasks, int maxTasks,
+                                 Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+        return requestTasks(null, agentId, agentName, agentCapabilities, capabilityMaxTasks, maxTasks,
+                receivedTasks);
+    }
+
+    /**
+     * Connects to the AFM and requests tasks, waiting until tasks are available if the AFM
+     * supports long polling. The AFM holds the request open up to the given timeout and
+     * responds as soon as it has tasks for the agent. AFMs not supporting long polling
+     * respond right away, after which {@link #isLongPollSupported()} returns false and
+     * the agent should poll again at the returned time.
+     *
+     * @param agentId            Agent's uuid
+     * @param agentName          Agent's name
+     * @param agentCapabilities  Map of tasks agent is capable of doing and their version number
+     * @param capabilityMaxTasks Map of task types and the maximum amount of tasks of the type
+     *                           the agent is capable of taking, for task types with own limits
+     * @param maxTasks           Maximum amount of tasks the agent is capable of taking at once
+     * @param waitTimeoutMs      Maximum time for the AFM to hold the request, in milliseconds
+     * @param receivedTasks      Collection to which received Tasks are appended
+     * @return timestamp from AFM when to contact again for tasks at the latest
+     */
+    public DateTime requestTasksLongPoll(String agentId, String agentName, Map<String, Integer> agentCapabilities,
+                                         Map<String, Integer> capabilityMaxTasks, int maxTasks, long waitTimeoutMs,
+                                         Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+        int waitTimeout = (int) Math.max(1, waitTimeoutMs / 1000);
+        return requestTasks(waitTimeout, agentId, agentName, agentCapabilities, capabilityMaxTasks, maxTasks,
+                receivedTasks);
+    }
+
+    /**
+     * Request tasks with the newest protocol the AFM is known to support, falling back
+     * to older protocols when the AFM rejects a request or responds with an older protocol.
+     *
+     * @param waitTimeout time for the AFM to hold a long poll request in seconds, or null not to wait
+     */
+    private DateTime requestTasks(Integer waitTimeout, String agentId, String agentName,
+                                  Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks,
+                                  int maxTasks, Collection<Task> receivedTasks)
+            throws FatalException, TemporaryException {
+        retryRejectedProtocols();
+        while (true) {
+            boolean longPoll = waitTimeout != null && longPollSupported;
+            String hash = capabilityHashSupported ? Capabilities.fingerprint(agentCapabilities) : null;
+            // Capabilities are left out once the AFM has accepted them with the same fingerprint
+            boolean sendCapabilities = hash == null || !hash.equals(acceptedCapabilityHashes.get(agentId));
+            int protocol = hash != null ? CAPABILITY_HASH_PROTOCOL : longPoll ? LONG_POLL_PROTOCOL : 1;
+
+            HttpResponse response;
+            long requestTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            try {
+                response = sendTasksRequest(protocol, longPoll ? waitTimeout : null, hash, sendCapabilities,
+                        agentId, agentName, agentCapabilities, capabilityMaxTasks, maxTasks);
+            } catch (FatalException e) {
+                Integer echoed = responseProtocol(e.getResponseContent());
+                if (protocol == 1 || (echoed != null && echoed >= protocol)) {
+                    // The AFM supports the protocol, and rejected the request for other reasons
+                    throw e;
+                }
+                // AFMs supporting only older protocols reject the request
+                long retryTime = System.currentTimeMillis() + protocolRetryIntervalMs;
+                if (hash != null) {
+                    logger.warning("AFM rejected capability fingerprint, sending full capabilities: "
+                            + e.getMessage());
+                    capabilityHashSupported = false;
+                    capabilityHashRetryTime = retryTime;
+                } else {
+                    logger.warning("AFM rejected long poll request, falling back to polling: " + e.getMessage());
+                    longPollSupported = false;
+                    longPollRetryTime = retryTime;
+                }
+                continue;
+            }
+
+            sampleClock(requestTime, response.getHeaders().getDate());
+            TasksRequestResponse requestResponse = readTasksResponse(response, receivedTasks);
+            metrics.histogram(longPoll ? "afm.long_poll_ms" : "afm.poll_ms")
+                    .record((System.nanoTime() - startNanos) / 1000000);
+            int responseProtocol = requestResponse.protocol != null ? requestResponse.protocol : 1;
+            if (hash != null && responseProtocol < CAPABILITY_HASH_PROTOCOL) {
+                logger.warning("AFM does not support capability fingerprints, sending full capabilities");
+                capabilityHashSupported = false;
+                capabilityHashRetryTime = 0;
+                acceptedCapabilityHashes.clear();
+            }
+            if (longPoll && responseProtocol < LONG_POLL_PROTOCOL) {
+                logger.warning("AFM does not support long polling, falling back to polling");
+                longPollSupported = false;
+                longPollRetryTime = 0;
+            }
+            if (hash != null && responseProtocol >= CAPABILITY_HASH_PROTOCOL) {
+                if (Boolean.TRUE.equals(requestResponse.capabilities_required)) {
+                    acceptedCapabilityHashes.remove(agentId);
+                    if (!sendCapabilities) {
+                        // AFM does not know the fingerprint, for example after a restart
+                        logger.info("AFM requested capabilities, resending");
+                        continue;
+                    }
+                } else {
+                    acceptedCapabilityHashes.put(agentId, hash);
+                }
+            }
+            return returnTime(requestResponse);
+        }
+    }
 
+    /**
+     * Enable protocols disabled by a rejected request again, once their retry time has passed.
+     * Protocols the AFM has answered with an older protocol are not tried again.
+     */
+    private void retryRejectedProtocols() {
+        long now = System.currentTimeMillis();
+        if (capabilityHashRetryTime != 0 && now >= capabilityHashRetryTime) {
+            logger.info("Trying capability fingerprints again");
+            capabilityHashRetryTime = 0;
+            capabilityHashSupported = true;
+        }
+        if (longPollRetryTime != 0 && now >= longPollRetryTime) {
+            logger.info("Trying long polling again");
+            longPollRetryTime = 0;
+            longPollSupported = true;
+        }
+    }
+
+    /**
+     * Set time after which protocols rejected by the AFM are tried again.
+     *
+     * @param intervalMs retry interval in milliseconds
+     */
+    void setProtocolRetryInterval(long intervalMs) {
+        protocolRetryIntervalMs = intervalMs;
+    }
+
+    /**
+     * @return false if the AFM has not accepted a long poll request
+     */
+    public boolean isLongPollSupported() {
+        return longPollSupported;
+    }
+
+    /**
+     * Get estimated offset of the AFM clock from the local clock, sampled from the Date header
+     * of task request responses. Return times given by the AFM are in AFM time, so the local
+     * time to poll again is the return time minus the offset.
+     *
+     * @return AFM time minus local time in milliseconds, 0 until estimated
+     */
+    public long getClockOffset() {
+        return afmClock.offset();
+    }
+
+    /**
+     * Update the AFM clock offset estimate from a response.
+     *
+     * @param requestTimeMs local time when the request was sent
+     * @param date          Date header of the response, or null
+     */
+    private void sampleClock(long requestTimeMs, String date) {
+        long responseTimeMs = System.currentTimeMillis();
+        if (date == null) {
+            return;
+        }
         try {
-            // Parse
-            String parsed = response.parseAsString();
-            requestResponse = new Gson().fromJson(parsed, TasksRequestResponse.class);
-            // Extract info
-            receivedTasks.addAll(requestResponse.tasks);
-            result = new DateTime(requestResponse.return_time);
+            // Date header is truncated to whole seconds, the AFM time is half a second later on average
+            afmClock.sample(requestTimeMs, responseTimeMs, HTTP_DATE_FORMAT.parseMillis(date) + 500);
         } catch (IllegalArgumentException e) {
-            throw new FatalException(String.format("Failed to parse response JSON's return time field: %s",
-                    e.getMessage()));
+            logger.fine("Ignoring invalid Date header: " + date);
+        }
+    }
+
+    /**
+     * Enable or disable sending capability fingerprints. When enabled, capabilities are sent
+     * in full only until the AFM has accepted them, after which task requests carry just the
+     * fingerprint until the capabilities change or the AFM asks for them again.
+     * Enabled by default, and disabled automatically for AFMs not supporting fingerprints.
+     *
+     * @param enabled false to send full capabilities in every task request
+     */
+    public void setCapabilityHashEnabled(boolean enabled) {
+        capabilityHashSupported = enabled;
+        capabilityHashRetryTime = 0;
+        acceptedCapabilityHashes.clear();
+    }
+
+    private HttpResponse sendTasksRequest(int protocol, Integer waitTimeout, String capabilitiesHash,
+                                          boolean sendCapabilities, String agentId, String agentName,
+                                          Map<String, Integer> agentCapabilities,
+                                          Map<String, Integer> capabilityMaxTasks, int maxTasks)
+            throws FatalException, TemporaryException {
+        byte[] tasksRequest;
+        try {
+            tasksRequest = tasksRequestTemplate(agentId).encode(protocol, waitTimeout, capabilitiesHash, sendCapabilities,
+                    agentId, agentName, agentCapabilities, capabilityMaxTasks, maxTasks);
+        } catch (IOException e) {
+            throw new FatalException(String.format("Failed to encode task request: %s", e.getMessage()));
+        }
+        if (tasksUrl == null) {
+            tasksUrl = new GenericUrl(afmServerURL + "tasks/");
+        }
+        // Held requests must not time out before the AFM responds
+        int extraReadTimeout = waitTimeout != null ? waitTimeout * 1000 : 0;
+        return sendPostRequest(new ByteArrayContent(Json.MEDIA_TYPE, tasksRequest), tasksUrl, extraReadTimeout);
+    }
+
+    private TasksRequestResponse readTasksResponse(HttpResponse response, Collection<Task> receivedTasks)
+            throws FatalException {
+        try {
+            // Parse tasks directly from the response stream, handing each to the caller as it is read
+            Reader content = new InputStreamReader(response.getContent(), response.getContentCharset());
+            try {
+                return TasksRequestResponse.read(content, receivedTasks);
+            } finally {
+                content.close();
+            }
         } catch (Exception e) {
             throw new FatalException(
                     String.format("Failed to request tasks successfully: %s", e.getMessage()));
         }
-        return result;
+    }
+
+    private DateTime returnTime(TasksRequestResponse requestResponse) throws FatalException {
+        try {
+            return new DateTime(requestResponse.return_time);
+        } catch (IllegalArgumentException e) {
+            throw new FatalException(String.format("Failed to parse response JSON's return time field: %s",
+                    e.getMessage()));
+        }
     }
 
     /**
@@ -75,11 +380,266 @@ public class AfmCommunicator {
      * @throws FatalException
      */
     public void postResults(Task task) throws FatalException, TemporaryException {
-        TaskResultRequest postRequest = new TaskResultRequest(task);
+        byte[] post = encodeResults(task);
         GenericUrl genericUrl = new GenericUrl(afmServerURL + "tasks/response");
-        String post = new Gson().toJson(postRequest);
-        logger.info(String.format("Content of Result post: %s", post));
-        sendPostRequest(postRequest, genericUrl);
+        logger.info(String.format("Content of Result post: %s", new String(post, UTF_8)));
+        long startNanos = System.nanoTime();
+        ignoreResponse(sendPostRequest(new ByteArrayContent(Json.MEDIA_TYPE, post), genericUrl));
+        metrics.histogram("afm.post_results_ms").record((System.nanoTime() - startNanos) / 1000000);
+    }
+
+    /**
+     * Posts results of several tasks to the AFM in a single request.
+     * If the AFM rejects the batch, the caller should fall back to posting the results
+     * one by one with {@link #postResults(Task)}. When the AFM rejects the protocol itself,
+     * for example because it only supports protocol 1, batches are also disabled for this
+     * communicator. An AFM rejecting the content of a batch echoes the batch protocol.
+     *
+     * @param tasks Finished tasks with results
+     * @throws FatalException
+     * @throws TemporaryException
+     */
+    public void postResults(List<Task> tasks) throws FatalException, TemporaryException {
+        byte[] post = encodeResults(tasks);
+        GenericUrl genericUrl = new GenericUrl(afmServerURL + "tasks/response");
+        logger.info(String.format("Posting results of %d tasks in a batch", tasks.size()));
+        try {
+            long startNanos = System.nanoTime();
+            ignoreResponse(sendPostRequest(new ByteArrayContent(Json.MEDIA_TYPE, post), genericUrl));
+            metrics.histogram("afm.post_results_ms").record((System.nanoTime() - startNanos) / 1000000);
+        } catch (FatalException e) {
+            rejectedBatch(e);
+            throw e;
+        }
+    }
+
+    private byte[] encodeResults(Task task) throws FatalException {
+        try {
+            return TaskResultEncoder.encode(jsonFactory, task);
+        } catch (IOException e) {
+            throw new FatalException(String.format("Failed to encode results: %s", e.getMessage()));
+        }
+    }
+
+    private byte[] encodeResults(List<Task> tasks) throws FatalException {
+        try {
+            return TaskResultEncoder.encode(jsonFactory, BATCH_RESULTS_PROTOCOL, tasks);
+        } catch (IOException e) {
+            throw new FatalException(String.format("Failed to encode results: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Disable result batches if the AFM rejected a batch without echoing the batch protocol.
+     */
+    private void rejectedBatch(Exception error) {
+        Integer protocol = error instanceof FatalException
+                ? responseProtocol(((FatalException) error).getResponseContent()) : null;
+        if (protocol != null && protocol >= BATCH_RESULTS_PROTOCOL) {
+            logger.warning("AFM rejected results in batch, falling back to single results: " + error.getMessage());
+        } else {
+            logger.warning("AFM rejected result batch, disabling batches: " + error.getMessage());
+            batchResultsSupported = false;
+        }
+    }
+
+    /**
+     * @return protocol echoed in a JSON response, or null if the response has none
+     */
+    private static Integer responseProtocol(String content) {
+        if (content == null || content.isEmpty()) {
+            return null;
+        }
+        try {
+            ProtocolResponse response = new Gson().fromJson(content, ProtocolResponse.class);
+            return response != null ? response.protocol : null;
+        } catch (RuntimeException e) {
+            // Not JSON, for example an error page of an older AFM
+            return null;
+        }
+    }
+
+    /**
+     * @return template encoding the task requests of the agent
+     */
+    TasksRequestTemplate tasksRequestTemplate(String agentId) {
+        TasksRequestTemplate template = tasksRequestTemplates.get(agentId);
+        if (template == null) {
+            tasksRequestTemplates.putIfAbsent(agentId, new TasksRequestTemplate(jsonFactory));
+            template = tasksRequestTemplates.get(agentId);
+        }
+        return template;
+    }
+
+    /**
+     * Set transport for the asynchronous requests. By default asynchronous requests
+     * share a single {@link NioHttpTransport}.
+     *
+     * @param transport non-blocking HTTP transport
+     */
+    public synchronized void setAsyncTransport(AsyncHttpTransport transport) {
+        asyncTransport = transport;
+    }
+
+    private synchronized AsyncHttpTransport getAsyncTransport() {
+        if (asyncTransport == null) {
+            asyncTransport = NioHttpTransport.getShared();
+        }
+        return asyncTransport;
+    }
+
+    /**
+     * Requests tasks like {@link #requestTasks(String, String, Map, Map, int, Collection)},
+     * without blocking the calling thread. Received tasks are appended to the collection
+     * from the I/O thread of the transport before the request completes.
+     *
+     * @param callback callback to notify when the request completes, or null
+     * @return future timestamp from AFM when to contact again for tasks
+     */
+    public AfmFuture<DateTime> requestTasksAsync(String agentId, String agentName,
+                                                 Map<String, Integer> agentCapabilities,
+                                                 Map<String, Integer> capabilityMaxTasks, int maxTasks,
+                                                 final Collection<Task> receivedTasks,
+                                                 AfmCallback<DateTime> callback) {
+        final AfmFuture<DateTime> future = new AfmFuture<DateTime>(callback);
+        byte[] tasksRequest;
+        try {
+            tasksRequest = tasksRequestTemplate(agentId).encode(1, agentId, agentName, agentCapabilities, capabilityMaxTasks,
+                    maxTasks);
+        } catch (IOException e) {
+            future.fail(new FatalException(String.format("Failed to encode task request: %s", e.getMessage())));
+            return future;
+        }
+
+        final long requestTime = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        sendAsyncPostRequest(tasksRequest, afmServerURL + "tasks/", new AfmCallback<AsyncHttpTransport.Response>() {
+            @Override
+            public void completed(AsyncHttpTransport.Response response) {
+                sampleClock(requestTime, response.getHeader("Date"));
+                try {
+                    Reader content = new InputStreamReader(new ByteArrayInputStream(response.getContent()),
+                            response.getContentCharset());
+                    DateTime returnTime = new DateTime(TasksRequestResponse.read(content, receivedTasks).return_time);
+                    metrics.histogram("afm.poll_ms").record((System.nanoTime() - startNanos) / 1000000);
+                    future.complete(returnTime);
+                } catch (IllegalArgumentException e) {
+                    future.fail(new FatalException(String.format(
+                            "Failed to parse response JSON's return time field: %s", e.getMessage())));
+                } catch (Exception e) {
+                    future.fail(new FatalException(
+                            String.format("Failed to request tasks successfully: %s", e.getMessage())));
+                }
+            }
+
+            @Override
+            public void failed(Exception error) {
+                future.fail(error);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Posts task results like {@link #postResults(Task)}, without blocking the calling thread.
+     *
+     * @param task     Finished task with results
+     * @param callback callback to notify when the request completes, or null
+     * @return future completing when the AFM has accepted the results
+     */
+    public AfmFuture<Void> postResultsAsync(Task task, AfmCallback<Void> callback) {
+        AfmFuture<Void> future = new AfmFuture<Void>(callback);
+        try {
+            postAsync(encodeResults(task), future, false);
+        } catch (FatalException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Posts results of several tasks like {@link #postResults(List)}, without blocking the calling thread.
+     *
+     * @param tasks    Finished tasks with results
+     * @param callback callback to notify when the request completes, or null
+     * @return future completing when the AFM has accepted the results
+     */
+    public AfmFuture<Void> postResultsAsync(List<Task> tasks, AfmCallback<Void> callback) {
+        AfmFuture<Void> future = new AfmFuture<Void>(callback);
+        try {
+            postAsync(encodeResults(tasks), future, true);
+        } catch (FatalException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    private void postAsync(byte[] content, final AfmFuture<Void> future, final boolean batch) {
+        sendAsyncPostRequest(content, afmServerURL + "tasks/response", new AfmCallback<AsyncHttpTransport.Response>() {
+            @Override
+            public void completed(AsyncHttpTransport.Response response) {
+                future.complete(null);
+            }
+
+            @Override
+            public void failed(Exception error) {
+                if (batch && error instanceof FatalException) {
+                    rejectedBatch(error);
+                }
+                future.fail(error);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous post with the same error handling as {@link #sendPostRequest(HttpContent, GenericUrl)}.
+     */
+    private void sendAsyncPostRequest(byte[] content, String url,
+                                      final AfmCallback<AsyncHttpTransport.Response> callback) {
+        logger.info(String.format("Sending asynchronous HTTP POST request to %s", url));
+        getAsyncTransport().post(url, Json.MEDIA_TYPE, content, new AsyncHttpTransport.Callback() {
+            @Override
+            public void completed(AsyncHttpTransport.Response response) {
+                int status = response.getStatusCode();
+                if (status >= 400 && status < 500) {
+                    metrics.counter("afm.fatal_errors").increment();
+                    String content = new String(response.getContent());
+                    callback.failed(new FatalException(String.format("AFM responded with client error status: %s\n%s",
+                            response.getReasonPhrase(), content), content));
+                } else if (status >= 500 && status < 600) {
+                    metrics.counter("afm.temporary_errors").increment();
+                    callback.failed(new TemporaryException(
+                            String.format("AFM responded with server error status: %s", response.getReasonPhrase())));
+                } else {
+                    callback.completed(response);
+                }
+            }
+
+            @Override
+            public void failed(IOException error) {
+                metrics.counter("afm.temporary_errors").increment();
+                callback.failed(new TemporaryException(
+                        String.format("Failed to send the request to AFM: %s", error.getMessage())));
+            }
+        });
+    }
+
+    /**
+     * @return false if the AFM has rejected the result batch protocol
+     */
+    public boolean isBatchResultsSupported() {
+        return batchResultsSupported;
+    }
+
+    /**
+     * Read and discard response content, so that the connection can be reused.
+     */
+    private void ignoreResponse(HttpResponse response) {
+        try {
+            response.ignore();
+        } catch (IOException e) {
+            logger.fine(String.format("Failed to read response content: %s", e.getMessage()));
+        }
     }
 
     /**
@@ -93,26 +653,67 @@ public class AfmCommunicator {
      */
     private HttpResponse sendPostRequest(PostRequest request, GenericUrl genericUrl)
             throws FatalException, TemporaryException {
+        return sendPostRequest(new JsonHttpContent(jsonFactory, request), genericUrl);
+    }
+
+    /**
+     * Single post attempt with given content
+     *
+     * @param content    Encoded request data
+     * @param genericUrl URL for posting
+     * @return HTTP Status code of the attempt
+     * @throws FatalException
+     * @throws TemporaryException
+     */
+    private HttpResponse sendPostRequest(HttpContent content, GenericUrl genericUrl)
+            throws FatalException, TemporaryException {
+        return sendPostRequest(content, genericUrl, 0);
+    }
+
+    /**
+     * Single post attempt with given content
+     *
+     * @param content          Encoded request data
+     * @param genericUrl       URL for posting
+     * @param extraReadTimeout Time in milliseconds to wait for the response in addition to the default timeout
+     * @return HTTP Status code of the attempt
+     * @throws FatalException
+     * @throws TemporaryException
+     */
+    private HttpResponse sendPostRequest(HttpContent content, GenericUrl genericUrl, int extraReadTimeout)
+            throws FatalException, TemporaryException {
         HttpResponse httpResponse = null;
         logger.info(String.format("Sending HTTP POST request to %s", genericUrl.toString()));
 
+        long requestTime = System.nanoTime();
+        String error = null;
         try {
             // Create request with JSON content
-            HttpRequest httpRequest = httpRequests.buildPostRequest(genericUrl,
-                    new JsonHttpContent(jsonFactory, request));
+            HttpRequest httpRequest = httpRequests.buildPostRequest(genericUrl, content);
             httpRequest.setParser(new JsonObjectParser(jsonFactory));
+            httpRequest.setReadTimeout(httpRequest.getReadTimeout() + extraReadTimeout);
             httpResponse = httpRequest.execute();
         } catch (HttpResponseException e) {
+            error = "HTTP " + e.getStatusCode();
             if (e.getStatusCode() >= 400 && e.getStatusCode() < 500) {
+                metrics.counter("afm.fatal_errors").increment();
 
-                throw new FatalException(String.format("AFM responded with client error status: %s\n%s", e.getStatusMessage(), e.getContent()));
+                throw new FatalException(String.format("AFM responded with client error status: %s\n%s", e.getStatusMessage(), e.getContent()),
+                        e.getContent());
             } else if (e.getStatusCode() >= 500 && e.getStatusCode() < 600) {
+                metrics.counter("afm.temporary_errors").increment();
                 throw new TemporaryException(
                         String.format("AFM responded with server error status: %s", e.getStatusMessage()));
             }
         } catch (IOException e) {
+            error = String.valueOf(e.getMessage());
+            metrics.counter("afm.temporary_errors").increment();
             throw new TemporaryException(
                     String.format("Failed to send the request to AFM: %s", e.getMessage()));
+        } finally {
+            if (REQUEST_EVENT.isEnabled()) {
+                REQUEST_EVENT.commit(genericUrl.toString(), (System.nanoTime() - requestTime) / 1000000, error);
+            }
         }
 
         return httpResponse;
@@ -133,9 +734,30 @@ public class AfmCommunicator {
      * most likely due to discontinued legacy protocol support
      */
     public static class FatalException extends Exception {
+        private final String responseContent;
+
         public FatalException(String message) {
+            this(message, null);
+        }
+
+        public FatalException(String message, String responseContent) {
             super(message);
+            this.responseContent = responseContent;
         }
+
+        /**
+         * @return content of the AFM error response, or null if the AFM did not respond
+         */
+        public String getResponseContent() {
+            return responseContent;
+        }
+    }
+
+    /**
+     * Protocol echoed by an AFM in its responses.
+     */
+    private static class ProtocolResponse {
+        Integer protocol;
     }
 }
 
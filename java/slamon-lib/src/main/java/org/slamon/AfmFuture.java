@@ -0,0 +1,100 @@
+package org.slamon;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pending result of an asynchronous AFM request. Failures are reported by {@link #get()}
+ * as an {@link ExecutionException} caused by {@link AfmCommunicator.FatalException} or
+ * {@link AfmCommunicator.TemporaryException}. Requests can not be cancelled.
+ *
+ * @param <T> type of the request result
+ */
+public class AfmFuture<T> implements Future<T> {
+
+    final private Logger logger = Logger.getLogger(AfmFuture.class.getCanonicalName());
+    final private AfmCallback<T> mCallback;
+    final private CountDownLatch mDone = new CountDownLatch(1);
+    final private AtomicBoolean mFinished = new AtomicBoolean(false);
+    private T mResult;
+    private Exception mError;
+
+    /**
+     * @param callback callback to notify when the request finishes, or null
+     */
+    AfmFuture(AfmCallback<T> callback) {
+        mCallback = callback;
+    }
+
+    void complete(T result) {
+        if (!mFinished.compareAndSet(false, true)) {
+            return;
+        }
+        mResult = result;
+        mDone.countDown();
+        if (mCallback != null) {
+            try {
+                mCallback.completed(result);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "AFM request callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    void fail(Exception error) {
+        if (!mFinished.compareAndSet(false, true)) {
+            return;
+        }
+        mError = error;
+        mDone.countDown();
+        if (mCallback != null) {
+            try {
+                mCallback.failed(error);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "AFM request callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException("AFM request did not finish in time");
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mResult;
+    }
+}
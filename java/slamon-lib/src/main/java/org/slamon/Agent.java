@@ -2,8 +2,12 @@ package org.slamon;
 
 import org.joda.time.DateTime;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -13,26 +17,126 @@ import java.util.logging.Logger;
  */
 public class Agent implements Runnable {
 
+    /**
+     * Default lower bound for the time between two consecutive polls
+     * when polling early after executors have become available.
+     */
+    public static final long DEFAULT_MIN_POLL_INTERVAL_MS = 1000;
+
+    /**
+     * Task data key for overriding the execution timeout of a task, in seconds.
+     */
+    public static final String TASK_TIMEOUT_KEY = "task_timeout";
+
+    /**
+     * Default upper bound for the random delay added to return times given by the AFM.
+     */
+    public static final long DEFAULT_MAX_POLL_JITTER_MS = 5000;
+
+    static final FlightRecorderEvent TASK_EVENT = new FlightRecorderEvent("org.slamon.AgentTask", "Agent Task")
+            .field(String.class, "taskId", "Task Id")
+            .field(String.class, "taskType", "Task Type")
+            .timespan("claimToStart", "Claim To Start")
+            .timespan("execution", "Execution")
+            .field(String.class, "error", "Error")
+            .register();
+
     final private AfmCommunicator mAfm;
     final private List<AgentEventListener> mEventListeners = new CopyOnWriteArrayList<AgentEventListener>();
     final private Logger logger = Logger.getLogger(Agent.class.getCanonicalName());
     private boolean mRun = false;
     private String mAgentId;
     private String mAgentName;
-    private ThreadPoolExecutor mExecutor;
+    private ExecutorService mExecutor;
+    private int mConcurrency;
+    private boolean mThreadPerTask = false;
+    private ScheduledExecutorService mDeadlines;
+    final private ConcurrentMap<String, Bulkhead> mBulkheads = new ConcurrentHashMap<String, Bulkhead>();
+    final private ResultSender mResultSender;
+    final private CircuitBreaker mCircuitBreaker = new CircuitBreaker("afm");
+    final private MetricsRegistry mMetrics;
+    // Tasks executing, excluding tasks waiting in the prefetch backlog or for their bulkhead
+    final private AtomicInteger mRunningTasks = new AtomicInteger();
+    private EventDispatcher mEvents;
     private Thread mMainThread;
     private ConnectionState mConnectionState = ConnectionState.DISCONNECTED;
+    final private Object mPollSignal = new Object();
+    final private AtomicInteger mActiveTasks = new AtomicInteger();
+    private long mMinPollIntervalMs = DEFAULT_MIN_POLL_INTERVAL_MS;
+    final private PrefetchEstimator mPrefetchEstimator = new PrefetchEstimator();
+    private int mPrefetchDepth = 0;
+    private long mLongPollTimeoutMs = 0;
+    private long mMaxPollJitterMs = DEFAULT_MAX_POLL_JITTER_MS;
+    final private Random mJitterRandom = new Random();
+    // Pool hosting the agent, null for a standalone agent
+    private AgentPool mPool;
+    // Next poll of a pooled agent, guarded by mPollSignal
+    private Future<?> mNextPoll;
+    private long mNextPollTime;
+    private long mEarliestPollTime;
+    private boolean mCapacityLimited = false;
 
     public Agent(String id, String name, String url) {
+        this(id, name, new AfmCommunicator(url));
+    }
+
+    Agent(String id, String name, AfmCommunicator afm) {
         mAgentId = id;
         mAgentName = name;
-        mAfm = new AfmCommunicator(url);
+        mAfm = afm;
+        mResultSender = new ResultSender(mAfm);
+        mMetrics = new MetricsRegistry();
+        mEvents = new EventDispatcher(mEventListeners, EventDispatcher.DEFAULT_CAPACITY, EventOverflow.DROP_OLDEST);
+        reportCircuitState(mCircuitBreaker);
+        reportCircuitState(mResultSender.getCircuitBreaker());
+        mAfm.setMetrics(mMetrics);
+        registerGauges();
     }
 
-    Agent(String id, String name, AfmCommunicator afm) {
+    /**
+     * Create agent identity of an {@link AgentPool}, sharing the communicator, result sender
+     * and metrics with the other identities of the pool. Events of pooled agents are not delivered,
+     * so the event buffer is kept minimal.
+     */
+    Agent(String id, String name, AfmCommunicator afm, ResultSender resultSender, MetricsRegistry metrics) {
         mAgentId = id;
         mAgentName = name;
         mAfm = afm;
+        mResultSender = resultSender;
+        mMetrics = metrics;
+        mEvents = new EventDispatcher(mEventListeners, 1, EventOverflow.DROP_OLDEST);
+        reportCircuitState(mCircuitBreaker);
+    }
+
+    private void registerGauges() {
+        mMetrics.gauge("agent.active_tasks", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mActiveTasks.get();
+            }
+        });
+        mMetrics.gauge("agent.executor_utilization_percent", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mConcurrency > 0 ? mRunningTasks.get() * 100L / mConcurrency : 0;
+            }
+        });
+        mMetrics.gauge("results.queue_depth", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mResultSender.getQueueDepth();
+            }
+        });
+    }
+
+    private void reportCircuitState(CircuitBreaker circuitBreaker) {
+        circuitBreaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(CircuitBreaker breaker, CircuitBreaker.State state) {
+                logger.log(Level.INFO, "Circuit " + breaker.getName() + " changed to " + state);
+                mEvents.circuitStateChanged(breaker.getName(), state);
+            }
+        });
     }
 
     public static void registerHandler(TaskHandler taskHandler) {
@@ -47,9 +151,7 @@ public class Agent implements Runnable {
         if (mConnectionState != newState) {
             mConnectionState = newState;
 
-            for (AgentEventListener listener : mEventListeners) {
-                listener.connectionStateChanged(mConnectionState);
-            }
+            mEvents.connectionStateChanged(mConnectionState);
         }
     }
 
@@ -57,28 +159,386 @@ public class Agent implements Runnable {
         logger.addHandler(handler);
     }
 
+    /**
+     * Set the minimum time between two polls. When all advertised capacity was
+     * taken by the previous poll, the agent polls again as soon as an executor
+     * becomes available, but not sooner than this interval after the previous poll.
+     * The return time given by the AFM is always honored as the upper bound.
+     *
+     * @param intervalMs minimum poll interval in milliseconds
+     */
+    public void setMinimumPollInterval(long intervalMs) {
+        mMinPollIntervalMs = intervalMs;
+    }
+
+    /**
+     * Enable task prefetching. In prefetch mode the agent claims more tasks than it has executors
+     * and keeps them in a local backlog, so that a finishing executor can start the next task
+     * immediately instead of waiting for the next poll. The backlog depth is sized from observed
+     * task durations and poll intervals, bounded by the given depth.
+     *
+     * @param maxTasksPerExecutor maximum number of queued tasks per executor, 0 disables prefetching
+     */
+    public void setPrefetchDepth(int maxTasksPerExecutor) {
+        mPrefetchDepth = maxTasksPerExecutor;
+    }
+
+    /**
+     * Enable long polling. The AFM holds task requests open until it has tasks for the agent
+     * or the timeout expires, and the agent requests tasks again right away, so that new tasks
+     * start without waiting for the next poll. AFMs not supporting long polling are polled at
+     * the return times they give, as without long polling. A held request is not interrupted
+     * by {@link #shutdown(long)}, so shutdown may take up to the timeout.
+     *
+     * @param timeoutMs maximum time for the AFM to hold a request, 0 disables long polling
+     */
+    public void setLongPollTimeout(long timeoutMs) {
+        mLongPollTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Set the upper bound for the random delay added to each return time given by the AFM,
+     * so that agents given the same return time do not all poll at once. The delay is also
+     * limited to a tenth of the time until the return time.
+     *
+     * @param jitterMs maximum delay in milliseconds, 0 to poll exactly at the return time
+     */
+    public void setMaxPollJitter(long jitterMs) {
+        mMaxPollJitterMs = jitterMs;
+    }
+
+    /**
+     * Configure delivery of events to listeners. Events are buffered and delivered to
+     * listeners in a thread of their own, so that slow listeners do not delay the agent.
+     * By default the buffer holds 1024 events and the oldest events are dropped when it is full.
+     * Must be called before the agent is started.
+     *
+     * @param capacity number of undelivered events to buffer
+     * @param overflow policy for events published while the buffer is full
+     */
+    public void setEventDispatch(int capacity, EventOverflow overflow) {
+        mEvents = new EventDispatcher(mEventListeners, capacity, overflow);
+    }
+
+    /**
+     * @return number of events not delivered to listeners because the event buffer was full
+     */
+    public long getDroppedEventCount() {
+        return mEvents.getDroppedCount();
+    }
+
+    /**
+     * Store task results in a journal file until they have been posted. Results left unsent
+     * when the agent process exits are read from the journal and posted when the agent is started.
+     *
+     * @param file journal file, created if it does not exist
+     * @throws IOException if the journal file can not be opened
+     */
+    public void setResultJournal(File file) throws IOException {
+        mResultSender.setJournal(new ResultJournal(file));
+    }
+
     /**
      * Start the agent in a background thread.
      *
      * @param concurrentExecutors number of task executor threads
      */
     public void start(int concurrentExecutors) {
-        mExecutor = new ThreadPoolExecutor(concurrentExecutors, concurrentExecutors, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        start(new ThreadPoolExecutor(concurrentExecutors, concurrentExecutors, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>()), concurrentExecutors, false);
+    }
+
+    /**
+     * Start the agent in a background thread, running each task in a thread of its own.
+     * On Java 21 and later tasks run in virtual threads, making it cheap to run thousands
+     * of I/O bound tasks concurrently. On older platforms, such as Android, tasks run in
+     * platform threads of a cached thread pool.
+     * <p>
+     * Concurrency is limited by the given capacity instead of the number of threads,
+     * and the capacity is advertised to the AFM as the maximum number of tasks.
+     * Task prefetching is not used in this mode, as every task starts immediately.
+     *
+     * @param maxConcurrentTasks maximum number of tasks running at once
+     */
+    public void startWithThreadPerTask(int maxConcurrentTasks) {
+        start(newThreadPerTaskExecutor(), maxConcurrentTasks, true);
+    }
+
+    private void start(ExecutorService executor, int concurrency, boolean threadPerTask) {
+        mExecutor = executor;
+        mConcurrency = concurrency;
+        mThreadPerTask = threadPerTask;
+        // Single timer thread tracking execution deadlines of all tasks
+        mDeadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "slamon-task-deadlines");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mResultSender.start();
+        mEvents.start();
         mMainThread = new Thread(this);
         mRun = true;
         mMainThread.start();
     }
 
+    /**
+     * Start agent as an identity of an {@link AgentPool}. The agent has no main thread of its own:
+     * it polls asynchronously, and its polls and task deadlines are scheduled in the scheduler
+     * of the pool. Tasks run in the executor of the pool.
+     *
+     * @param pool        pool hosting the agent
+     * @param firstPollMs delay of the first poll in milliseconds
+     */
+    void startInPool(AgentPool pool, long firstPollMs) {
+        mPool = pool;
+        mExecutor = pool.getExecutor();
+        mDeadlines = pool.getScheduler();
+        mRun = true;
+        setConnectionState(ConnectionState.CONNECTING);
+        schedulePoll(firstPollMs);
+    }
+
+    /**
+     * Stop polling of a pooled agent. Tasks already received are left to complete in the pool.
+     */
+    void stopInPool() {
+        mRun = false;
+        synchronized (mPollSignal) {
+            if (mNextPoll != null) {
+                mNextPoll.cancel(false);
+                mNextPoll = null;
+            }
+        }
+    }
+
+    /**
+     * Schedule the next poll of a pooled agent, replacing a poll already scheduled.
+     *
+     * @param delayMs delay in milliseconds
+     */
+    private void schedulePoll(long delayMs) {
+        synchronized (mPollSignal) {
+            if (!mRun) {
+                return;
+            }
+            if (mNextPoll != null) {
+                mNextPoll.cancel(false);
+            }
+            mNextPollTime = monotonicTime() + delayMs;
+            try {
+                mNextPoll = mPool.getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        pollAsync();
+                    }
+                }, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // pool shut down
+                mNextPoll = null;
+            }
+        }
+    }
+
+    /**
+     * Request tasks for a pooled agent without blocking the scheduler. The response is handled
+     * in the scheduler, as the I/O thread of the transport is shared by all agents of the pool.
+     */
+    private void pollAsync() {
+        synchronized (mPollSignal) {
+            mNextPoll = null;
+            mCapacityLimited = false;
+        }
+        if (!mRun) {
+            return;
+        }
+        if (!mCircuitBreaker.tryAcquire()) {
+            schedulePoll(Math.max(1, mCircuitBreaker.getRetryDelay()));
+            return;
+        }
+
+        final int executorsAvailable = availableCapacity();
+        final long pollTime = monotonicTime();
+        final List<Task> received = new ArrayList<Task>();
+        Map<String, Integer> capabilities = TaskHandler.capabilities();
+        mPool.pollStarted();
+        mAfm.requestTasksAsync(mAgentId, mAgentName, capabilities,
+                capabilityCapacity(capabilities, executorsAvailable), executorsAvailable, received,
+                new AfmCallback<DateTime>() {
+                    @Override
+                    public void completed(final DateTime returnTime) {
+                        runInScheduler(new Runnable() {
+                            @Override
+                            public void run() {
+                                polled(pollTime, executorsAvailable, returnTime.getMillis(), received);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void failed(final Exception error) {
+                        runInScheduler(new Runnable() {
+                            @Override
+                            public void run() {
+                                pollFailed(error);
+                            }
+                        });
+                    }
+                });
+    }
+
+    private void runInScheduler(Runnable runnable) {
+        try {
+            mPool.getScheduler().execute(runnable);
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.WARNING, "Agent pool shut down before handling response of agent " + mAgentId);
+            mPool.pollFinished();
+        }
+    }
+
+    /**
+     * Start tasks received by a pooled agent and schedule its next poll.
+     */
+    private void polled(long pollTime, int executorsAvailable, long afmReturnTime, List<Task> received) {
+        try {
+            // Tasks claimed from the AFM are run even if the agent has been stopped meanwhile
+            new DispatchingTasks().addAll(received);
+
+            long clockOffset = mAfm.getClockOffset();
+            long pollDelay = afmReturnTime - clockOffset - System.currentTimeMillis();
+            long returnTime = monotonicTime() + pollDelay;
+
+            logger.log(Level.INFO, "Agent ID: " + mAgentId + ", name: " + mAgentName +
+                    " received " + received.size() + " tasks.");
+
+            mCircuitBreaker.recordSuccess();
+            setConnectionState(ConnectionState.CONNECTED);
+            mEvents.connectionToAfm(afmReturnTime - clockOffset);
+
+            synchronized (mPollSignal) {
+                // If all advertised capacity was taken, poll again as soon as capacity returns
+                mCapacityLimited = received.size() >= executorsAvailable;
+                mEarliestPollTime = pollTime + mMinPollIntervalMs;
+                long now = monotonicTime();
+                long wakeTime = returnTime + pollJitter(pollDelay);
+                if (mCapacityLimited && availableCapacity() > 0) {
+                    wakeTime = Math.min(wakeTime, mEarliestPollTime);
+                }
+                schedulePoll(Math.max(0, wakeTime - now));
+            }
+        } finally {
+            mPool.pollFinished();
+        }
+    }
+
+    private void pollFailed(Exception error) {
+        try {
+            setConnectionState(ConnectionState.DISCONNECTED);
+            if (error instanceof AfmCommunicator.TemporaryException) {
+                logger.log(Level.WARNING, "Encountered recoverable error in Afm communications: " +
+                        error.getMessage());
+                mEvents.temporaryError(error.getMessage());
+                long delay = mCircuitBreaker.recordFailure();
+                logger.log(Level.INFO, "Contacting AFM again in " + delay + " ms");
+                schedulePoll(delay);
+            } else {
+                logger.log(Level.SEVERE, "Encountered unrecoverable error: " + error.getMessage());
+                mEvents.fatalError(error.getMessage());
+                mRun = false;
+            }
+        } finally {
+            mPool.pollFinished();
+        }
+    }
+
+    /**
+     * Create executor starting a virtual thread for each task when the platform supports
+     * virtual threads, or a cached pool of platform threads otherwise. Virtual threads are
+     * looked up by reflection to keep the library compatible with older Java versions.
+     */
+    private ExecutorService newThreadPerTaskExecutor() {
+        try {
+            Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.log(Level.INFO, "Running tasks in virtual threads.");
+            return (ExecutorService) executor;
+        } catch (Exception e) {
+            logger.log(Level.INFO, "Virtual threads not available, running tasks in platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     /**
      * Shutdown agent background activities.
      *
-     * @param timeoutMs timeout in milliseconds to wait for currently running tasks to complete.
+     * @param timeoutMs timeout in milliseconds to wait for currently running tasks to complete
+     *                  and for queued results to be sent.
      */
     public void shutdown(long timeoutMs) throws TimeoutException {
+        long timeoutTime = System.currentTimeMillis() + timeoutMs;
         mRun = false;
         mExecutor.shutdown();
         mMainThread.interrupt();
-        join(timeoutMs);
+        try {
+            join(timeoutMs);
+            // Results are queued as tasks finish, so the sender is stopped only after the running tasks
+            awaitTasks(timeoutTime);
+        } finally {
+            mDeadlines.shutdownNow();
+            mResultSender.shutdown(Math.max(0, timeoutTime - System.currentTimeMillis()));
+            mEvents.shutdown(Math.max(0, timeoutTime - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Wait for the tasks running in the executor or in asynchronous handlers to finish.
+     *
+     * @param timeoutTime time in milliseconds to stop waiting at
+     * @throws TimeoutException if tasks are still running at the timeout
+     */
+    private void awaitTasks(long timeoutTime) throws TimeoutException {
+        try {
+            mExecutor.awaitTermination(Math.max(0, timeoutTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            while (mActiveTasks.get() > 0 && System.currentTimeMillis() < timeoutTime) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mActiveTasks.get() > 0) {
+            throw new TimeoutException("Timeout while waiting for " + mActiveTasks.get() + " running tasks to complete.");
+        }
+    }
+
+    /**
+     * Get the circuit breaker delaying task requests while the AFM is failing,
+     * for example to configure its delays. Results are posted with a circuit breaker
+     * of their own, see {@link ResultSender#getCircuitBreaker()}.
+     *
+     * @return circuit breaker of the task requests
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * Get metrics of the agent, for example to export them periodically.
+     *
+     * @return metrics registry of the agent
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Get the sender posting task results to the AFM, for example to configure
+     * result batching or to inspect its queue statistics.
+     *
+     * @return result sender of the agent
+     */
+    public ResultSender getResultSender() {
+        return mResultSender;
     }
 
     void join(long timeoutMs) throws TimeoutException {
@@ -96,6 +556,7 @@ public class Agent implements Runnable {
 
     /**
      * Add new event listener to receive SLAMon Agent events.
+     * Events are delivered in a dispatcher thread, see {@link #setEventDispatch(int, EventOverflow)}.
      *
      * @param listener to receive events
      */
@@ -109,77 +570,276 @@ public class Agent implements Runnable {
     @Override
     public void run() {
         try {
-            Collection<Task> tasks = new ArrayList<Task>();
+            DispatchingTasks tasks = new DispatchingTasks();
 
             setConnectionState(ConnectionState.CONNECTING);
 
             while (mRun) {
+                // Back off while the AFM is failing
+                mCircuitBreaker.await();
+
                 // Clear tasks list from previous cycle
                 tasks.clear();
                 logger.log(Level.INFO, "Cleared tasks from previous execution cycle");
 
-                // Get number of available task executors
-                int executorsAvailable = mExecutor.getMaximumPoolSize() - mExecutor.getActiveCount();
+                // Get number of tasks the agent can take, including prefetch backlog
+                int executorsAvailable = availableCapacity();
                 logger.log(Level.INFO, "Available executors: " + executorsAvailable);
+                long pollTime = monotonicTime();
 
                 try {
                     // Request for tasks from AFM,
                     // AfmCommunicator should return next poll time as return parameter
-                    // and append possible received tasks into tasks-collection.
-                    long returnTime = mAfm.requestTasks(
-                            mAgentId,
-                            mAgentName,
-                            TaskHandler.capabilities(),
-                            executorsAvailable,
-                            tasks).getMillis();
+                    // and append possible received tasks into tasks-collection,
+                    // which starts each task as soon as it is received.
+                    Map<String, Integer> capabilities = TaskHandler.capabilities();
+                    // Without free capacity the request only reports the agent alive, it is not held
+                    boolean longPoll = mLongPollTimeoutMs > 0 && executorsAvailable > 0 &&
+                            mAfm.isLongPollSupported();
+                    long afmReturnTime;
+                    if (longPoll) {
+                        afmReturnTime = mAfm.requestTasksLongPoll(
+                                mAgentId,
+                                mAgentName,
+                                capabilities,
+                                capabilityCapacity(capabilities, executorsAvailable),
+                                executorsAvailable,
+                                mLongPollTimeoutMs,
+                                tasks).getMillis();
+                        longPoll = mAfm.isLongPollSupported();
+                    } else {
+                        afmReturnTime = mAfm.requestTasks(
+                                mAgentId,
+                                mAgentName,
+                                capabilities,
+                                capabilityCapacity(capabilities, executorsAvailable),
+                                executorsAvailable,
+                                tasks).getMillis();
+                    }
+                    // Return time is given in AFM time, schedule it on the local monotonic clock
+                    long clockOffset = mAfm.getClockOffset();
+                    long pollDelay = afmReturnTime - clockOffset - System.currentTimeMillis();
+                    long returnTime = monotonicTime() + pollDelay;
+                    if (!longPoll) {
+                        mPrefetchEstimator.recordPollInterval(Math.max(0, returnTime - pollTime));
+                    }
 
                     logger.log(Level.INFO, "Agent ID: " + mAgentId + ", name: " + mAgentName +
                             " received " + tasks.size() + " tasks.");
 
+                    mCircuitBreaker.recordSuccess();
                     setConnectionState(ConnectionState.CONNECTED);
 
-                    // Initiate received tasks
-                    for (Task task : tasks) {
-                        logger.log(Level.INFO, "Starting task " + task.task_type + ":" +
-                                task.task_id + " version " + task.task_version);
-
-                        for (AgentEventListener listener : mEventListeners) {
-                            listener.taskStarted();
-                        }
+                    // If all advertised capacity was taken, AFM may have more tasks waiting.
+                    boolean capacityLimited = tasks.size() >= executorsAvailable;
 
-                        mExecutor.execute(new TaskRunnable(task));
-                    }
+                    mEvents.connectionToAfm(afmReturnTime - clockOffset);
 
-                    for (AgentEventListener listener : mEventListeners) {
-                        listener.connectionToAfm(returnTime);
+                    if (!longPoll) {
+                        // Wait for given time, or until capacity returns
+                        waitForNextPoll(pollTime, returnTime + pollJitter(pollDelay), capacityLimited);
+                    } else if (tasks.isEmpty()) {
+                        // Poll again right away, but not in a busy loop if the AFM returns without waiting
+                        waitForNextPoll(pollTime, pollTime + mMinPollIntervalMs, false);
+                    } else if (availableCapacity() == 0) {
+                        // Poll again when capacity returns, or to report the agent alive
+                        waitForNextPoll(pollTime, pollTime + mLongPollTimeoutMs, true);
                     }
-
-                    // Wait for given time
-                    Thread.sleep(Math.max(0, returnTime - DateTime.now().getMillis()));
                 } catch (AfmCommunicator.TemporaryException e) {
                     logger.log(Level.WARNING, "Encountered recoverable error in Afm communications: " + e.getMessage());
-                    for (AgentEventListener listener : mEventListeners) {
-                        listener.temporaryError(e.getMessage());
-                    }
+                    mEvents.temporaryError(e.getMessage());
                     setConnectionState(ConnectionState.DISCONNECTED);
 
-                    // Wait for a minute before contacting AFM again
-                    Thread.sleep(60 * 1000);
+                    long delay = mCircuitBreaker.recordFailure();
+                    logger.log(Level.INFO, "Contacting AFM again in " + delay + " ms");
                 }
             }
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Encountered unrecoverable error: " + e.getMessage());
-            for (AgentEventListener listener : mEventListeners) {
-                listener.fatalError(e.getMessage());
-            }
+            mEvents.fatalError(e.getMessage());
             setConnectionState(ConnectionState.DISCONNECTED);
             mRun = false;
             mExecutor.shutdown();
         }
     }
 
+    /**
+     * Collection receiving tasks from the AFM. Each task is started as soon as it is added,
+     * so that tasks can start while the rest of the AFM response is still being read.
+     */
+    private class DispatchingTasks extends AbstractCollection<Task> {
+        final private List<Task> mTasks = new ArrayList<Task>();
+
+        @Override
+        public boolean add(Task task) {
+            mTasks.add(task);
+            mActiveTasks.incrementAndGet();
+            if (mPool != null) {
+                mPool.taskStarted();
+            }
+            mMetrics.counter("agent.tasks_received").increment();
+
+            logger.log(Level.INFO, "Starting task " + task.task_type + ":" +
+                    task.task_id + " version " + task.task_version);
+
+            mEvents.taskStarted(task);
+
+            TaskRunnable runnable = new TaskRunnable(task);
+            try {
+                runnable.dispatch();
+            } catch (RuntimeException e) {
+                // For example a task without version, report it and continue with the rest of the response
+                runnable.failed(new IllegalArgumentException("Failed to start task: " + e, e));
+            }
+            return true;
+        }
+
+        @Override
+        public Iterator<Task> iterator() {
+            return Collections.unmodifiableList(mTasks).iterator();
+        }
+
+        @Override
+        public int size() {
+            return mTasks.size();
+        }
+
+        @Override
+        public void clear() {
+            mTasks.clear();
+        }
+    }
+
+    /**
+     * Get number of tasks the agent can accept. In prefetch mode this includes
+     * room in the local backlog of tasks waiting for an executor. No more tasks are
+     * accepted than there is room for their results in the queue of the result sender,
+     * so that results are not dropped while the AFM is not accepting them.
+     */
+    private int availableCapacity() {
+        if (mPool != null) {
+            // The share of the agent and the free executors are enforced by the pool
+            return mPool.availableCapacity(mActiveTasks.get());
+        }
+        int capacity = mConcurrency;
+        if (!mThreadPerTask) {
+            capacity += mConcurrency * mPrefetchEstimator.backlogPerExecutor(mPrefetchDepth);
+        }
+        capacity = Math.max(0, capacity - mActiveTasks.get());
+        return Math.min(capacity, Math.max(0, mResultSender.getRemainingCapacity() - mActiveTasks.get()));
+    }
+
+    /**
+     * Get the concurrency limiting bulkhead of a task handler.
+     *
+     * @return bulkhead, or null if the handler has no concurrency limit of its own
+     */
+    private Bulkhead bulkheadFor(TaskHandler handler) {
+        if (handler == null || handler.getMaxConcurrentTasks() <= 0) {
+            return null;
+        }
+        Bulkhead bulkhead = mBulkheads.get(handler.getName());
+        if (bulkhead == null) {
+            mBulkheads.putIfAbsent(handler.getName(), new Bulkhead(handler.getMaxConcurrentTasks()));
+            bulkhead = mBulkheads.get(handler.getName());
+        }
+        return bulkhead;
+    }
+
+    /**
+     * Get number of tasks the agent can accept for task types with own concurrency limits.
+     *
+     * @param capabilities task types and versions
+     * @param available    number of tasks the agent can accept in total
+     * @return task types mapped to the number of tasks the agent can accept of them
+     */
+    private Map<String, Integer> capabilityCapacity(Map<String, Integer> capabilities, int available) {
+        Map<String, Integer> capacity = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> capability : capabilities.entrySet()) {
+            Bulkhead bulkhead = bulkheadFor(TaskHandler.getHandler(capability.getKey(), capability.getValue()));
+            if (bulkhead != null) {
+                capacity.put(capability.getKey(), Math.min(available, bulkhead.available()));
+            }
+        }
+        return capacity;
+    }
+
+    /**
+     * Get random delay to spread polls of agents given the same return time.
+     *
+     * @param pollDelayMs time until the return time given by the AFM
+     * @return delay in milliseconds
+     */
+    private long pollJitter(long pollDelayMs) {
+        long maxJitterMs = Math.min(mMaxPollJitterMs, pollDelayMs / 10);
+        if (maxJitterMs <= 0) {
+            return 0;
+        }
+        return (long) (mJitterRandom.nextDouble() * maxJitterMs);
+    }
+
+    /**
+     * Get time in milliseconds from the monotonic clock, which is not affected by
+     * changes to the system time. Only differences of the values are meaningful.
+     */
+    private static long monotonicTime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Wait until the next poll is due. Normally that is the return time given by the AFM,
+     * but if the previous poll was limited by the agent's capacity, the wait ends as soon as
+     * capacity becomes available and the minimum poll interval has passed.
+     *
+     * @param pollTime        monotonic time of the previous poll
+     * @param returnTime      monotonic time when to contact the AFM again for tasks
+     * @param capacityLimited true if the previous poll took all advertised capacity
+     */
+    private void waitForNextPoll(long pollTime, long returnTime, boolean capacityLimited)
+            throws InterruptedException {
+        long earliestTime = pollTime + mMinPollIntervalMs;
+        synchronized (mPollSignal) {
+            while (true) {
+                long now = monotonicTime();
+                if (now >= returnTime) {
+                    return;
+                }
+                long wakeTime = returnTime;
+                if (capacityLimited && availableCapacity() > 0) {
+                    if (now >= earliestTime) {
+                        return;
+                    }
+                    wakeTime = Math.min(wakeTime, earliestTime);
+                }
+                mPollSignal.wait(wakeTime - now);
+            }
+        }
+    }
+
+    /**
+     * Return executor capacity of a finished task and wake up the main loop,
+     * or bring the next poll of a pooled agent forward.
+     */
+    private void taskFinished() {
+        mActiveTasks.decrementAndGet();
+        if (mPool != null) {
+            mPool.taskFinished();
+        }
+        synchronized (mPollSignal) {
+            mPollSignal.notifyAll();
+            if (mCapacityLimited && mNextPoll != null) {
+                long now = monotonicTime();
+                long wakeTime = Math.max(now, mEarliestPollTime);
+                if (wakeTime < mNextPollTime) {
+                    mCapacityLimited = false;
+                    schedulePoll(wakeTime - now);
+                }
+            }
+        }
+    }
+
     public boolean isRunning() {
-        return mMainThread.isAlive();
+        return mMainThread != null ? mMainThread.isAlive() : mRun;
     }
 
     public enum ConnectionState {
@@ -187,50 +847,261 @@ public class Agent implements Runnable {
     }
 
     /**
-     * Helper class to schedule tasks for execution.
+     * Policy for agent events published while the event buffer is full.
      */
-    private class TaskRunnable implements Runnable {
+    public enum EventOverflow {
+        /**
+         * Wait for room in the buffer, delaying the agent until listeners catch up.
+         */
+        BLOCK,
+        /**
+         * Drop the new event.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest undelivered event to make room for the new one.
+         */
+        DROP_OLDEST
+    }
 
-        Task mTask;
+    /**
+     * Resize task executor pool to replace a thread blocked by a timed out task,
+     * or to remove the replacement once the blocked thread has returned.
+     */
+    private void adjustPoolSize(int delta) {
+        if (mExecutor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) mExecutor;
+            synchronized (pool) {
+                if (delta > 0) {
+                    pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                    pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                } else {
+                    pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                    pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper class to schedule tasks for execution. Tasks of synchronous handlers
+     * are run in an executor, while tasks of asynchronous handlers are started directly
+     * and complete through the handler callback.
+     * <p>
+     * Tasks that do not finish within their timeout are completed with an error.
+     * The thread running a timed out synchronous task is interrupted, and replaced
+     * in the executor pool until the task returns.
+     */
+    private class TaskRunnable implements Runnable, AsyncTaskHandler.Callback {
+
+        final Task mTask;
+        final AtomicBoolean mFinished = new AtomicBoolean();
+        TaskHandler mHandler;
+        Bulkhead mBulkhead;
+        final long mClaimTime = monotonicTime();
+        long mStartTime;
+        volatile boolean mStarted = false;
+        // Thread executing a synchronous task, guarded by this
+        private Thread mThread;
+        private boolean mAbandoned = false;
+        private Future<?> mDeadline;
 
         TaskRunnable(Task task) {
             mTask = task;
         }
 
+        /**
+         * Start the task, or queue it if its task type is at its concurrency limit.
+         */
+        void dispatch() {
+            // get relevant task handler
+            mHandler = TaskHandler.getHandler(mTask.task_type, mTask.task_version.intValue());
+            mBulkhead = bulkheadFor(mHandler);
+            if (mBulkhead != null) {
+                // start when the task type is within its concurrency limit
+                mBulkhead.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        start();
+                    }
+                });
+            } else {
+                start();
+            }
+        }
+
+        /**
+         * Start the task, either in an executor or asynchronously.
+         */
+        private void start() {
+            if (mHandler instanceof AsyncTaskHandler) {
+                logger.log(Level.INFO, "Starting asynchronous TaskHandler " + mHandler.getName() +
+                        ", version: " + mHandler.getVersion());
+                started();
+                scheduleDeadline();
+                try {
+                    ((AsyncTaskHandler) mHandler).execute(mTask.task_data, this);
+                } catch (Exception e) {
+                    failed(e);
+                }
+            } else {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Task claimed by a poll still in progress at shutdown
+                    failed(new IllegalStateException("Agent shutting down"));
+                }
+            }
+        }
+
         @Override
         public void run() {
+            synchronized (this) {
+                mThread = Thread.currentThread();
+            }
             try {
-                // get relevant task handler
-                TaskHandler handler = TaskHandler.getHandler(mTask.task_type, mTask.task_version.intValue());
-                logger.log(Level.INFO, "Created TaskHandler " + handler.getName() +
-                        ", version: " + handler.getVersion());
+                logger.log(Level.INFO, "Created TaskHandler " + mHandler.getName() +
+                        ", version: " + mHandler.getVersion());
                 // execute task
-                mTask.task_result = handler.execute(mTask.task_data);
-                logger.log(Level.INFO, "Excecuted task, result: " + mTask.task_result);
-                // send task completion event
-                for (AgentEventListener listener : mEventListeners) {
-                    listener.taskCompleted();
-                }
+                started();
+                scheduleDeadline();
+                completed(mHandler.execute(mTask.task_data));
             } catch (Exception e) {
-                logger.log(Level.WARNING, "Task execution failed: " + e.getMessage());
-                // set error in task data
-                mTask.task_error = e.getMessage();
-                // send task error event
-                for (AgentEventListener listener : mEventListeners) {
-                    listener.taskError(e.getMessage());
+                failed(e);
+            } finally {
+                synchronized (this) {
+                    mThread = null;
+                    // Clear interrupt possibly raised by timeout before returning the thread to pool
+                    Thread.interrupted();
+                    if (mAbandoned) {
+                        adjustPoolSize(-1);
+                    }
                 }
             }
+        }
+
+        private void started() {
+            mStartTime = monotonicTime();
+            mStarted = true;
+            mRunningTasks.incrementAndGet();
+            mMetrics.histogram("agent.claim_to_start_ms").record(mStartTime - mClaimTime);
+        }
+
+        /**
+         * Get execution timeout from task data, or the handler default.
+         */
+        private long timeout() {
+            if (mTask.task_data != null && mTask.task_data.get(TASK_TIMEOUT_KEY) instanceof Number) {
+                return (long) (((Number) mTask.task_data.get(TASK_TIMEOUT_KEY)).doubleValue() * 1000);
+            }
+            return mHandler != null ? mHandler.getTimeout() : 0;
+        }
+
+        private void scheduleDeadline() {
+            long timeoutMs = timeout();
+            if (timeoutMs <= 0) {
+                return;
+            }
+            Future<?> deadline = mDeadlines.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                mDeadline = deadline;
+            }
+        }
+
+        private void cancelDeadline() {
+            synchronized (this) {
+                if (mDeadline != null) {
+                    mDeadline.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Complete the task with timeout error, and free the thread executing it.
+         */
+        private void timedOut() {
+            synchronized (this) {
+                if (mFinished.get()) {
+                    return;
+                }
+                if (mThread != null) {
+                    logger.log(Level.WARNING, "Interrupting timed out task " + mTask.task_id);
+                    mThread.interrupt();
+                    // Replace the thread until the task returns
+                    mAbandoned = true;
+                    adjustPoolSize(1);
+                }
+            }
+            failed(new TimeoutException("Task timed out after " + timeout() + " ms"));
+        }
+
+        @Override
+        public void completed(Map<String, Object> outputParams) {
+            if (!mFinished.compareAndSet(false, true)) {
+                return;
+            }
+            long duration = duration();
+            mPrefetchEstimator.recordTaskDuration(duration);
+            mMetrics.counter("agent.tasks_completed").increment();
+            mMetrics.histogram("task.execution_ms." + mTask.task_type).record(duration);
+            mTask.task_result = outputParams;
+            logger.log(Level.INFO, "Excecuted task, result: " + mTask.task_result);
+            // send task completion event
+            mEvents.taskCompleted(mTask, duration);
+            if (TASK_EVENT.isEnabled()) {
+                TASK_EVENT.commit(mTask.task_id, mTask.task_type, mStartTime - mClaimTime, duration, null);
+            }
+            finish();
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (!mFinished.compareAndSet(false, true)) {
+                return;
+            }
+            logger.log(Level.WARNING, "Task execution failed: " + e.getMessage());
+            // set error in task data
+            mTask.task_error = e.getMessage();
+            long duration = duration();
+            mMetrics.counter("agent.tasks_failed").increment();
+            if (mStarted) {
+                mMetrics.histogram("task.execution_ms." + mTask.task_type).record(duration);
+            }
+            // send task error event
+            mEvents.taskError(mTask, duration, e.getMessage());
+            if (TASK_EVENT.isEnabled()) {
+                TASK_EVENT.commit(mTask.task_id, mTask.task_type, mStarted ? mStartTime - mClaimTime : 0L, duration,
+                        String.valueOf(e.getMessage()));
+            }
+            finish();
+        }
+
+        /**
+         * @return execution time of the task so far in milliseconds, 0 if not started
+         */
+        private long duration() {
+            return mStarted ? monotonicTime() - mStartTime : 0;
+        }
+
+        private void finish() {
+            if (mStarted) {
+                mRunningTasks.decrementAndGet();
+            }
+            cancelDeadline();
             try {
-                while (true) {
-                    try {
-                        mAfm.postResults(mTask);
-                        return;
-                    } catch (AfmCommunicator.TemporaryException e) {
-                        logger.log(Level.WARNING, "Posting task results failed with temporary error: " + e.getMessage());
-                    }
+                // hand results over to the sender and release the capacity, without blocking
+                // the deadline timer, handler callback or pool scheduler thread finishing the task
+                mResultSender.offer(mTask);
+            } finally {
+                if (mBulkhead != null) {
+                    mBulkhead.release();
                 }
-            } catch (AfmCommunicator.FatalException e) {
-                logger.log(Level.SEVERE, "Posting task results failed with fatal error: " + e.getMessage());
+                taskFinished();
             }
         }
     }
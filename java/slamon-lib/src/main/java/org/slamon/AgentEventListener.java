@@ -3,15 +3,35 @@ package org.slamon;
 import static org.slamon.Agent.ConnectionState;
 
 /**
- * SLAMon Event Listener interface
+ * SLAMon Event Listener interface.
+ * Events are delivered one at a time in the event dispatcher thread of the agent.
  */
 public interface AgentEventListener {
     public void temporaryError(String message);
     public void connectionStateChanged(ConnectionState state);
     public void fatalError(String message);
-    public void taskCompleted();
-    public void taskError(String message);
-    public void taskStarted();
 
+    /**
+     * @param durationMs execution time of the task in milliseconds
+     */
+    public void taskCompleted(String taskId, String taskType, long durationMs);
+
+    /**
+     * @param durationMs execution time of the task until the error in milliseconds
+     * @param message    error message of the task
+     */
+    public void taskError(String taskId, String taskType, long durationMs, String message);
+
+    public void taskStarted(String taskId, String taskType);
+
+    /**
+     * @param circuit name of the circuit breaker, "afm" for task requests or "results" for result posts
+     * @param state   new state of the circuit
+     */
+    public void circuitStateChanged(String circuit, CircuitBreaker.State state);
+
+    /**
+     * @param returnTime time to contact the AFM again, in local time corrected for AFM clock offset
+     */
     public void connectionToAfm(long returnTime);
 }
@@ -0,0 +1,282 @@
+package org.slamon;
+
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runtime hosting many agent identities in one process, for example to run a probe for several
+ * locations or customers from a single host. Each identity polls the AFM and is assigned tasks
+ * as a separate agent, but all identities share a single scheduler thread, one task executor,
+ * the AFM communicator and one result sender. The number of threads does not grow with the
+ * number of identities.
+ * <p>
+ * The executor capacity is divided evenly among the identities, so that a busy identity
+ * does not starve the others. Each identity takes at most its share of the executors rounded up,
+ * at least one executor. When the shares add up to more than the pool, for example when there
+ * are more identities than executors, the identities polling first take the free executors.
+ * <p>
+ * Identities poll with the non-blocking transport, see
+ * {@link AfmCommunicator#requestTasksAsync}, so long polling and task prefetching are not
+ * available for pooled identities. The polls share the connections of the pool's own
+ * {@link NioHttpTransport}, while results are posted by the result sender through the
+ * blocking transport of the communicator. Agent events are not delivered for pooled identities,
+ * use the shared {@link #getMetrics() metrics} instead.
+ * <p>
+ * The non-blocking transport only supports plain HTTP connected directly to the AFM,
+ * so the pool can not be used with an https AFM address or through a proxy. Run standalone
+ * {@link Agent agents} for those.
+ */
+public class AgentPool {
+
+    // Polls of many identities are in flight at once, keep their connections open
+    private static final int MAX_IDLE_CONNECTIONS = 256;
+
+    final private AfmCommunicator mAfm;
+    final private NioHttpTransport mTransport = new NioHttpTransport();
+    final private ResultSender mResultSender;
+    final private MetricsRegistry mMetrics = new MetricsRegistry();
+    final private List<Agent> mAgents = new ArrayList<Agent>();
+    // Tasks received by all identities and not yet finished
+    final private AtomicInteger mActiveTasks = new AtomicInteger();
+    // Polls waiting for the AFM response or for the response to be handled
+    final private AtomicInteger mPollsInFlight = new AtomicInteger();
+    private long mMinPollIntervalMs = Agent.DEFAULT_MIN_POLL_INTERVAL_MS;
+    private long mMaxPollJitterMs = Agent.DEFAULT_MAX_POLL_JITTER_MS;
+    private int mConcurrency;
+    // Executors an identity can take at most
+    private int mShare;
+    private ThreadPoolExecutor mExecutor;
+    private ScheduledExecutorService mScheduler;
+
+    /**
+     * @param url AFM address, plain HTTP without a proxy
+     * @throws IllegalArgumentException if the AFM can not be reached with plain HTTP
+     */
+    public AgentPool(String url) {
+        this(url, new AfmCommunicator(url));
+    }
+
+    AgentPool(String url, AfmCommunicator afm) {
+        checkUrl(url);
+        mAfm = afm;
+        mTransport.setMaxIdleConnectionsPerHost(MAX_IDLE_CONNECTIONS);
+        mAfm.setAsyncTransport(mTransport);
+        mResultSender = new ResultSender(mAfm);
+        mAfm.setMetrics(mMetrics);
+        mMetrics.gauge("agent.active_tasks", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mActiveTasks.get();
+            }
+        });
+        mMetrics.gauge("results.queue_depth", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mResultSender.getQueueDepth();
+            }
+        });
+    }
+
+    /**
+     * Check that the non-blocking transport can reach the AFM. Otherwise every poll would fail
+     * and the identities would back off forever.
+     */
+    private static void checkUrl(String url) {
+        try {
+            URI uri = new URL(url).toURI();
+            if (!"http".equals(uri.getScheme())) {
+                throw new IllegalArgumentException("Agent pool supports only http AFM addresses: " + url);
+            }
+            for (Proxy proxy : ProxySelector.getDefault().select(uri)) {
+                if (proxy.type() != Proxy.Type.DIRECT) {
+                    throw new IllegalArgumentException("Agent pool can not connect to " + url + " via " + proxy);
+                }
+            }
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid AFM address: " + url, e);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid AFM address: " + url, e);
+        }
+    }
+
+    /**
+     * Add agent identity to the pool. Must be called before the pool is started.
+     *
+     * @param id   agent id
+     * @param name agent name
+     */
+    public synchronized void addAgent(String id, String name) {
+        if (mExecutor != null) {
+            throw new IllegalStateException("Agents can not be added to a started pool.");
+        }
+        mAgents.add(new Agent(id, name, mAfm, mResultSender, mMetrics));
+    }
+
+    /**
+     * Set the minimum time between two polls of an identity, see {@link Agent#setMinimumPollInterval(long)}.
+     * Must be called before the pool is started.
+     *
+     * @param intervalMs minimum poll interval in milliseconds
+     */
+    public synchronized void setMinimumPollInterval(long intervalMs) {
+        mMinPollIntervalMs = intervalMs;
+    }
+
+    /**
+     * Set the upper bound for the random delay added to return times, see {@link Agent#setMaxPollJitter(long)}.
+     * Must be called before the pool is started.
+     *
+     * @param jitterMs maximum delay in milliseconds, 0 to poll exactly at the return time
+     */
+    public synchronized void setMaxPollJitter(long jitterMs) {
+        mMaxPollJitterMs = jitterMs;
+    }
+
+    /**
+     * Start polling for all identities of the pool.
+     *
+     * @param concurrentExecutors number of task executor threads shared by the identities
+     * @throws IllegalArgumentException if the number of executors is less than one
+     */
+    public synchronized void start(int concurrentExecutors) {
+        if (concurrentExecutors < 1) {
+            throw new IllegalArgumentException("Agent pool needs at least one executor: " + concurrentExecutors);
+        }
+        mConcurrency = concurrentExecutors;
+        mExecutor = new ThreadPoolExecutor(concurrentExecutors, concurrentExecutors, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        // Single thread scheduling the polls and task deadlines of all identities
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "slamon-agent-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mMetrics.gauge("agent.executor_utilization_percent", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mExecutor.getActiveCount() * 100L / mConcurrency;
+            }
+        });
+        mResultSender.start();
+
+        int agents = Math.max(1, mAgents.size());
+        mShare = (concurrentExecutors + agents - 1) / agents;
+        for (int i = 0; i < mAgents.size(); ++i) {
+            Agent agent = mAgents.get(i);
+            agent.setMinimumPollInterval(mMinPollIntervalMs);
+            agent.setMaxPollJitter(mMaxPollJitterMs);
+            // First polls are spread over the minimum poll interval, not to hit the AFM all at once
+            agent.startInPool(this, i * mMinPollIntervalMs / agents);
+        }
+    }
+
+    /**
+     * Stop polling for all identities, and shutdown the shared executors.
+     *
+     * @param timeoutMs timeout in milliseconds to wait for currently running tasks to complete
+     *                  and for queued results to be sent.
+     */
+    public void shutdown(long timeoutMs) throws TimeoutException {
+        long timeoutTime = System.currentTimeMillis() + timeoutMs;
+        List<Agent> agents;
+        synchronized (this) {
+            agents = new ArrayList<Agent>(mAgents);
+        }
+        for (Agent agent : agents) {
+            agent.stopInPool();
+        }
+        try {
+            // Tasks claimed by polls in flight are still run
+            while (mPollsInFlight.get() > 0 && System.currentTimeMillis() < timeoutTime) {
+                Thread.sleep(10);
+            }
+            mExecutor.shutdown();
+            mExecutor.awaitTermination(Math.max(0, timeoutTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            // Asynchronous tasks finish outside the executor
+            while (mActiveTasks.get() > 0 && System.currentTimeMillis() < timeoutTime) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mScheduler.shutdownNow();
+            mTransport.shutdown();
+            mResultSender.shutdown(Math.max(0, timeoutTime - System.currentTimeMillis()));
+        }
+        if (!mExecutor.isTerminated() || mActiveTasks.get() > 0) {
+            throw new TimeoutException("Timeout while waiting for tasks of the agent pool to complete.");
+        }
+    }
+
+    /**
+     * @return number of agent identities in the pool
+     */
+    public synchronized int getAgentCount() {
+        return mAgents.size();
+    }
+
+    /**
+     * Get metrics of the pool, summed over all identities.
+     *
+     * @return metrics registry of the pool
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Get the sender posting task results of all identities to the AFM.
+     *
+     * @return result sender of the pool
+     */
+    public ResultSender getResultSender() {
+        return mResultSender;
+    }
+
+    ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Get number of tasks an identity can accept, limited by its share of the executors, by the
+     * free executors of the pool and by the room for results in the queue of the result sender.
+     *
+     * @param agentActive tasks received by the identity and not yet finished
+     * @return number of tasks the identity can accept
+     */
+    int availableCapacity(int agentActive) {
+        int free = Math.min(mConcurrency, mResultSender.getRemainingCapacity()) - mActiveTasks.get();
+        return Math.max(0, Math.min(free, mShare - agentActive));
+    }
+
+    void taskStarted() {
+        mActiveTasks.incrementAndGet();
+    }
+
+    void taskFinished() {
+        mActiveTasks.decrementAndGet();
+    }
+
+    void pollStarted() {
+        mPollsInFlight.incrementAndGet();
+    }
+
+    void pollFinished() {
+        mPollsInFlight.decrementAndGet();
+    }
+}
@@ -0,0 +1,94 @@
+package org.slamon;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Non-blocking HTTP transport used by the asynchronous {@link AfmCommunicator} methods.
+ * Requests return immediately and report the response or failure to a callback,
+ * so that no thread is tied up while a request is in flight.
+ */
+public interface AsyncHttpTransport {
+
+    /**
+     * Callback for the outcome of a request. Callbacks may be called from the I/O thread
+     * of the transport, so they must not block.
+     */
+    interface Callback {
+
+        void completed(Response response);
+
+        void failed(IOException error);
+
+    }
+
+    /**
+     * Send a POST request.
+     *
+     * @param url         request URL
+     * @param contentType content type of the body
+     * @param body        request body
+     * @param callback    callback to report the response or failure to
+     */
+    void post(String url, String contentType, byte[] body, Callback callback);
+
+    /**
+     * HTTP response with fully read content.
+     */
+    final class Response {
+        final private int mStatusCode;
+        final private String mReasonPhrase;
+        final private Map<String, String> mHeaders;
+        final private byte[] mContent;
+
+        /**
+         * @param statusCode   HTTP status code
+         * @param reasonPhrase HTTP reason phrase
+         * @param headers      response headers, with lower case names
+         * @param content      decoded response content
+         */
+        public Response(int statusCode, String reasonPhrase, Map<String, String> headers, byte[] content) {
+            mStatusCode = statusCode;
+            mReasonPhrase = reasonPhrase;
+            mHeaders = Collections.unmodifiableMap(headers);
+            mContent = content;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public String getReasonPhrase() {
+            return mReasonPhrase;
+        }
+
+        /**
+         * @param name header name, case insensitive
+         * @return header value, or null if not present
+         */
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase());
+        }
+
+        public byte[] getContent() {
+            return mContent;
+        }
+
+        /**
+         * @return charset given in the content type, UTF-8 by default
+         */
+        public String getContentCharset() {
+            String contentType = getHeader("Content-Type");
+            if (contentType != null) {
+                for (String parameter : contentType.split(";")) {
+                    parameter = parameter.trim();
+                    if (parameter.toLowerCase().startsWith("charset=")) {
+                        return parameter.substring("charset=".length()).replace("\"", "");
+                    }
+                }
+            }
+            return "UTF-8";
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.slamon;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Base class for task handlers that complete tasks asynchronously.
+ * The agent starts asynchronous tasks without reserving an executor thread for them,
+ * so implementations must not block in {@link #execute(Map, Callback)} but report
+ * results to the callback when the task finishes, from any thread.
+ * Asynchronous tasks are still counted against the agent capacity until completed.
+ */
+public abstract class AsyncTaskHandler extends TaskHandler {
+
+    /**
+     * Callback for reporting the outcome of an asynchronous task.
+     * Only the first call to either method is taken into account.
+     */
+    public interface Callback {
+
+        void completed(Map<String, Object> outputParams);
+
+        void failed(Exception error);
+
+    }
+
+    /**
+     * Start executing the task with input parameters.
+     * Output parameters or failure are reported through the callback.
+     *
+     * @param inputParams Map of input parameters
+     * @param callback    Callback to report the outcome to
+     */
+    public abstract void execute(Map<String, Object> inputParams, Callback callback);
+
+    /**
+     * Execute the task and wait for it to complete.
+     *
+     * @param inputParams Map of input parameters
+     * @return Map of output parameters
+     */
+    @Override
+    public final Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Object[]> outcome = new AtomicReference<Object[]>();
+        execute(inputParams, new Callback() {
+            @Override
+            public void completed(Map<String, Object> outputParams) {
+                if (outcome.compareAndSet(null, new Object[]{outputParams})) {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void failed(Exception error) {
+                if (outcome.compareAndSet(null, new Object[]{error})) {
+                    done.countDown();
+                }
+            }
+        });
+        done.await();
+        Object result = outcome.get()[0];
+        if (result instanceof Exception) {
+            throw (Exception) result;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> outputParams = (Map<String, Object>) result;
+        return outputParams;
+    }
+}
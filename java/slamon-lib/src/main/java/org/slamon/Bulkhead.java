@@ -0,0 +1,65 @@
+package org.slamon;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * Limits the number of concurrently running tasks of a single task type,
+ * so that slow tasks of one type can not occupy all of the agent capacity.
+ * Tasks exceeding the limit wait in a queue of their own and are started
+ * as running tasks of the same type finish.
+ */
+class Bulkhead {
+
+    final private int mLimit;
+    final private Queue<Runnable> mWaiting = new LinkedList<Runnable>();
+    private int mRunning = 0;
+
+    /**
+     * @param limit maximum number of concurrently running tasks
+     */
+    Bulkhead(int limit) {
+        mLimit = limit;
+    }
+
+    /**
+     * Get number of tasks that can be accepted without queueing.
+     *
+     * @return free capacity
+     */
+    synchronized int available() {
+        return Math.max(0, mLimit - mRunning - mWaiting.size());
+    }
+
+    /**
+     * Start task now if the limit allows, otherwise queue it.
+     *
+     * @param start action starting the task
+     */
+    void submit(Runnable start) {
+        synchronized (this) {
+            if (mRunning >= mLimit) {
+                mWaiting.add(start);
+                return;
+            }
+            mRunning++;
+        }
+        start.run();
+    }
+
+    /**
+     * Release capacity of a finished task and start the next waiting task, if any.
+     */
+    void release() {
+        Runnable next;
+        synchronized (this) {
+            next = mWaiting.poll();
+            if (next == null) {
+                mRunning--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+}
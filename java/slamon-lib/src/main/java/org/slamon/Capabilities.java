@@ -0,0 +1,133 @@
+package org.slamon;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable snapshot of registered task handler capabilities. Maps handler names
+ * to the highest registered version, and holds the capabilities in the JSON form
+ * sent to the AFM, so that both are built only when handler registrations change.
+ */
+final class Capabilities extends AbstractMap<String, Integer> {
+
+    static final Capabilities EMPTY = new Capabilities(Collections.<String, Map<Integer, TaskHandler>>emptyMap());
+
+    final private Map<String, Integer> mVersions;
+    final private Map<String, Map<String, Object>> mJson;
+    private String mFingerprint;
+
+    /**
+     * @param handlers registered handlers by name and version
+     */
+    Capabilities(Map<String, Map<Integer, TaskHandler>> handlers) {
+        Map<String, Integer> versions = new HashMap<String, Integer>();
+        Map<String, Map<String, Object>> json = new HashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, Map<Integer, TaskHandler>> handler : handlers.entrySet()) {
+            TreeSet<Integer> handlerVersions = new TreeSet<Integer>(handler.getValue().keySet());
+            if (handlerVersions.isEmpty()) {
+                continue;
+            }
+            versions.put(handler.getKey(), handlerVersions.last());
+
+            // Each entry is of format "task-type-1": {"version": 1}, where version is the
+            // highest version. Further versions are listed as "versions": [1, 2].
+            Map<String, Object> entry = new HashMap<String, Object>();
+            entry.put("version", handlerVersions.last());
+            if (handlerVersions.size() > 1) {
+                entry.put("versions", Collections.unmodifiableList(new ArrayList<Integer>(handlerVersions)));
+            }
+            json.put(handler.getKey(), Collections.unmodifiableMap(entry));
+        }
+        mVersions = Collections.unmodifiableMap(versions);
+        mJson = Collections.unmodifiableMap(json);
+    }
+
+    @Override
+    public Set<Entry<String, Integer>> entrySet() {
+        return mVersions.entrySet();
+    }
+
+    @Override
+    public Integer get(Object key) {
+        return mVersions.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return mVersions.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return mVersions.size();
+    }
+
+    /**
+     * Get fingerprint identifying the capabilities. Equal capabilities have equal fingerprints,
+     * so the AFM can recognize capabilities it has already received by their fingerprint.
+     *
+     * @return hex encoded SHA-1 hash of the capabilities
+     */
+    synchronized String fingerprint() {
+        if (mFingerprint == null) {
+            mFingerprint = hash(mJson);
+        }
+        return mFingerprint;
+    }
+
+    /**
+     * Get fingerprint of capabilities given as handler names and versions.
+     *
+     * @param capabilities capability snapshot, or map of handler names to versions
+     * @return hex encoded SHA-1 hash of the capabilities
+     */
+    static String fingerprint(Map<String, Integer> capabilities) {
+        if (capabilities instanceof Capabilities) {
+            return ((Capabilities) capabilities).fingerprint();
+        }
+        Map<String, Map<String, Object>> json = new HashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, Integer> capability : capabilities.entrySet()) {
+            json.put(capability.getKey(), Collections.<String, Object>singletonMap("version", capability.getValue()));
+        }
+        return hash(json);
+    }
+
+    private static String hash(Map<String, Map<String, Object>> json) {
+        // Canonical form with sorted names and keys, e.g. name-1{version=2, versions=[1, 2]}
+        StringBuilder canonical = new StringBuilder();
+        Map<String, Map<String, Object>> sorted = new TreeMap<String, Map<String, Object>>(json);
+        for (Map.Entry<String, Map<String, Object>> capability : sorted.entrySet()) {
+            canonical.append(capability.getKey()).append(new TreeMap<String, Object>(capability.getValue())).append('\n');
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(canonical.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get capabilities in the form sent to the AFM in task requests.
+     *
+     * @return unmodifiable map of handler names to capability information
+     */
+    Map<String, Map<String, Object>> toJSON() {
+        return mJson;
+    }
+}
@@ -0,0 +1,190 @@
+package org.slamon;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Backs off from a failing remote service, such as the AFM. After each consecutive failure
+ * the next attempt is delayed by an exponentially growing delay with full jitter, bounded by
+ * a maximum delay. Full jitter spreads the retries of agents that failed at the same moment
+ * over the whole delay, so that a fleet does not reconnect all at once after an outage.
+ * <p>
+ * After a number of consecutive failures the circuit opens. Once the delay has passed,
+ * the circuit is half-open and a single probe request is let through. Success of the probe
+ * closes the circuit, and failure opens it again with a longer delay.
+ */
+public class CircuitBreaker {
+
+    public static final long DEFAULT_INITIAL_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 5 * 60 * 1000;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Listener for circuit state changes. Called from the thread recording the outcome of a request.
+     */
+    public interface Listener {
+        void stateChanged(CircuitBreaker breaker, State state);
+    }
+
+    final private String mName;
+    final private List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    final private Random mRandom = new Random();
+    private long mInitialDelayMs = DEFAULT_INITIAL_DELAY_MS;
+    private long mMaxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private State mState = State.CLOSED;
+    private int mFailures = 0;
+    // Monotonic time before which no attempt is allowed
+    private long mRetryTime = 0;
+
+    /**
+     * @param name name identifying the circuit in events
+     */
+    public CircuitBreaker(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Set bounds for the delay before the next attempt.
+     *
+     * @param initialDelayMs upper bound for the delay after the first failure
+     * @param maxDelayMs     upper bound for the delay after any number of failures
+     */
+    public synchronized void setDelays(long initialDelayMs, long maxDelayMs) {
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * @param failures number of consecutive failures opening the circuit
+     */
+    public synchronized void setFailureThreshold(int failures) {
+        mFailureThreshold = Math.max(1, failures);
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * @return number of failures since the last success
+     */
+    public synchronized int getConsecutiveFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return time until the next attempt is allowed in milliseconds, 0 if allowed now
+     */
+    public synchronized long getRetryDelay() {
+        return Math.max(0, mRetryTime - now());
+    }
+
+    /**
+     * Check if an attempt is allowed now. When the delay of an open circuit has passed,
+     * the circuit turns half-open and the caller gets to make the probe attempt.
+     * While the probe is in progress, other attempts are not allowed.
+     * The outcome of an allowed attempt must be recorded.
+     *
+     * @return true if the caller may make an attempt
+     */
+    public boolean tryAcquire() {
+        synchronized (this) {
+            if (now() < mRetryTime || mState == State.HALF_OPEN) {
+                return false;
+            }
+            if (mState == State.CLOSED) {
+                return true;
+            }
+            mState = State.HALF_OPEN;
+        }
+        notifyListeners(State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Wait until an attempt is allowed, see {@link #tryAcquire()}.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        while (!tryAcquire()) {
+            synchronized (this) {
+                long delay = mRetryTime - now();
+                if (delay > 0) {
+                    wait(delay);
+                } else if (mState == State.HALF_OPEN) {
+                    // Probe of another caller in progress
+                    wait();
+                }
+            }
+        }
+    }
+
+    /**
+     * Record successful attempt, closing the circuit.
+     */
+    public void recordSuccess() {
+        synchronized (this) {
+            mFailures = 0;
+            mRetryTime = 0;
+            notifyAll();
+            if (mState == State.CLOSED) {
+                return;
+            }
+            mState = State.CLOSED;
+        }
+        notifyListeners(State.CLOSED);
+    }
+
+    /**
+     * Record failed attempt, delaying the next attempt and opening the circuit
+     * after enough consecutive failures or a failed probe.
+     *
+     * @return delay before the next attempt in milliseconds
+     */
+    public long recordFailure() {
+        long delay;
+        synchronized (this) {
+            mFailures++;
+            long maxDelay = mMaxDelayMs;
+            if (mFailures <= 30) {
+                maxDelay = Math.min(mMaxDelayMs, mInitialDelayMs << (mFailures - 1));
+            }
+            delay = (long) (mRandom.nextDouble() * maxDelay);
+            mRetryTime = now() + delay;
+            notifyAll();
+            if (mState == State.OPEN || (mState == State.CLOSED && mFailures < mFailureThreshold)) {
+                return delay;
+            }
+            mState = State.OPEN;
+        }
+        notifyListeners(State.OPEN);
+        return delay;
+    }
+
+    private void notifyListeners(State state) {
+        for (Listener listener : mListeners) {
+            listener.stateChanged(this, state);
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,60 @@
+package org.slamon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for values updated from many threads. Updates are spread over
+ * stripes selected by the updating thread, so that threads rarely contend
+ * on the same memory, and the stripes are summed when the counter is read.
+ */
+public class Counter {
+
+    // Stripes are placed a cache line apart to avoid false sharing
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripeCount();
+
+    final private AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripeCount() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        long id = Thread.currentThread().getId();
+        int stripe = (int) ((id ^ (id >>> 8)) & (STRIPES - 1));
+        mCells.getAndAdd(stripe * PADDING, delta);
+    }
+
+    /**
+     * @return sum of all updates
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; ++i) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Get sum of all updates and reset the counter to zero. Updates made
+     * concurrently are either included in the sum or left in the counter.
+     *
+     * @return sum of updates since the previous reset
+     */
+    public long sumAndReset() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; ++i) {
+            sum += mCells.getAndSet(i * PADDING, 0);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,310 @@
+package org.slamon;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers agent events to listeners on a dedicated thread, so that slow listeners
+ * do not delay polling or task execution. Events are copied into a ring buffer of
+ * preallocated slots, so publishing an event does not allocate. When the buffer is
+ * full, the overflow policy decides whether the publisher waits or an event is dropped.
+ */
+class EventDispatcher implements Runnable {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    enum Type {
+        CONNECTION_STATE_CHANGED,
+        CONNECTION_TO_AFM,
+        TEMPORARY_ERROR,
+        FATAL_ERROR,
+        TASK_STARTED,
+        TASK_COMPLETED,
+        TASK_ERROR,
+        CIRCUIT_STATE_CHANGED
+    }
+
+    /**
+     * Slot of the ring buffer, reused for every event passing through it.
+     */
+    private static class Event {
+        Type type;
+        String taskId;
+        String taskType;
+        String message;
+        String circuit;
+        long time;
+        Agent.ConnectionState connectionState;
+        CircuitBreaker.State circuitState;
+
+        void copyFrom(Event event) {
+            type = event.type;
+            taskId = event.taskId;
+            taskType = event.taskType;
+            message = event.message;
+            circuit = event.circuit;
+            time = event.time;
+            connectionState = event.connectionState;
+            circuitState = event.circuitState;
+        }
+
+        void clear(Type eventType) {
+            type = eventType;
+            taskId = null;
+            taskType = null;
+            message = null;
+            circuit = null;
+            time = 0;
+            connectionState = null;
+            circuitState = null;
+        }
+    }
+
+    final private Logger logger = Logger.getLogger(EventDispatcher.class.getCanonicalName());
+    final private List<AgentEventListener> mListeners;
+    final private Event[] mRing;
+    final private int mMask;
+    final private Agent.EventOverflow mOverflow;
+    // Event being delivered, owned by the dispatcher thread
+    final private Event mDelivering = new Event();
+    // Sequence numbers of the next event to deliver and the next slot to publish
+    private long mHead = 0;
+    private long mTail = 0;
+    private long mDroppedCount = 0;
+    private boolean mRun = false;
+    private Thread mThread;
+
+    /**
+     * @param listeners listeners to deliver events to
+     * @param capacity  number of events the buffer holds, rounded up to a power of two
+     * @param overflow  policy for publishing events into a full buffer
+     */
+    EventDispatcher(List<AgentEventListener> listeners, int capacity, Agent.EventOverflow overflow) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mListeners = listeners;
+        mRing = new Event[size];
+        for (int i = 0; i < size; ++i) {
+            mRing[i] = new Event();
+        }
+        mMask = size - 1;
+        mOverflow = overflow;
+    }
+
+    /**
+     * Start delivering events in a background thread. Events published before
+     * the dispatcher is started are delivered once started.
+     */
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRun = true;
+        mThread = new Thread(this, "slamon-agent-events");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop the dispatcher after delivering events already published.
+     *
+     * @param timeoutMs timeout in milliseconds to wait for events to be delivered
+     */
+    void shutdown(long timeoutMs) {
+        Thread thread;
+        synchronized (this) {
+            mRun = false;
+            notifyAll();
+            thread = mThread;
+        }
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of events dropped because the buffer was full
+     */
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    void connectionStateChanged(Agent.ConnectionState state) {
+        synchronized (this) {
+            Event event = claim(Type.CONNECTION_STATE_CHANGED);
+            if (event != null) {
+                event.connectionState = state;
+                publish();
+            }
+        }
+    }
+
+    void connectionToAfm(long returnTime) {
+        synchronized (this) {
+            Event event = claim(Type.CONNECTION_TO_AFM);
+            if (event != null) {
+                event.time = returnTime;
+                publish();
+            }
+        }
+    }
+
+    void temporaryError(String message) {
+        error(Type.TEMPORARY_ERROR, message);
+    }
+
+    void fatalError(String message) {
+        error(Type.FATAL_ERROR, message);
+    }
+
+    private void error(Type type, String message) {
+        synchronized (this) {
+            Event event = claim(type);
+            if (event != null) {
+                event.message = message;
+                publish();
+            }
+        }
+    }
+
+    void taskStarted(Task task) {
+        task(Type.TASK_STARTED, task, 0, null);
+    }
+
+    void taskCompleted(Task task, long durationMs) {
+        task(Type.TASK_COMPLETED, task, durationMs, null);
+    }
+
+    void taskError(Task task, long durationMs, String message) {
+        task(Type.TASK_ERROR, task, durationMs, message);
+    }
+
+    private void task(Type type, Task task, long durationMs, String message) {
+        synchronized (this) {
+            Event event = claim(type);
+            if (event != null) {
+                event.taskId = task.task_id;
+                event.taskType = task.task_type;
+                event.time = durationMs;
+                event.message = message;
+                publish();
+            }
+        }
+    }
+
+    void circuitStateChanged(String circuit, CircuitBreaker.State state) {
+        synchronized (this) {
+            Event event = claim(Type.CIRCUIT_STATE_CHANGED);
+            if (event != null) {
+                event.circuit = circuit;
+                event.circuitState = state;
+                publish();
+            }
+        }
+    }
+
+    /**
+     * Get the next free slot of the buffer, applying the overflow policy if the buffer is full.
+     * Must be called holding the lock of the dispatcher.
+     *
+     * @return slot to fill, or null if the event is dropped
+     */
+    private Event claim(Type type) {
+        if (mListeners.isEmpty()) {
+            return null;
+        }
+        while (mTail - mHead > mMask) {
+            // Waiting is not possible without a running dispatcher, or in a listener of the dispatcher itself
+            boolean canWait = mRun && mThread != Thread.currentThread();
+            if (mOverflow == Agent.EventOverflow.BLOCK && canWait) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mDroppedCount++;
+                    return null;
+                }
+            } else if (mOverflow == Agent.EventOverflow.DROP_NEWEST) {
+                mDroppedCount++;
+                return null;
+            } else {
+                mHead++;
+                mDroppedCount++;
+            }
+        }
+        Event event = mRing[(int) (mTail & mMask)];
+        event.clear(type);
+        return event;
+    }
+
+    private void publish() {
+        mTail++;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                while (mHead == mTail) {
+                    if (!mRun) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                mDelivering.copyFrom(mRing[(int) (mHead & mMask)]);
+                mHead++;
+                // Wake up publishers waiting for room
+                notifyAll();
+            }
+            for (AgentEventListener listener : mListeners) {
+                try {
+                    deliver(listener, mDelivering);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Agent event listener failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void deliver(AgentEventListener listener, Event event) {
+        switch (event.type) {
+            case CONNECTION_STATE_CHANGED:
+                listener.connectionStateChanged(event.connectionState);
+                break;
+            case CONNECTION_TO_AFM:
+                listener.connectionToAfm(event.time);
+                break;
+            case TEMPORARY_ERROR:
+                listener.temporaryError(event.message);
+                break;
+            case FATAL_ERROR:
+                listener.fatalError(event.message);
+                break;
+            case TASK_STARTED:
+                listener.taskStarted(event.taskId, event.taskType);
+                break;
+            case TASK_COMPLETED:
+                listener.taskCompleted(event.taskId, event.taskType, event.time);
+                break;
+            case TASK_ERROR:
+                listener.taskError(event.taskId, event.taskType, event.time, event.message);
+                break;
+            case CIRCUIT_STATE_CHANGED:
+                listener.circuitStateChanged(event.circuit, event.circuitState);
+                break;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.slamon;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values, such as latencies in milliseconds, in fixed memory.
+ * Values are counted in buckets of powers of two: bucket 0 holds zero, and bucket
+ * i holds values from 2^(i-1) to 2^i - 1. Percentiles are thus accurate to within
+ * a factor of two, which is enough to tell apart fast and slow operations.
+ */
+public class Histogram {
+
+    static final int BUCKETS = 64;
+
+    final private AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    final private AtomicLong mSum = new AtomicLong();
+    final private AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param value value to record, negative values are recorded as zero
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        mBuckets.incrementAndGet(bucket(value));
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * @return recorded values
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = mBuckets.get(i);
+        }
+        return new Snapshot(counts, mSum.get(), mMax.get());
+    }
+
+    /**
+     * Get recorded values and reset the histogram. Values recorded concurrently
+     * may be split between the snapshot and the histogram.
+     *
+     * @return values recorded since the previous reset
+     */
+    public Snapshot snapshotAndReset() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = mBuckets.getAndSet(i, 0);
+        }
+        return new Snapshot(counts, mSum.getAndSet(0), mMax.getAndSet(0));
+    }
+
+    static int bucket(long value) {
+        return value <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * Immutable copy of histogram values.
+     */
+    public static class Snapshot {
+        final private long[] mCounts;
+        final private long mCount;
+        final private long mSum;
+        final private long mMax;
+
+        Snapshot(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * Get upper bound of a percentile of the values.
+         *
+         * @param percentile percentile between 0 and 100
+         * @return largest value of the bucket holding the percentile, at most the maximum value
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += mCounts[i];
+                if (seen >= rank && mCounts[i] > 0) {
+                    return Math.min(mMax, upperBound(i));
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * @return number of values in each bucket
+         */
+        public long[] getBucketCounts() {
+            return mCounts.clone();
+        }
+
+        /**
+         * @param bucket bucket index
+         * @return largest value counted in the bucket
+         */
+        public static long upperBound(int bucket) {
+            return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+    }
+}
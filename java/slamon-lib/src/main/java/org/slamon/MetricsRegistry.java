@@ -0,0 +1,129 @@
+package org.slamon;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of named agent metrics: counters, histograms and gauges sampled when read.
+ * Recording is cheap enough for hot paths, and snapshots of all metrics can be
+ * taken for exporting them, optionally resetting counters and histograms.
+ * <p>
+ * Metrics recorded by the agent:
+ * <ul>
+ * <li>afm.poll_ms, afm.long_poll_ms: round trip time of task requests</li>
+ * <li>afm.post_results_ms: round trip time of result posts</li>
+ * <li>afm.temporary_errors, afm.fatal_errors: failed AFM requests</li>
+ * <li>agent.claim_to_start_ms: time from receiving a task to starting it</li>
+ * <li>task.execution_ms.&lt;task type&gt;: execution time of tasks by task type</li>
+ * <li>agent.tasks_received, agent.tasks_completed, agent.tasks_failed: task counts</li>
+ * <li>agent.active_tasks, agent.executor_utilization_percent, results.queue_depth: gauges</li>
+ * </ul>
+ */
+public class MetricsRegistry {
+
+    /**
+     * Metric read from its source when a snapshot is taken.
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    final private ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<String, Counter>();
+    final private ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+    final private ConcurrentMap<String, Gauge> mGauges = new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * @return counter of the given name, created if it does not exist
+     */
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            mCounters.putIfAbsent(name, new Counter());
+            counter = mCounters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * @return histogram of the given name, created if it does not exist
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            mHistograms.putIfAbsent(name, new Histogram());
+            histogram = mHistograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Register gauge, replacing a gauge of the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * @return current values of all metrics
+     */
+    public Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Get values of all metrics and reset counters and histograms,
+     * so that the next snapshot holds values recorded after this one.
+     *
+     * @return values of all metrics since the previous reset
+     */
+    public Snapshot snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    private Snapshot snapshot(boolean reset) {
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> counter : mCounters.entrySet()) {
+            counters.put(counter.getKey(), reset ? counter.getValue().sumAndReset() : counter.getValue().sum());
+        }
+        Map<String, Histogram.Snapshot> histograms = new TreeMap<String, Histogram.Snapshot>();
+        for (Map.Entry<String, Histogram> histogram : mHistograms.entrySet()) {
+            histograms.put(histogram.getKey(),
+                    reset ? histogram.getValue().snapshotAndReset() : histogram.getValue().snapshot());
+        }
+        Map<String, Long> gauges = new TreeMap<String, Long>();
+        for (Map.Entry<String, Gauge> gauge : mGauges.entrySet()) {
+            gauges.put(gauge.getKey(), gauge.getValue().value());
+        }
+        return new Snapshot(counters, histograms, gauges);
+    }
+
+    /**
+     * Immutable copy of metric values, sorted by name.
+     */
+    public static class Snapshot {
+        final private Map<String, Long> mCounters;
+        final private Map<String, Histogram.Snapshot> mHistograms;
+        final private Map<String, Long> mGauges;
+
+        Snapshot(Map<String, Long> counters, Map<String, Histogram.Snapshot> histograms, Map<String, Long> gauges) {
+            mCounters = Collections.unmodifiableMap(counters);
+            mHistograms = Collections.unmodifiableMap(histograms);
+            mGauges = Collections.unmodifiableMap(gauges);
+        }
+
+        public Map<String, Long> getCounters() {
+            return mCounters;
+        }
+
+        public Map<String, Histogram.Snapshot> getHistograms() {
+            return mHistograms;
+        }
+
+        public Map<String, Long> getGauges() {
+            return mGauges;
+        }
+    }
+}
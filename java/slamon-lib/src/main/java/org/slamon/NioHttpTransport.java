@@ -0,0 +1,681 @@
+package org.slamon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Selector based HTTP/1.1 client. All requests are sent and received by a single I/O thread,
+ * so any number of requests can be in flight without a thread for each of them.
+ * Connections are kept alive and reused per host, and gzip responses are decompressed.
+ * <p>
+ * Only plain http is supported. AFMs behind https need the blocking transport, or another
+ * {@link AsyncHttpTransport} implementation.
+ */
+public class NioHttpTransport implements AsyncHttpTransport, Runnable {
+
+    public static final int DEFAULT_TIMEOUT_MS = 20 * 1000;
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 4;
+    public static final int DEFAULT_MAX_RESPONSE_BYTES = 16 * 1024 * 1024;
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private static NioHttpTransport sShared;
+
+    final private Logger logger = Logger.getLogger(NioHttpTransport.class.getCanonicalName());
+    final private Queue<Exchange> mPending = new ConcurrentLinkedQueue<Exchange>();
+    final private AtomicInteger mInFlight = new AtomicInteger();
+    // Accessed only from the I/O thread
+    final private Map<String, LinkedList<Connection>> mIdle = new HashMap<String, LinkedList<Connection>>();
+    final private Set<Connection> mActive = new HashSet<Connection>();
+    private volatile int mTimeoutMs = DEFAULT_TIMEOUT_MS;
+    private volatile int mMaxIdlePerHost = DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST;
+    private volatile int mMaxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+    private volatile boolean mRun = true;
+    private Selector mSelector;
+    private Thread mThread;
+
+    /**
+     * Get the transport shared by all asynchronous AFM communication in the process.
+     *
+     * @return shared transport
+     */
+    public static synchronized NioHttpTransport getShared() {
+        if (sShared == null) {
+            sShared = new NioHttpTransport();
+        }
+        return sShared;
+    }
+
+    /**
+     * Set time to wait for a request to complete, including connecting.
+     *
+     * @param timeoutMs timeout in milliseconds
+     */
+    public void setTimeout(int timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Set maximum number of idle connections kept open per host. Connections over the limit
+     * are closed as they become idle.
+     *
+     * @param maxIdle maximum number of idle connections, 0 disables keep-alive
+     */
+    public void setMaxIdleConnectionsPerHost(int maxIdle) {
+        mMaxIdlePerHost = maxIdle;
+    }
+
+    /**
+     * Set maximum size of a response, including its headers. Larger responses fail with an IOException,
+     * not to buffer responses of any size in memory.
+     *
+     * @param maxBytes maximum response size in bytes, both as received and decompressed
+     */
+    public void setMaxResponseSize(int maxBytes) {
+        mMaxResponseBytes = maxBytes;
+    }
+
+    /**
+     * @return number of requests sent but not yet completed
+     */
+    public int getInFlightCount() {
+        return mInFlight.get();
+    }
+
+    @Override
+    public void post(String url, String contentType, byte[] body, Callback callback) {
+        URL parsed;
+        try {
+            parsed = new URL(url);
+            if (!parsed.getProtocol().equals("http")) {
+                throw new MalformedURLException("Unsupported protocol: " + parsed.getProtocol());
+            }
+            start();
+        } catch (IOException e) {
+            callback.failed(e);
+            return;
+        }
+
+        mInFlight.incrementAndGet();
+        mPending.add(new Exchange(parsed, request(parsed, contentType, body), callback,
+                System.currentTimeMillis() + mTimeoutMs));
+        mSelector.wakeup();
+    }
+
+    /**
+     * Stop the I/O thread. Requests in flight fail with an IOException.
+     */
+    public synchronized void shutdown() {
+        mRun = false;
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+    }
+
+    private synchronized void start() throws IOException {
+        if (!mRun) {
+            throw new IOException("Transport has been shut down");
+        }
+        if (mThread == null) {
+            mSelector = Selector.open();
+            mThread = new Thread(this, "slamon-nio-http");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * The I/O loop.
+     */
+    @Override
+    public void run() {
+        try {
+            while (mRun) {
+                mSelector.select(nextTimeout());
+
+                Exchange exchange;
+                while ((exchange = mPending.poll()) != null) {
+                    begin(exchange);
+                }
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            connection.mChannel.finishConnect();
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    }
+                }
+
+                expire();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "HTTP I/O thread failed: " + e.getMessage());
+        } catch (ClosedSelectorException e) {
+            logger.log(Level.SEVERE, "HTTP I/O thread failed: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    private long nextTimeout() {
+        long now = System.currentTimeMillis();
+        long timeout = 1000;
+        for (Connection connection : mActive) {
+            timeout = Math.min(timeout, connection.mExchange.mDeadline - now);
+        }
+        return Math.max(1, timeout);
+    }
+
+    /**
+     * Fail timed out requests and close expired idle connections.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<Connection>(mActive)) {
+            if (connection.mExchange.mDeadline <= now) {
+                connection.fail(new SocketTimeoutException("Timeout waiting for response from " +
+                        connection.mExchange.mUrl));
+            }
+        }
+        Iterator<LinkedList<Connection>> hosts = mIdle.values().iterator();
+        while (hosts.hasNext()) {
+            LinkedList<Connection> connections = hosts.next();
+            Iterator<Connection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (now - connection.mIdleSince > KEEP_ALIVE_MS) {
+                    iterator.remove();
+                    connection.close();
+                }
+            }
+            if (connections.isEmpty()) {
+                hosts.remove();
+            }
+        }
+    }
+
+    private void close() {
+        IOException error = new IOException("Transport has been shut down");
+        for (Connection connection : new ArrayList<Connection>(mActive)) {
+            connection.fail(error);
+        }
+        for (List<Connection> connections : mIdle.values()) {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+        mIdle.clear();
+        Exchange exchange;
+        while ((exchange = mPending.poll()) != null) {
+            exchange.failed(error);
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // Nothing to do, the selector is not used anymore
+        }
+    }
+
+    /**
+     * Send exchange over an idle connection to the host, or a new connection.
+     * Retried exchanges always get a new connection, as the other idle connections
+     * may have been closed by the server as well.
+     */
+    private void begin(Exchange exchange) {
+        LinkedList<Connection> idle = mIdle.get(exchange.mHost);
+        Connection connection = idle != null && !exchange.mRetried ? idle.pollLast() : null;
+        if (idle != null && idle.isEmpty()) {
+            mIdle.remove(exchange.mHost);
+        }
+
+        try {
+            if (connection == null) {
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    int port = exchange.mUrl.getPort() != -1 ? exchange.mUrl.getPort() : exchange.mUrl.getDefaultPort();
+                    boolean connected = channel.connect(new InetSocketAddress(exchange.mUrl.getHost(), port));
+                    connection = new Connection(exchange.mHost, channel);
+                    connection.mKey = channel.register(mSelector,
+                            connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, connection);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            } else {
+                connection.mReused = true;
+                connection.mKey.interestOps(SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            exchange.failed(e);
+            return;
+        }
+        connection.start(exchange);
+    }
+
+    private void release(Connection connection) {
+        connection.mIdleSince = System.currentTimeMillis();
+        LinkedList<Connection> idle = mIdle.get(connection.mHost);
+        if (idle == null) {
+            idle = new LinkedList<Connection>();
+            mIdle.put(connection.mHost, idle);
+        }
+        idle.addLast(connection);
+        // Read interest detects connections closed by the server while idle
+        connection.mKey.interestOps(SelectionKey.OP_READ);
+        while (idle.size() > mMaxIdlePerHost) {
+            idle.removeFirst().close();
+        }
+    }
+
+    private static byte[] request(URL url, String contentType, byte[] body) {
+        StringBuilder head = new StringBuilder();
+        String file = url.getFile();
+        head.append("POST ").append(file.length() > 0 ? file : "/").append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        head.append("Accept-Encoding: gzip\r\n");
+        head.append("Content-Type: ").append(contentType).append("\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+
+        byte[] headBytes;
+        try {
+            headBytes = head.toString().getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] request = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+        System.arraycopy(body, 0, request, headBytes.length, body.length);
+        return request;
+    }
+
+    /**
+     * Single request and the callback waiting for its response.
+     */
+    private class Exchange {
+        final private URL mUrl;
+        final private String mHost;
+        final private byte[] mRequest;
+        final private Callback mCallback;
+        final private long mDeadline;
+        private boolean mRetried = false;
+
+        Exchange(URL url, byte[] request, Callback callback, long deadline) {
+            mUrl = url;
+            mHost = url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+            mRequest = request;
+            mCallback = callback;
+            mDeadline = deadline;
+        }
+
+        void completed(Response response) {
+            mInFlight.decrementAndGet();
+            try {
+                mCallback.completed(response);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "HTTP response callback failed: " + e.getMessage());
+            }
+        }
+
+        void failed(IOException error) {
+            mInFlight.decrementAndGet();
+            try {
+                mCallback.failed(error);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "HTTP response callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Connection carrying one exchange at a time.
+     */
+    private class Connection {
+        final private String mHost;
+        final private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private Exchange mExchange;
+        private ByteBuffer mOut;
+        private byte[] mIn = new byte[4096];
+        private int mInLength = 0;
+        private boolean mReused = false;
+        private long mIdleSince;
+
+        Connection(String host, SocketChannel channel) {
+            mHost = host;
+            mChannel = channel;
+        }
+
+        void start(Exchange exchange) {
+            mExchange = exchange;
+            mOut = ByteBuffer.wrap(exchange.mRequest);
+            mInLength = 0;
+            mActive.add(this);
+        }
+
+        void write() throws IOException {
+            try {
+                mChannel.write(mOut);
+            } catch (IOException e) {
+                if (retry()) {
+                    return;
+                }
+                throw e;
+            }
+            if (!mOut.hasRemaining()) {
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void read() throws IOException {
+            if (mExchange == null) {
+                // Idle connection closed by the server, or unexpected data
+                removeIdle();
+                close();
+                return;
+            }
+            if (mInLength == mIn.length) {
+                if (mIn.length >= mMaxResponseBytes) {
+                    throw new IOException("Response from " + mExchange.mUrl + " exceeds " +
+                            mMaxResponseBytes + " bytes");
+                }
+                byte[] grown = new byte[Math.min(mIn.length * 2, mMaxResponseBytes)];
+                System.arraycopy(mIn, 0, grown, 0, mInLength);
+                mIn = grown;
+            }
+            int read = mChannel.read(ByteBuffer.wrap(mIn, mInLength, mIn.length - mInLength));
+            if (read == -1) {
+                closed();
+                return;
+            }
+            mInLength += read;
+            parse(false);
+        }
+
+        /**
+         * Handle end of stream from the server.
+         */
+        private void closed() throws IOException {
+            if (mInLength == 0 && retry()) {
+                return;
+            }
+            if (!parse(true)) {
+                throw new EOFException("Connection closed before end of response");
+            }
+        }
+
+        /**
+         * Send the exchange again over a new connection if the server closed the kept alive connection
+         * before receiving the whole request. Once the whole request is written, the server may have
+         * processed it, and it is not sent again as requests such as task polls are not idempotent.
+         *
+         * @return true if the exchange is retried
+         */
+        private boolean retry() {
+            if (!mReused || !mOut.hasRemaining() || mExchange.mRetried) {
+                return false;
+            }
+            Exchange exchange = mExchange;
+            exchange.mRetried = true;
+            mActive.remove(this);
+            mExchange = null;
+            close();
+            begin(exchange);
+            return true;
+        }
+
+        /**
+         * Complete the exchange if the whole response has been received.
+         *
+         * @param eof true if the server has closed the connection
+         * @return true if the response was complete
+         */
+        private boolean parse(boolean eof) throws IOException {
+            int headerEnd;
+            String[] lines;
+            String[] status;
+            int statusCode;
+            while (true) {
+                headerEnd = indexOf(mIn, mInLength, HEADER_END, 0);
+                if (headerEnd < 0) {
+                    return false;
+                }
+                lines = new String(mIn, 0, headerEnd, "ISO-8859-1").split("\r\n");
+                status = lines[0].split(" ", 3);
+                try {
+                    statusCode = Integer.parseInt(status[1]);
+                } catch (RuntimeException e) {
+                    throw new IOException("Invalid HTTP status line: " + lines[0]);
+                }
+                if (statusCode / 100 != 1 || statusCode == 101) {
+                    break;
+                }
+                // Interim response such as 100 Continue, the final response follows it
+                int next = headerEnd + HEADER_END.length;
+                System.arraycopy(mIn, next, mIn, 0, mInLength - next);
+                mInLength -= next;
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; ++i) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            int bodyStart = headerEnd + HEADER_END.length;
+            String transferEncoding = headers.get("transfer-encoding");
+            String contentLength = headers.get("content-length");
+            boolean keepAlive = status[0].equals("HTTP/1.1") ?
+                    !"close".equalsIgnoreCase(headers.get("connection")) :
+                    "keep-alive".equalsIgnoreCase(headers.get("connection"));
+            byte[] body;
+            int end;
+            if (statusCode / 100 == 1 || statusCode == 204 || statusCode == 304) {
+                body = new byte[0];
+                end = bodyStart;
+            } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+                end = dechunk(bodyStart, chunks);
+                if (end < 0) {
+                    return false;
+                }
+                body = chunks.toByteArray();
+            } else if (contentLength != null) {
+                int length;
+                try {
+                    length = Integer.parseInt(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length: " + contentLength);
+                }
+                if (mInLength - bodyStart < length) {
+                    return false;
+                }
+                end = bodyStart + length;
+                body = new byte[length];
+                System.arraycopy(mIn, bodyStart, body, 0, length);
+            } else {
+                // Body ends when the server closes the connection
+                if (!eof) {
+                    return false;
+                }
+                keepAlive = false;
+                end = mInLength;
+                body = new byte[end - bodyStart];
+                System.arraycopy(mIn, bodyStart, body, 0, body.length);
+            }
+
+            if ("gzip".equalsIgnoreCase(headers.get("content-encoding")) && body.length > 0) {
+                body = gunzip(body, mMaxResponseBytes);
+                headers.remove("content-encoding");
+                headers.put("content-length", String.valueOf(body.length));
+            }
+
+            Exchange exchange = mExchange;
+            mExchange = null;
+            mActive.remove(this);
+            if (keepAlive && !eof && end == mInLength) {
+                release(this);
+            } else {
+                close();
+            }
+            exchange.completed(new Response(statusCode, status.length > 2 ? status[2] : "", headers, body));
+            return true;
+        }
+
+        /**
+         * Decode chunked body.
+         *
+         * @return end of the body, or -1 if not yet completely received
+         */
+        private int dechunk(int offset, ByteArrayOutputStream out) throws IOException {
+            while (true) {
+                int lineEnd = indexOf(mIn, mInLength, HEADER_END, offset, 2);
+                if (lineEnd < 0) {
+                    return -1;
+                }
+                String line = new String(mIn, offset, lineEnd - offset, "ISO-8859-1");
+                int extension = line.indexOf(';');
+                int size;
+                try {
+                    size = Integer.parseInt((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + line);
+                }
+                offset = lineEnd + 2;
+                if (size == 0) {
+                    // Trailers end with an empty line
+                    while (true) {
+                        int trailerEnd = indexOf(mIn, mInLength, HEADER_END, offset, 2);
+                        if (trailerEnd < 0) {
+                            return -1;
+                        }
+                        if (trailerEnd == offset) {
+                            return offset + 2;
+                        }
+                        offset = trailerEnd + 2;
+                    }
+                }
+                if (mInLength < offset + size + 2) {
+                    return -1;
+                }
+                out.write(mIn, offset, size);
+                offset += size + 2;
+            }
+        }
+
+        void fail(IOException error) {
+            Exchange exchange = mExchange;
+            mExchange = null;
+            mActive.remove(this);
+            removeIdle();
+            close();
+            if (exchange != null) {
+                exchange.failed(error);
+            }
+        }
+
+        private void removeIdle() {
+            LinkedList<Connection> idle = mIdle.get(mHost);
+            if (idle != null) {
+                idle.remove(this);
+                if (idle.isEmpty()) {
+                    mIdle.remove(mHost);
+                }
+            }
+        }
+
+        void close() {
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Nothing to do, the connection is dropped anyway
+            }
+        }
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern, int offset) {
+        return indexOf(data, length, pattern, offset, pattern.length);
+    }
+
+    /**
+     * Find first occurrence of the prefix of given length of a pattern.
+     */
+    private static int indexOf(byte[] data, int length, byte[] pattern, int offset, int patternLength) {
+        outer:
+        for (int i = offset; i <= length - patternLength; ++i) {
+            for (int j = 0; j < patternLength; ++j) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] gunzip(byte[] data, int maxBytes) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (out.size() + read > maxBytes) {
+                in.close();
+                throw new IOException("Decompressed response exceeds " + maxBytes + " bytes");
+            }
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
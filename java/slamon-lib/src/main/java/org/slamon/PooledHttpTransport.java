@@ -0,0 +1,840 @@
+package org.slamon;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP/1.1 transport keeping connections alive between requests. Idle connections are
+ * pooled per host, up to a configurable number of connections per host, and closed after
+ * they have been idle longer than the keep-alive time.
+ * <p>
+ * Responses are requested gzip compressed and decompressed transparently. Request bodies
+ * can be gzip compressed as well, if the server is known to accept compressed requests.
+ * <p>
+ * A single transport can be shared by any number of request factories and threads,
+ * see {@link #getShared()}.
+ * <p>
+ * Proxies are selected with the default {@link ProxySelector}, like with HttpURLConnection.
+ * Plain http requests are sent to HTTP proxies with absolute URIs, https requests are tunneled
+ * with CONNECT, and SOCKS proxies are connected through by the socket itself.
+ */
+public class PooledHttpTransport extends HttpTransport {
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 4;
+    public static final long DEFAULT_KEEP_ALIVE_MS = 30 * 1000;
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 20 * 1000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 20 * 1000;
+    // Bytes read from an unfinished response body to keep its connection reusable
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    private static final int MIN_COMPRESSED_SIZE = 256;
+
+    private static PooledHttpTransport sShared;
+
+    final private Logger logger = Logger.getLogger(PooledHttpTransport.class.getCanonicalName());
+    // Idle connections by host, most recently used last
+    final private Map<String, LinkedList<Connection>> mIdle = new HashMap<String, LinkedList<Connection>>();
+    private int mMaxIdlePerHost = DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST;
+    private long mKeepAliveMs = DEFAULT_KEEP_ALIVE_MS;
+    private volatile boolean mCompressRequests = false;
+
+    final private AtomicLong mNewConnections = new AtomicLong();
+    final private AtomicLong mReusedConnections = new AtomicLong();
+    final private AtomicLong mEvictedConnections = new AtomicLong();
+    final private AtomicLong mBytesSaved = new AtomicLong();
+
+    /**
+     * Get the transport shared by the agent, AFM communication and task handlers.
+     *
+     * @return shared transport
+     */
+    public static synchronized PooledHttpTransport getShared() {
+        if (sShared == null) {
+            sShared = new PooledHttpTransport();
+        }
+        return sShared;
+    }
+
+    /**
+     * Set maximum number of idle connections kept open per host.
+     *
+     * @param maxIdle maximum number of idle connections, 0 disables keep-alive
+     */
+    public synchronized void setMaxIdleConnectionsPerHost(int maxIdle) {
+        mMaxIdlePerHost = maxIdle;
+        evictIdleConnections();
+    }
+
+    /**
+     * Set time after which idle connections are closed.
+     *
+     * @param keepAliveMs keep-alive time in milliseconds
+     */
+    public synchronized void setKeepAlive(long keepAliveMs) {
+        mKeepAliveMs = keepAliveMs;
+        evictIdleConnections();
+    }
+
+    /**
+     * Enable gzip compression of request bodies. The server must accept
+     * requests with content encoding gzip.
+     *
+     * @param compress true to compress request bodies
+     */
+    public void setCompressRequests(boolean compress) {
+        mCompressRequests = compress;
+    }
+
+    /**
+     * @return number of connections opened
+     */
+    public long getNewConnectionCount() {
+        return mNewConnections.get();
+    }
+
+    /**
+     * @return number of requests sent over an already open connection
+     */
+    public long getReusedConnectionCount() {
+        return mReusedConnections.get();
+    }
+
+    /**
+     * @return number of idle connections closed for exceeding the keep-alive time or pool size
+     */
+    public long getEvictedConnectionCount() {
+        return mEvictedConnections.get();
+    }
+
+    /**
+     * @return number of bytes not transferred thanks to gzip compression of requests and responses
+     */
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    /**
+     * @return number of currently idle connections in the pool
+     */
+    public synchronized int getIdleConnectionCount() {
+        int count = 0;
+        for (List<Connection> connections : mIdle.values()) {
+            count += connections.size();
+        }
+        return count;
+    }
+
+    /**
+     * Close connections that have been idle longer than the keep-alive time.
+     * Expired connections are also closed whenever connections are taken from or returned to the pool.
+     */
+    public synchronized void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        Iterator<LinkedList<Connection>> hosts = mIdle.values().iterator();
+        while (hosts.hasNext()) {
+            LinkedList<Connection> connections = hosts.next();
+            Iterator<Connection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (now - connection.mIdleSince > mKeepAliveMs || connections.size() > mMaxIdlePerHost) {
+                    iterator.remove();
+                    connection.close();
+                    mEvictedConnections.incrementAndGet();
+                }
+            }
+            if (connections.isEmpty()) {
+                hosts.remove();
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return method.equals("DELETE") || method.equals("GET") || method.equals("HEAD") ||
+                method.equals("OPTIONS") || method.equals("POST") || method.equals("PUT") || method.equals("TRACE");
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        URL parsed = new URL(url);
+        if (!parsed.getProtocol().equals("http") && !parsed.getProtocol().equals("https")) {
+            throw new IOException("Unsupported protocol: " + parsed.getProtocol());
+        }
+        return new PooledRequest(method, parsed);
+    }
+
+    /**
+     * Close all idle connections. Connections in use are closed when their responses have been read.
+     */
+    @Override
+    public synchronized void shutdown() {
+        for (List<Connection> connections : mIdle.values()) {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+        mIdle.clear();
+    }
+
+    private synchronized Connection takeIdle(String key) {
+        evictIdleConnections();
+        LinkedList<Connection> connections = mIdle.get(key);
+        if (connections == null) {
+            return null;
+        }
+        Connection connection = connections.removeLast();
+        if (connections.isEmpty()) {
+            mIdle.remove(key);
+        }
+        return connection;
+    }
+
+    private synchronized void release(Connection connection) {
+        connection.mIdleSince = System.currentTimeMillis();
+        LinkedList<Connection> connections = mIdle.get(connection.mKey);
+        if (connections == null) {
+            connections = new LinkedList<Connection>();
+            mIdle.put(connection.mKey, connections);
+        }
+        connections.addLast(connection);
+        evictIdleConnections();
+    }
+
+    /**
+     * Select proxy for the URL with the default proxy selector.
+     *
+     * @return proxy, {@link Proxy#NO_PROXY} for a direct connection
+     */
+    private static Proxy selectProxy(URL url) {
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) {
+            return Proxy.NO_PROXY;
+        }
+        try {
+            List<Proxy> proxies = selector.select(url.toURI());
+            return proxies == null || proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+        } catch (URISyntaxException e) {
+            return Proxy.NO_PROXY;
+        } catch (IllegalArgumentException e) {
+            return Proxy.NO_PROXY;
+        }
+    }
+
+    private Connection connect(URL url, Proxy proxy, String key, int connectTimeout) throws IOException {
+        boolean https = url.getProtocol().equals("https");
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket = proxy.type() == Proxy.Type.SOCKS ? new Socket(proxy) : new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            if (proxy.type() == Proxy.Type.HTTP) {
+                socket.connect(proxy.address(), connectTimeout);
+                if (https) {
+                    tunnel(socket, url.getHost(), port, connectTimeout);
+                }
+            } else if (proxy.type() == Proxy.Type.SOCKS) {
+                // Host name is resolved by the proxy
+                socket.connect(InetSocketAddress.createUnresolved(url.getHost(), port), connectTimeout);
+            } else {
+                socket.connect(new InetSocketAddress(url.getHost(), port), connectTimeout);
+            }
+            if (https) {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, url.getHost(), port, true);
+                socket = ssl;
+                ssl.startHandshake();
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(url.getHost(), ssl.getSession())) {
+                    throw new SSLPeerUnverifiedException("Certificate does not match host " + url.getHost());
+                }
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        mNewConnections.incrementAndGet();
+        return new Connection(key, socket);
+    }
+
+    /**
+     * Open tunnel to the host through an HTTP proxy.
+     */
+    private static void tunnel(Socket socket, String host, int port, int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+        OutputStream out = socket.getOutputStream();
+        out.write(("CONNECT " + host + ":" + port + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n\r\n")
+                .getBytes("ISO-8859-1"));
+        out.flush();
+        // Read unbuffered, the TLS handshake follows the response
+        InputStream in = socket.getInputStream();
+        String status = readLine(in);
+        String[] parts = status.split(" ", 3);
+        if (parts.length < 2 || !parts[1].equals("200")) {
+            throw new IOException("Proxy refused tunnel to " + host + ":" + port + ": " + status);
+        }
+        while (readLine(in).length() > 0) {
+            // Skip response headers
+        }
+    }
+
+    /**
+     * Pooled connection with buffered streams.
+     */
+    private static class Connection {
+        final private String mKey;
+        final private Socket mSocket;
+        final private InputStream mIn;
+        final private OutputStream mOut;
+        private long mIdleSince;
+
+        Connection(String key, Socket socket) throws IOException {
+            mKey = key;
+            mSocket = socket;
+            mIn = new BufferedInputStream(socket.getInputStream());
+            mOut = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * Check if the server has closed the idle connection. Reading is given a millisecond,
+         * an open connection has nothing to read before a request is sent.
+         */
+        boolean isStale() {
+            try {
+                mSocket.setSoTimeout(1);
+                // End of stream, or unexpected data leaving the connection out of step
+                mIn.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // Nothing to do, the connection is dropped anyway
+            }
+        }
+    }
+
+    private class PooledRequest extends LowLevelHttpRequest {
+        final private String mMethod;
+        final private URL mUrl;
+        final private List<String[]> mHeaders = new ArrayList<String[]>();
+        private int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+        private int mReadTimeout = DEFAULT_READ_TIMEOUT_MS;
+
+        PooledRequest(String method, URL url) {
+            mMethod = method;
+            mUrl = url;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            mHeaders.add(new String[]{name, value});
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            mConnectTimeout = connectTimeout;
+            mReadTimeout = readTimeout;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            String contentEncoding = getContentEncoding();
+            byte[] body = null;
+            if (getStreamingContent() != null) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                getStreamingContent().writeTo(buffer);
+                body = buffer.toByteArray();
+
+                if (mCompressRequests && contentEncoding == null && body.length >= MIN_COMPRESSED_SIZE) {
+                    byte[] compressed = gzip(body);
+                    if (compressed.length < body.length) {
+                        mBytesSaved.addAndGet(body.length - compressed.length);
+                        body = compressed;
+                        contentEncoding = "gzip";
+                    }
+                }
+            }
+            int port = mUrl.getPort() != -1 ? mUrl.getPort() : mUrl.getDefaultPort();
+            Proxy proxy = selectProxy(mUrl);
+            String key = mUrl.getProtocol() + "://" + mUrl.getHost() + ":" + port;
+            if (proxy.type() != Proxy.Type.DIRECT) {
+                key += " via " + proxy;
+            }
+            // Plain http requests to an HTTP proxy name the target in the request line
+            byte[] head = head(contentEncoding, body,
+                    proxy.type() == Proxy.Type.HTTP && mUrl.getProtocol().equals("http"));
+            while (true) {
+                Connection connection = takeIdle(key);
+                if (connection != null && connection.isStale()) {
+                    logger.log(Level.FINE, "Idle connection to " + key + " closed by the server");
+                    connection.close();
+                    continue;
+                }
+                boolean reused = connection != null;
+                if (reused) {
+                    mReusedConnections.incrementAndGet();
+                } else {
+                    connection = connect(mUrl, proxy, key, mConnectTimeout);
+                }
+
+                try {
+                    connection.mSocket.setSoTimeout(mReadTimeout);
+                    connection.mOut.write(head);
+                    if (body != null) {
+                        connection.mOut.write(body);
+                    }
+                    connection.mOut.flush();
+                } catch (IOException e) {
+                    connection.close();
+                    if (!reused) {
+                        throw e;
+                    }
+                    // The server closed the idle connection before it got the whole request,
+                    // so it can not have processed it. Try again with a new connection.
+                    logger.log(Level.FINE, "Reused connection to " + key + " failed: " + e.getMessage());
+                    continue;
+                }
+
+                // Once the whole request is written the server may have processed it, so the request
+                // is not sent again even if the connection is then closed or reset without a response,
+                // as requests such as task polls are not idempotent.
+                try {
+                    return new PooledResponse(connection, mMethod);
+                } catch (IOException e) {
+                    connection.close();
+                    throw e;
+                }
+            }
+        }
+
+        private byte[] head(String contentEncoding, byte[] body, boolean absoluteUri) throws IOException {
+            StringBuilder head = new StringBuilder();
+            String file = mUrl.getFile();
+            String target = file.length() > 0 ? file : "/";
+            if (absoluteUri) {
+                target = mUrl.getProtocol() + "://" + mUrl.getAuthority() + target;
+            }
+            head.append(mMethod).append(' ').append(target).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(mUrl.getHost());
+            if (mUrl.getPort() != -1) {
+                head.append(':').append(mUrl.getPort());
+            }
+            head.append("\r\n");
+
+            boolean acceptEncoding = false;
+            for (String[] header : mHeaders) {
+                String name = header[0];
+                if (name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Connection") ||
+                        name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Content-Encoding") ||
+                        name.equalsIgnoreCase("Content-Type") || name.equalsIgnoreCase("Transfer-Encoding")) {
+                    continue;
+                }
+                acceptEncoding |= name.equalsIgnoreCase("Accept-Encoding");
+                head.append(name).append(": ").append(header[1]).append("\r\n");
+            }
+            if (!acceptEncoding) {
+                head.append("Accept-Encoding: gzip\r\n");
+            }
+            if (getContentType() != null) {
+                head.append("Content-Type: ").append(getContentType()).append("\r\n");
+            }
+            if (contentEncoding != null) {
+                head.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+            }
+            if (body != null) {
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            head.append("\r\n");
+            return head.toString().getBytes("ISO-8859-1");
+        }
+    }
+
+    private class PooledResponse extends LowLevelHttpResponse {
+        final private List<String> mHeaderNames = new ArrayList<String>();
+        final private List<String> mHeaderValues = new ArrayList<String>();
+        final private String mStatusLine;
+        final private int mStatusCode;
+        final private String mReasonPhrase;
+        final private String mContentType;
+        final private String mContentEncoding;
+        final private long mContentLength;
+        final private InputStream mContent;
+
+        PooledResponse(Connection connection, String method) throws IOException {
+            String statusLine;
+            String[] status;
+            int statusCode;
+            while (true) {
+                // Status line, e.g. HTTP/1.1 200 OK
+                statusLine = readLine(connection.mIn);
+                status = statusLine.split(" ", 3);
+                if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                    throw new IOException("Invalid HTTP status line: " + statusLine);
+                }
+                try {
+                    statusCode = Integer.parseInt(status[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid HTTP status line: " + statusLine);
+                }
+                if (statusCode / 100 != 1 || statusCode == 101) {
+                    break;
+                }
+                // Interim response such as 100 Continue, the final response follows its headers
+                while (readLine(connection.mIn).length() > 0) {
+                    continue;
+                }
+            }
+            mStatusLine = statusLine;
+            mStatusCode = statusCode;
+            mReasonPhrase = status.length > 2 ? status[2] : "";
+
+            String contentType = null;
+            String contentEncoding = null;
+            String transferEncoding = null;
+            String connectionHeader = null;
+            long contentLength = -1;
+            for (String line = readLine(connection.mIn); line.length() > 0; line = readLine(connection.mIn)) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Type")) {
+                    contentType = value;
+                } else if (name.equalsIgnoreCase("Content-Encoding")) {
+                    contentEncoding = value;
+                } else if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Content-Length: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    transferEncoding = value;
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    connectionHeader = value;
+                }
+                mHeaderNames.add(name);
+                mHeaderValues.add(value);
+            }
+
+            boolean keepAlive = status[0].equals("HTTP/1.1") ?
+                    !"close".equalsIgnoreCase(connectionHeader) : "keep-alive".equalsIgnoreCase(connectionHeader);
+            boolean chunked = transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+            BodyStream body;
+            if (method.equals("HEAD") || mStatusCode / 100 == 1 || mStatusCode == 204 || mStatusCode == 304) {
+                body = new BodyStream(connection, 0, false, keepAlive);
+            } else if (chunked) {
+                body = new BodyStream(connection, -1, true, keepAlive);
+                contentLength = -1;
+            } else if (contentLength >= 0) {
+                body = new BodyStream(connection, contentLength, false, keepAlive);
+            } else {
+                // Body ends when the server closes the connection
+                body = new BodyStream(connection, -1, false, false);
+            }
+
+            if ("gzip".equalsIgnoreCase(contentEncoding) && !body.mEof) {
+                // Decompressed here to account for the saved bytes, callers see the plain content
+                mContent = new GzipBodyStream(body);
+                mContentEncoding = null;
+                mContentLength = -1;
+                int index = indexOfHeader("Content-Encoding");
+                mHeaderNames.remove(index);
+                mHeaderValues.remove(index);
+                index = indexOfHeader("Content-Length");
+                if (index >= 0) {
+                    mHeaderNames.remove(index);
+                    mHeaderValues.remove(index);
+                }
+            } else {
+                mContent = body;
+                mContentEncoding = contentEncoding;
+                mContentLength = contentLength;
+            }
+            mContentType = contentType;
+
+            if (body.mEof) {
+                // Nothing to read, return the connection to the pool right away
+                body.close();
+            }
+        }
+
+        private int indexOfHeader(String name) {
+            for (int i = 0; i < mHeaderNames.size(); ++i) {
+                if (mHeaderNames.get(i).equalsIgnoreCase(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return mContent;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return mContentEncoding;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mContentLength;
+        }
+
+        @Override
+        public String getContentType() {
+            return mContentType;
+        }
+
+        @Override
+        public String getStatusLine() {
+            return mStatusLine;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return mReasonPhrase;
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return mHeaderNames.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return mHeaderNames.get(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return mHeaderValues.get(index);
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            mContent.close();
+        }
+    }
+
+    /**
+     * Response body of fixed length, chunked or ending at connection close. The connection
+     * is returned to the pool when the body has been read or closed, if it can be reused.
+     */
+    private class BodyStream extends InputStream {
+        final private Connection mConnection;
+        final private boolean mChunked;
+        private boolean mKeepAlive;
+        // Bytes left in the body or current chunk, -1 if unknown
+        private long mRemaining;
+        private long mBytesRead = 0;
+        private boolean mEof = false;
+        private boolean mClosed = false;
+
+        BodyStream(Connection connection, long length, boolean chunked, boolean keepAlive) {
+            mConnection = connection;
+            mRemaining = chunked ? 0 : length;
+            mChunked = chunked;
+            mKeepAlive = keepAlive;
+            mEof = length == 0 && !chunked;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mEof) {
+                return -1;
+            }
+            if (mClosed) {
+                throw new IOException("Response body has been closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (mChunked && mRemaining == 0) {
+                if (mBytesRead > 0) {
+                    readLine(mConnection.mIn);
+                }
+                String size = readLine(mConnection.mIn);
+                int extension = size.indexOf(';');
+                try {
+                    mRemaining = Long.parseLong((extension >= 0 ? size.substring(0, extension) : size).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + size);
+                }
+                if (mRemaining == 0) {
+                    // Skip trailers
+                    while (readLine(mConnection.mIn).length() > 0) {
+                    }
+                    mEof = true;
+                    return -1;
+                }
+            }
+            int toRead = mRemaining >= 0 ? (int) Math.min(len, mRemaining) : len;
+            int read = mConnection.mIn.read(b, off, toRead);
+            if (read == -1) {
+                if (mRemaining >= 0) {
+                    throw new EOFException("Connection closed before end of response body");
+                }
+                mEof = true;
+                return -1;
+            }
+            mBytesRead += read;
+            if (mRemaining >= 0) {
+                mRemaining -= read;
+                if (mRemaining == 0 && !mChunked) {
+                    mEof = true;
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            if (mKeepAlive && !mEof) {
+                // Skip rest of the body to reuse the connection, unless it is large
+                try {
+                    byte[] buffer = new byte[4096];
+                    long drained = 0;
+                    while (!mEof && drained < MAX_DRAIN_BYTES) {
+                        int read = read(buffer, 0, buffer.length);
+                        drained += read > 0 ? read : 0;
+                    }
+                } catch (IOException e) {
+                    mKeepAlive = false;
+                }
+            }
+            mClosed = true;
+            if (mKeepAlive && mEof) {
+                release(mConnection);
+            } else {
+                mConnection.close();
+            }
+        }
+    }
+
+    /**
+     * Decompresses gzip encoded response body and counts the bytes saved by compression.
+     */
+    private class GzipBodyStream extends InputStream {
+        final private BodyStream mBody;
+        private InputStream mGzip;
+        private long mDecompressed = 0;
+        private boolean mClosed = false;
+
+        GzipBodyStream(BodyStream body) {
+            mBody = body;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mClosed) {
+                return -1;
+            }
+            if (mGzip == null) {
+                // Reading the gzip header blocks, so it is deferred until the content is read
+                mGzip = new GZIPInputStream(mBody);
+            }
+            int read = mGzip.read(b, off, len);
+            if (read == -1) {
+                mBytesSaved.addAndGet(mDecompressed - mBody.mBytesRead);
+                close();
+            } else {
+                mDecompressed += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            mBody.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2);
+        GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+        gzip.write(data);
+        gzip.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Read a CRLF terminated line of ISO-8859-1 text, without the line terminator.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Connection closed unexpectedly");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
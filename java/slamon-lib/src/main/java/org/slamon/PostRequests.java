@@ -1,10 +1,15 @@
 package org.slamon;
 
+import com.google.api.client.json.JsonFactory;
 import com.google.api.client.util.Key;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 class PostRequest {
@@ -24,39 +29,182 @@ class TasksRequest extends PostRequest {
     @Key
     public Object agent_capabilities;
     @Key
-    public int max_tasks;
+    public Integer max_tasks;
+    @Key
+    public Integer wait_timeout;
+    @Key
+    public String capabilities_hash;
+    @Key
+    public Map<String, Integer> capability_max_tasks;
+
+    // Time format in ISO8601
+    static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSSSSZ";
 
     // Time formatter to ISO8601 format
-    private SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSSSSZ");
+    private SimpleDateFormat simpleDateFormat = new SimpleDateFormat(TIME_FORMAT);
 
     TasksRequest(int protocol, String agent_id, String agent_name, Map<String, Integer> agent_capabilities,
-                 int max_tasks) {
+                 Map<String, Integer> capability_max_tasks, int max_tasks) {
         this.protocol = protocol;
         this.agent_id = agent_id;
         this.agent_name = agent_name;
         this.agent_time = simpleDateFormat.format(new Date().getTime());
-        this.agent_capabilities = getAgentCapabilitiesJSON(agent_capabilities);
+        this.agent_capabilities = getAgentCapabilitiesJSON(agent_capabilities, capability_max_tasks);
         this.max_tasks = max_tasks;
     }
 
     /**
-     * Generates a JSON that contains agent's capabilities and their version numbers
+     * Generates a JSON that contains agent's capabilities and their version numbers.
+     * Capability snapshots of registered handlers are used as is, unless some
+     * capabilities need a task limit added.
      *
-     * @param agentCapabilities Map containing information
+     * @param agentCapabilities  Map containing information
+     * @param capabilityMaxTasks Map of task types with own limit for the amount of tasks
      * @return JSON containing capability information
      */
-    private Map<String, Map<String, Integer>> getAgentCapabilitiesJSON(Map<String, Integer> agentCapabilities) {
-        Map<String, Map<String, Integer>> map = new HashMap<String, Map<String, Integer>>();
+    private Map<String, Map<String, Object>> getAgentCapabilitiesJSON(Map<String, Integer> agentCapabilities,
+                                                                      Map<String, Integer> capabilityMaxTasks) {
+        if (agentCapabilities instanceof Capabilities && capabilityMaxTasks.isEmpty()) {
+            return ((Capabilities) agentCapabilities).toJSON();
+        }
+        Map<String, Map<String, Object>> map = new HashMap<String, Map<String, Object>>();
         for (Map.Entry<String, Integer> entry : agentCapabilities.entrySet()) {
-            // Each entry is of format "task-type-1": {"version": 1}
-            HashMap<String, Integer> versionMap = new HashMap<String, Integer>();
-            versionMap.put("version", entry.getValue());
+            // Each entry is of format "task-type-1": {"version": 1},
+            // or "task-type-1": {"version": 1, "max_tasks": 2} for limited task types
+            HashMap<String, Object> versionMap = new HashMap<String, Object>();
+            if (agentCapabilities instanceof Capabilities) {
+                versionMap.putAll(((Capabilities) agentCapabilities).toJSON().get(entry.getKey()));
+            } else {
+                versionMap.put("version", entry.getValue());
+            }
+            if (capabilityMaxTasks.containsKey(entry.getKey())) {
+                versionMap.put("max_tasks", capabilityMaxTasks.get(entry.getKey()));
+            }
             map.put(entry.getKey(), versionMap);
         }
         return map;
     }
 }
 
+/**
+ * Encodes task requests, reusing the encoded form of the fields that rarely change
+ * between polls: protocol, agent id, agent name, capabilities and their fingerprint. Only agent time
+ * and the maximum amount of tasks are encoded on every poll. The encoded fields are
+ * rebuilt when any of them changes, e.g. when a new capability snapshot is published.
+ */
+class TasksRequestTemplate {
+
+    final private JsonFactory mJsonFactory;
+    final private SimpleDateFormat mDateFormat = new SimpleDateFormat(TasksRequest.TIME_FORMAT);
+    private int mProtocol;
+    private Integer mWaitTimeout;
+    private String mCapabilitiesHash;
+    private boolean mSendCapabilities;
+    private String mAgentId;
+    private String mAgentName;
+    private Map<String, Integer> mCapabilities;
+    private Map<String, Integer> mCapabilityMaxTasks;
+    private byte[] mPrefix;
+    private int mBuildCount = 0;
+
+    TasksRequestTemplate(JsonFactory jsonFactory) {
+        mJsonFactory = jsonFactory;
+    }
+
+    /**
+     * Encode task request as JSON.
+     *
+     * @return UTF-8 encoded request
+     */
+    byte[] encode(int protocol, String agentId, String agentName, Map<String, Integer> capabilities,
+                  Map<String, Integer> capabilityMaxTasks, int maxTasks) throws IOException {
+        return encode(protocol, null, null, true, agentId, agentName, capabilities, capabilityMaxTasks, maxTasks);
+    }
+
+    /**
+     * Encode task request as JSON.
+     *
+     * @param waitTimeout      time for the AFM to hold a long poll request in seconds, or null
+     * @param capabilitiesHash fingerprint of the capabilities, or null to send capabilities only
+     * @param sendCapabilities false to leave out capabilities already known by their fingerprint
+     * @return UTF-8 encoded request
+     */
+    synchronized byte[] encode(int protocol, Integer waitTimeout, String capabilitiesHash, boolean sendCapabilities,
+                               String agentId, String agentName, Map<String, Integer> capabilities,
+                               Map<String, Integer> capabilityMaxTasks, int maxTasks) throws IOException {
+        if (mPrefix == null || protocol != mProtocol || !equal(waitTimeout, mWaitTimeout)
+                || !equal(capabilitiesHash, mCapabilitiesHash) || sendCapabilities != mSendCapabilities
+                || !agentId.equals(mAgentId) || !agentName.equals(mAgentName)
+                || !sameCapabilities(capabilities) || !capabilityMaxTasks.equals(mCapabilityMaxTasks)) {
+            build(protocol, waitTimeout, capabilitiesHash, sendCapabilities, agentId, agentName, capabilities,
+                    capabilityMaxTasks);
+        }
+
+        byte[] suffix = (",\"agent_time\":\"" + mDateFormat.format(new Date()) +
+                "\",\"max_tasks\":" + maxTasks + "}").getBytes("UTF-8");
+        byte[] request = new byte[mPrefix.length + suffix.length];
+        System.arraycopy(mPrefix, 0, request, 0, mPrefix.length);
+        System.arraycopy(suffix, 0, request, mPrefix.length, suffix.length);
+        return request;
+    }
+
+    /**
+     * @return number of times the static part of the request has been encoded
+     */
+    synchronized int getBuildCount() {
+        return mBuildCount;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private boolean sameCapabilities(Map<String, Integer> capabilities) {
+        // Capability snapshots are immutable and replaced on change
+        if (capabilities instanceof Capabilities) {
+            return capabilities == mCapabilities;
+        }
+        return capabilities.equals(mCapabilities);
+    }
+
+    private void build(int protocol, Integer waitTimeout, String capabilitiesHash, boolean sendCapabilities,
+                       String agentId, String agentName, Map<String, Integer> capabilities,
+                       Map<String, Integer> capabilityMaxTasks) throws IOException {
+        TasksRequest request;
+        if (capabilitiesHash == null) {
+            request = new TasksRequest(protocol, agentId, agentName, capabilities, capabilityMaxTasks, 0);
+        } else {
+            // Task limits are sent separately, so that capabilities stay the same as capacity changes
+            request = new TasksRequest(protocol, agentId, agentName, capabilities,
+                    Collections.<String, Integer>emptyMap(), 0);
+            request.capabilities_hash = capabilitiesHash;
+            if (!capabilityMaxTasks.isEmpty()) {
+                request.capability_max_tasks = capabilityMaxTasks;
+            }
+            if (!sendCapabilities) {
+                request.agent_capabilities = null;
+            }
+        }
+        request.wait_timeout = waitTimeout;
+        // Leave out fields changing on every poll
+        request.agent_time = null;
+        request.max_tasks = null;
+        String encoded = mJsonFactory.toString(request);
+        // Drop the closing brace, per poll fields are appended after the static fields
+        mPrefix = encoded.substring(0, encoded.lastIndexOf('}')).getBytes("UTF-8");
+
+        mProtocol = protocol;
+        mWaitTimeout = waitTimeout;
+        mCapabilitiesHash = capabilitiesHash;
+        mSendCapabilities = sendCapabilities;
+        mAgentId = agentId;
+        mAgentName = agentName;
+        mCapabilities = capabilities instanceof Capabilities ? capabilities : new HashMap<String, Integer>(capabilities);
+        mCapabilityMaxTasks = new HashMap<String, Integer>(capabilityMaxTasks);
+        mBuildCount++;
+    }
+}
+
 class TaskResultRequest extends PostRequest {
     @Key
     public Integer protocol;
@@ -68,7 +216,15 @@ class TaskResultRequest extends PostRequest {
     public String task_error;
 
     public TaskResultRequest(Task task) {
-        this.protocol = 1;
+        this(task, 1);
+    }
+
+    /**
+     * @param task     finished task
+     * @param protocol protocol version, or null when the result is an entry of a batch
+     */
+    TaskResultRequest(Task task, Integer protocol) {
+        this.protocol = protocol;
         this.task_id = task.task_id;
         if (task.task_result != null) {
             this.task_data = task.task_result;
@@ -78,4 +234,60 @@ class TaskResultRequest extends PostRequest {
             task_data = new HashMap<String, Object>();
         }
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Encodes task result requests. Results read back from a journal are posted in the form
+ * they were journaled in, so that for example integers are not turned into decimals
+ * by decoding and encoding them again.
+ */
+class TaskResultEncoder {
+
+    /**
+     * @return results of the task encoded as an entry of a result batch
+     */
+    static String encodeEntry(JsonFactory jsonFactory, Task task) throws IOException {
+        if (task.encoded_result != null) {
+            return task.encoded_result;
+        }
+        return jsonFactory.toString(new TaskResultRequest(task, null));
+    }
+
+    /**
+     * @return request posting the results of a single task
+     */
+    static byte[] encode(JsonFactory jsonFactory, Task task) throws IOException {
+        // Batch entries carry no protocol of their own
+        return ("{\"protocol\":1," + encodeEntry(jsonFactory, task).substring(1)).getBytes("UTF-8");
+    }
+
+    /**
+     * @return request posting the results of several tasks
+     */
+    static byte[] encode(JsonFactory jsonFactory, int protocol, List<Task> tasks) throws IOException {
+        StringBuilder request = new StringBuilder("{\"protocol\":").append(protocol).append(",\"results\":[");
+        for (int i = 0; i < tasks.size(); ++i) {
+            if (i > 0) {
+                request.append(',');
+            }
+            request.append(encodeEntry(jsonFactory, tasks.get(i)));
+        }
+        return request.append("]}").toString().getBytes("UTF-8");
+    }
+}
+
+class TaskResultBatchRequest extends PostRequest {
+    @Key
+    public Integer protocol;
+    @Key
+    public List<TaskResultRequest> results;
+
+    TaskResultBatchRequest(int protocol, List<Task> tasks) {
+        this.protocol = protocol;
+        this.results = new ArrayList<TaskResultRequest>(tasks.size());
+        for (Task task : tasks) {
+            // Entries inherit the protocol of the batch
+            this.results.add(new TaskResultRequest(task, null));
+        }
+    }
+}
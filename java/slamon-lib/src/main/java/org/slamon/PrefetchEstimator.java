@@ -0,0 +1,61 @@
+package org.slamon;
+
+/**
+ * Estimates how many claimed tasks the agent should keep queued per executor,
+ * based on observed task durations and poll intervals.
+ * The backlog should be deep enough for executors to stay busy
+ * until the next poll brings more tasks.
+ */
+class PrefetchEstimator {
+
+    // Weight of the newest sample in the moving averages
+    private static final double SMOOTHING = 0.2;
+
+    private double mTaskDurationMs = -1;
+    private double mPollIntervalMs = -1;
+
+    /**
+     * Record execution time of a finished task.
+     *
+     * @param durationMs task execution time in milliseconds
+     */
+    synchronized void recordTaskDuration(long durationMs) {
+        mTaskDurationMs = smooth(mTaskDurationMs, durationMs);
+    }
+
+    /**
+     * Record time between a poll and the return time given by AFM.
+     *
+     * @param intervalMs poll interval in milliseconds
+     */
+    synchronized void recordPollInterval(long intervalMs) {
+        mPollIntervalMs = smooth(mPollIntervalMs, intervalMs);
+    }
+
+    /**
+     * Get number of tasks to keep queued for each executor.
+     * Until both task duration and poll interval have been observed,
+     * a single task per executor is prefetched.
+     *
+     * @param maxDepth upper bound for the backlog per executor
+     * @return backlog depth per executor, between 0 and maxDepth
+     */
+    synchronized int backlogPerExecutor(int maxDepth) {
+        if (maxDepth <= 0) {
+            return 0;
+        }
+        if (mTaskDurationMs < 0 || mPollIntervalMs < 0) {
+            return 1;
+        }
+        // Tasks one executor can finish during one poll interval
+        double depth = Math.ceil(mPollIntervalMs / Math.max(1.0, mTaskDurationMs));
+        return (int) Math.max(0, Math.min(maxDepth, depth));
+    }
+
+    private static double smooth(double average, long sample) {
+        if (average < 0) {
+            return sample;
+        }
+        return average + SMOOTHING * (sample - average);
+    }
+}
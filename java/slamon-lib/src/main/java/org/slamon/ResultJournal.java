@@ -0,0 +1,370 @@
+package org.slamon;
+
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only on-disk journal of task results that have not yet been posted to the AFM.
+ * Results are written to a memory-mapped file before they are sent, and acknowledged
+ * after the AFM has accepted them. Results left unacknowledged, for example when the JVM
+ * exits during an AFM outage, can be read back and posted again after a restart.
+ * <p>
+ * Written results are forced to disk in a background thread, each force covering all
+ * results appended since the previous one. Only an index of unacknowledged task ids is
+ * kept in memory. Space taken by acknowledged results is reclaimed by compacting the
+ * journal in the same background thread.
+ * <p>
+ * The file consists of records with a one byte type, four byte length and UTF-8 payload.
+ * The type byte is written last, so a partially written record is never read back.
+ */
+public class ResultJournal {
+
+    static final int INITIAL_SIZE = 64 * 1024;
+    static final int COMPACT_THRESHOLD = 256 * 1024;
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_RESULT = 1;
+    private static final byte RECORD_ACK = 2;
+    private static final int HEADER_SIZE = 5;
+
+    private static final Gson sGson = new Gson();
+
+    final private File mFile;
+    final private Logger logger = Logger.getLogger(ResultJournal.class.getCanonicalName());
+    // Forces written results to disk and compacts the journal
+    final private ExecutorService mBackground = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "slamon-journal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Offsets of unacknowledged result records by task id, in write order
+    final private Map<String, Integer> mPending = new LinkedHashMap<String, Integer>();
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    private int mGarbageBytes = 0;
+    private boolean mCompactScheduled = false;
+    private boolean mForceScheduled = false;
+
+    /**
+     * Open or create a journal file. Existing unacknowledged results are indexed
+     * and can be read with {@link #pendingTaskIds()} and {@link #read(String)}.
+     *
+     * @param file journal file
+     * @throws IOException if the file can not be opened or mapped
+     */
+    public ResultJournal(File file) throws IOException {
+        mFile = file;
+        File backup = new File(file.getPath() + ".bak");
+        if (!file.exists() && backup.exists() && !backup.renameTo(file)) {
+            // Interrupted compaction left only the original journal behind
+            throw new IOException("Failed to restore result journal from " + backup);
+        }
+        open();
+    }
+
+    /**
+     * Write task results into the journal. The results are forced to disk shortly after,
+     * together with other results written in the meantime.
+     *
+     * @param task finished task with results
+     * @return length of the written results in bytes
+     * @throws IOException if the journal can not be extended
+     */
+    public int append(Task task) throws IOException {
+        Entry entry = new Entry();
+        entry.task_id = task.task_id;
+        entry.task_type = task.task_type;
+        // Results are stored encoded, and posted as is after they are read back
+        entry.result = TaskResultEncoder.encodeEntry(GsonFactory.getDefaultInstance(), task);
+        return append(task.task_id, sGson.toJson(entry));
+    }
+
+    private synchronized int append(String taskId, String payload) throws IOException {
+        int offset = mBuffer.position();
+        int length = writeRecord(RECORD_RESULT, payload);
+        mPending.put(taskId, offset);
+
+        if (!mForceScheduled) {
+            mForceScheduled = true;
+            mBackground.execute(new Runnable() {
+                @Override
+                public void run() {
+                    force();
+                }
+            });
+        }
+        return length;
+    }
+
+    /**
+     * Force results written so far to disk.
+     */
+    private synchronized void force() {
+        mForceScheduled = false;
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Mark task results as delivered to the AFM.
+     *
+     * @param taskId id of the delivered task
+     * @throws IOException if the journal can not be extended
+     */
+    public synchronized void acknowledge(String taskId) throws IOException {
+        Integer offset = mPending.remove(taskId);
+        if (offset == null) {
+            return;
+        }
+        int resultSize = HEADER_SIZE + mBuffer.getInt(offset + 1);
+        int position = mBuffer.position();
+        writeRecord(RECORD_ACK, taskId);
+        mGarbageBytes += resultSize + mBuffer.position() - position;
+
+        if (!mCompactScheduled && mGarbageBytes > COMPACT_THRESHOLD && mGarbageBytes > mBuffer.position() / 2) {
+            mCompactScheduled = true;
+            mBackground.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Failed to compact result journal: " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return ids of tasks whose results have not been acknowledged, in write order
+     */
+    public synchronized List<String> pendingTaskIds() {
+        return new ArrayList<String>(mPending.keySet());
+    }
+
+    /**
+     * Read unacknowledged task results from the journal.
+     *
+     * @param taskId id of the task
+     * @return task with results, or null if results have been acknowledged
+     */
+    public synchronized Task read(String taskId) throws IOException {
+        Integer offset = mPending.get(taskId);
+        if (offset == null) {
+            return null;
+        }
+        Entry entry = sGson.fromJson(readPayload(offset), Entry.class);
+        Task task = new Task();
+        task.task_id = entry.task_id;
+        task.task_type = entry.task_type;
+        if (entry.result != null) {
+            task.encoded_result = entry.result;
+            // Decoded results only for inspection, numbers may lose their original form
+            Entry result = sGson.fromJson(entry.result, Entry.class);
+            task.task_result = result.task_data;
+            task.task_error = result.task_error;
+        } else {
+            // Entry written by an earlier version
+            task.task_result = entry.task_data;
+            task.task_error = entry.task_error;
+        }
+        return task;
+    }
+
+    /**
+     * Rewrite the journal with only the unacknowledged results.
+     */
+    synchronized void compact() throws IOException {
+        mCompactScheduled = false;
+        File compacted = new File(mFile.getPath() + ".compact");
+        RandomAccessFile raf = new RandomAccessFile(compacted, "rw");
+        try {
+            raf.setLength(0);
+            for (Integer offset : mPending.values()) {
+                int length = HEADER_SIZE + mBuffer.getInt(offset + 1);
+                byte[] record = new byte[length];
+                for (int i = 0; i < length; ++i) {
+                    record[i] = mBuffer.get(offset + i);
+                }
+                raf.write(record);
+            }
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+
+        // The old file can not be replaced while mapped on some platforms
+        unmap();
+        mRaf.close();
+        try {
+            if (!compacted.renameTo(mFile)) {
+                // Some platforms can not rename over an existing file, keep the
+                // original as a backup until the compacted journal is in place
+                File backup = new File(mFile.getPath() + ".bak");
+                backup.delete();
+                if (!mFile.renameTo(backup)) {
+                    throw new IOException("Failed to replace " + mFile + " with compacted journal");
+                }
+                if (!compacted.renameTo(mFile)) {
+                    if (!backup.renameTo(mFile)) {
+                        logger.log(Level.SEVERE, "Failed to restore result journal from " + backup);
+                    }
+                    throw new IOException("Failed to replace " + mFile + " with compacted journal");
+                }
+                backup.delete();
+            }
+        } finally {
+            open();
+        }
+        logger.log(Level.INFO, "Compacted result journal to " + mBuffer.position() + " bytes.");
+    }
+
+    /**
+     * Close the journal file. Pending results remain in the file.
+     */
+    public void close() throws IOException {
+        mBackground.shutdown();
+        try {
+            mBackground.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            mBuffer.force();
+            unmap();
+            mRaf.close();
+        }
+    }
+
+    /**
+     * Map the journal file and index unacknowledged results.
+     */
+    private void open() throws IOException {
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mBuffer = null;
+        map(Math.max(INITIAL_SIZE, (int) mRaf.length()));
+        mPending.clear();
+        mGarbageBytes = 0;
+
+        int offset = 0;
+        while (offset + HEADER_SIZE <= mBuffer.capacity()) {
+            byte type = mBuffer.get(offset);
+            if (type == RECORD_END) {
+                break;
+            }
+            int length = mBuffer.getInt(offset + 1);
+            if (type == RECORD_RESULT) {
+                Entry entry = sGson.fromJson(readPayload(offset), Entry.class);
+                mPending.put(entry.task_id, offset);
+            } else if (type == RECORD_ACK) {
+                Integer resultOffset = mPending.remove(readPayload(offset));
+                if (resultOffset != null) {
+                    mGarbageBytes += HEADER_SIZE + mBuffer.getInt(resultOffset + 1);
+                }
+                mGarbageBytes += HEADER_SIZE + length;
+            }
+            offset += HEADER_SIZE + length;
+        }
+        mBuffer.position(offset);
+    }
+
+    private void map(int size) throws IOException {
+        int position = 0;
+        if (mBuffer != null) {
+            position = mBuffer.position();
+            // Results not forced yet are written through the old mapping
+            mBuffer.force();
+            unmap();
+        }
+        mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mBuffer.position(position);
+    }
+
+    /**
+     * Release the mapping of the journal file without waiting for garbage collection.
+     * The buffer must not be accessed afterwards.
+     */
+    private void unmap() {
+        MappedByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        try {
+            // Java 9 and newer
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", java.nio.ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            try {
+                // Java 8 and older
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (Exception e2) {
+                // Not available, for example on Android, mapping is released when garbage collected
+                logger.log(Level.FINE, "Failed to unmap result journal: " + e2.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return length of the record payload in bytes
+     */
+    private int writeRecord(byte type, String payload) throws IOException {
+        byte[] bytes = payload.getBytes("UTF-8");
+        int offset = mBuffer.position();
+        int needed = offset + HEADER_SIZE + bytes.length + 1;
+        if (needed > mBuffer.capacity()) {
+            map(Math.max(needed, mBuffer.capacity() * 2));
+        }
+        mBuffer.position(offset + 1);
+        mBuffer.putInt(bytes.length);
+        mBuffer.put(bytes);
+        // Commit the record by writing its type
+        mBuffer.put(offset, type);
+        return bytes.length;
+    }
+
+    private String readPayload(int offset) throws UnsupportedEncodingException {
+        int length = mBuffer.getInt(offset + 1);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = mBuffer.get(offset + HEADER_SIZE + i);
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    private static class Entry {
+        String task_id;
+        String task_type;
+        // Result entry encoded as posted to the AFM
+        String result;
+        Map<String, Object> task_data;
+        String task_error;
+    }
+}
@@ -0,0 +1,510 @@
+package org.slamon;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Posts finished task results to the AFM from a dedicated thread, so that task executors
+ * are released as soon as task execution finishes. Results are queued in a bounded queue
+ * and failed posts are retried with backoff from a {@link CircuitBreaker}.
+ * <p>
+ * Optionally results finishing close to each other are coalesced into batches
+ * posted in a single request, see {@link #setBatching(int, long, long)}.
+ * <p>
+ * Results of tasks finishing in timer or callback threads are queued with {@link #offer(Task)},
+ * which never blocks. Agents keep the queue from filling up by claiming no more tasks than
+ * there is room for their results, see {@link #getRemainingCapacity()}.
+ * <p>
+ * With a {@link ResultJournal} set, results are written to disk before they are queued
+ * and acknowledged once posted, so that results left unsent when the process exits
+ * are posted after the next start. Only the task ids of journaled results are queued,
+ * the results are read back from the journal when posted.
+ */
+public class ResultSender implements Runnable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    static final long DEFAULT_INITIAL_RETRY_DELAY_MS = 500;
+    static final long DEFAULT_MAX_RETRY_DELAY_MS = 60 * 1000;
+
+    static final FlightRecorderEvent RESULT_EVENT = new FlightRecorderEvent("org.slamon.ResultPost", "Result Post")
+            .field(String.class, "taskId", "Task Id")
+            .field(String.class, "taskType", "Task Type")
+            .timespan("queueToPosted", "Queue To Posted")
+            .register();
+
+    final private AfmCommunicator mAfm;
+    final private BlockingQueue<PendingResult> mQueue;
+    final private Logger logger = Logger.getLogger(ResultSender.class.getCanonicalName());
+    final private CircuitBreaker mCircuitBreaker = new CircuitBreaker("results");
+    private volatile boolean mRun = false;
+    private Thread mThread;
+    private int mMaxBatchCount = 1;
+    private long mMaxBatchBytes = Long.MAX_VALUE;
+    private long mBatchLingerMs = 0;
+    // Result taken from the queue that did not fit in the previous batch
+    private PendingResult mCarryOver;
+    private ResultJournal mJournal;
+    // Results left unsent by a previous run, taken from the journal at start
+    private List<String> mReplayTaskIds = new ArrayList<String>();
+
+    // Statistics
+    final private AtomicLong mSentCount = new AtomicLong();
+    final private AtomicLong mFailedCount = new AtomicLong();
+    final private AtomicLong mRetryCount = new AtomicLong();
+    final private AtomicLong mDroppedCount = new AtomicLong();
+    final private AtomicLong mTotalSendLatencyMs = new AtomicLong();
+    final private AtomicLong mMaxSendLatencyMs = new AtomicLong();
+
+    public ResultSender(AfmCommunicator afm) {
+        this(afm, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param afm           communicator used for posting results
+     * @param queueCapacity maximum number of results waiting to be sent
+     */
+    public ResultSender(AfmCommunicator afm, int queueCapacity) {
+        mAfm = afm;
+        mQueue = new ArrayBlockingQueue<PendingResult>(queueCapacity);
+        mCircuitBreaker.setDelays(DEFAULT_INITIAL_RETRY_DELAY_MS, DEFAULT_MAX_RETRY_DELAY_MS);
+    }
+
+    /**
+     * Set bounds for the delay between post attempts of a failing result.
+     *
+     * @param initialDelayMs delay after the first failure
+     * @param maxDelayMs     upper bound for the delay
+     */
+    void setRetryDelays(long initialDelayMs, long maxDelayMs) {
+        mCircuitBreaker.setDelays(initialDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Get the circuit breaker delaying posts while the AFM is failing,
+     * for example to configure it or to listen to its state.
+     *
+     * @return circuit breaker of the result posts
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * Enable posting results in batches. After a result has been taken from the queue, the sender
+     * waits up to the linger time for more results, until the batch has the maximum count of results
+     * or the maximum size. Batches are only posted if the AFM supports them, otherwise results are
+     * posted one by one.
+     *
+     * @param maxCount  maximum number of results in a batch, 1 disables batching
+     * @param maxBytes  maximum size of serialized results in a batch
+     * @param lingerMs  maximum time to wait for more results
+     */
+    public void setBatching(int maxCount, long maxBytes, long lingerMs) {
+        mMaxBatchCount = Math.max(1, maxCount);
+        mMaxBatchBytes = maxBytes;
+        mBatchLingerMs = lingerMs;
+    }
+
+    /**
+     * Set journal for storing results until they have been posted.
+     * Must be called before the sender is started.
+     *
+     * @param journal journal for unsent results
+     */
+    public void setJournal(ResultJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Start sending results in a background thread.
+     * Results left unsent in the journal are posted first.
+     */
+    public void start() {
+        if (mJournal != null) {
+            // Results submitted after this are queued, not replayed
+            mReplayTaskIds = mJournal.pendingTaskIds();
+        }
+        mRun = true;
+        mThread = new Thread(this, "slamon-result-sender");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop sending results. Results already in the queue are sent
+     * until the queue is empty or the timeout expires. Results still unsent
+     * remain in the journal, if one is set.
+     *
+     * @param timeoutMs timeout in milliseconds to wait for queued results to be sent
+     */
+    public void shutdown(long timeoutMs) {
+        mRun = false;
+        if (mThread == null) {
+            return;
+        }
+        try {
+            mThread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mThread.isAlive()) {
+            logger.log(Level.WARNING, "Dropping " + getQueueDepth() + " unsent task results on shutdown.");
+            mThread.interrupt();
+        } else if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to close result journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Queue task results for posting. Blocks if the queue is full.
+     *
+     * @param task finished task with results
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public void submit(Task task) throws InterruptedException {
+        mQueue.put(pending(task));
+    }
+
+    /**
+     * Queue task results for posting without blocking. If the queue is full, the results
+     * are dropped, but remain in the journal if one is set and are posted after restart.
+     *
+     * @param task finished task with results
+     * @return false if the queue was full
+     */
+    public boolean offer(Task task) {
+        if (mQueue.offer(pending(task))) {
+            return true;
+        }
+        mDroppedCount.incrementAndGet();
+        logger.log(Level.SEVERE, "Result queue is full, dropping results of task " + task.task_id);
+        return false;
+    }
+
+    /**
+     * Write results to the journal, if one is set, and leave them out of the pending result.
+     */
+    private PendingResult pending(Task task) {
+        if (mJournal != null) {
+            try {
+                int size = mJournal.append(task);
+                return new PendingResult(task.task_id, size);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to write task results to journal: " + e.getMessage());
+            }
+        }
+        return new PendingResult(task);
+    }
+
+    /**
+     * Get the results to post, reading them from the journal if they were journaled.
+     *
+     * @return task with results, or null if the results are no longer in the journal
+     */
+    private Task load(PendingResult result) {
+        if (result.task != null) {
+            return result.task;
+        }
+        try {
+            Task task = mJournal.read(result.taskId);
+            if (task == null) {
+                logger.log(Level.WARNING, "Task results of " + result.taskId + " missing from journal.");
+            }
+            return task;
+        } catch (IOException e) {
+            // Results remain in the journal and are posted after restart
+            logger.log(Level.WARNING, "Failed to read task results from journal: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    @Override
+    public void run() {
+        try {
+            replayJournal();
+            while (mRun || !mQueue.isEmpty() || mCarryOver != null) {
+                PendingResult result = mCarryOver;
+                mCarryOver = null;
+                if (result == null) {
+                    result = mQueue.poll(100, TimeUnit.MILLISECONDS);
+                }
+                if (result == null) {
+                    continue;
+                }
+                if (mMaxBatchCount > 1 && mAfm.isBatchResultsSupported()) {
+                    send(collectBatch(result));
+                } else {
+                    send(result);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.log(Level.INFO, "Result sender interrupted.");
+        }
+    }
+
+    /**
+     * Post results left unsent by a previous run. Results are read from
+     * the journal one at a time to avoid loading all of them in memory.
+     */
+    private void replayJournal() throws InterruptedException {
+        List<String> taskIds = mReplayTaskIds;
+        mReplayTaskIds = new ArrayList<String>();
+        if (!taskIds.isEmpty()) {
+            logger.log(Level.INFO, "Posting " + taskIds.size() + " task results from journal.");
+        }
+        for (String taskId : taskIds) {
+            try {
+                Task task = mJournal.read(taskId);
+                if (task != null) {
+                    send(new PendingResult(task));
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read task results from journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Collect results arriving within the linger time into a batch,
+     * bounded by the maximum count and size of the batch.
+     */
+    private List<PendingResult> collectBatch(PendingResult first) throws InterruptedException {
+        List<PendingResult> batch = new ArrayList<PendingResult>(mMaxBatchCount);
+        batch.add(first);
+        long bytes = first.size();
+        long lingerEnd = System.currentTimeMillis() + mBatchLingerMs;
+        while (batch.size() < mMaxBatchCount && bytes < mMaxBatchBytes) {
+            long remaining = lingerEnd - System.currentTimeMillis();
+            PendingResult next = remaining > 0 ? mQueue.poll(remaining, TimeUnit.MILLISECONDS) : mQueue.poll();
+            if (next == null) {
+                break;
+            }
+            if (bytes + next.size() > mMaxBatchBytes) {
+                mCarryOver = next;
+                break;
+            }
+            batch.add(next);
+            bytes += next.size();
+        }
+        return batch;
+    }
+
+    /**
+     * Post a batch of results, retrying on temporary errors.
+     * Falls back to posting results one by one if the AFM rejects the batch.
+     */
+    private void send(List<PendingResult> batch) throws InterruptedException {
+        if (batch.size() == 1) {
+            send(batch.get(0));
+            return;
+        }
+        List<Task> tasks = new ArrayList<Task>(batch.size());
+        List<PendingResult> loaded = new ArrayList<PendingResult>(batch.size());
+        for (PendingResult result : batch) {
+            Task task = load(result);
+            if (task != null) {
+                tasks.add(task);
+                loaded.add(result);
+            }
+        }
+        if (tasks.size() < 2) {
+            for (int i = 0; i < tasks.size(); ++i) {
+                send(loaded.get(i), tasks.get(i));
+            }
+            return;
+        }
+        while (true) {
+            mCircuitBreaker.await();
+            try {
+                mAfm.postResults(tasks);
+                mCircuitBreaker.recordSuccess();
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < tasks.size(); ++i) {
+                    Task task = tasks.get(i);
+                    long latency = now - loaded.get(i).queuedAt;
+                    recordLatency(latency);
+                    if (RESULT_EVENT.isEnabled()) {
+                        RESULT_EVENT.commit(task.task_id, task.task_type, latency);
+                    }
+                    mSentCount.incrementAndGet();
+                    acknowledge(task);
+                }
+                return;
+            } catch (AfmCommunicator.TemporaryException e) {
+                logger.log(Level.WARNING, "Posting task result batch failed with temporary error: " + e.getMessage());
+                mRetryCount.incrementAndGet();
+                mCircuitBreaker.recordFailure();
+            } catch (AfmCommunicator.FatalException e) {
+                mCircuitBreaker.recordSuccess();
+                // Post results one at a time, so that only results the AFM rejects are dropped.
+                // AfmCommunicator has disabled batches if the AFM rejected the protocol.
+                for (int i = 0; i < tasks.size(); ++i) {
+                    send(loaded.get(i), tasks.get(i));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Post single result, retrying on temporary errors.
+     */
+    private void send(PendingResult result) throws InterruptedException {
+        Task task = load(result);
+        if (task != null) {
+            send(result, task);
+        }
+    }
+
+    private void send(PendingResult result, Task task) throws InterruptedException {
+        while (true) {
+            mCircuitBreaker.await();
+            try {
+                mAfm.postResults(task);
+                mCircuitBreaker.recordSuccess();
+                long latency = System.currentTimeMillis() - result.queuedAt;
+                recordLatency(latency);
+                if (RESULT_EVENT.isEnabled()) {
+                    RESULT_EVENT.commit(task.task_id, task.task_type, latency);
+                }
+                mSentCount.incrementAndGet();
+                acknowledge(task);
+                return;
+            } catch (AfmCommunicator.TemporaryException e) {
+                logger.log(Level.WARNING, "Posting task results failed with temporary error: " + e.getMessage());
+                mRetryCount.incrementAndGet();
+                mCircuitBreaker.recordFailure();
+            } catch (AfmCommunicator.FatalException e) {
+                // AFM is reachable, even though it rejected the results
+                mCircuitBreaker.recordSuccess();
+                logger.log(Level.SEVERE, "Posting task results failed with fatal error: " + e.getMessage());
+                mFailedCount.incrementAndGet();
+                // AFM will never accept these results, do not retry them after restart
+                acknowledge(task);
+                return;
+            }
+        }
+    }
+
+    private void acknowledge(Task task) {
+        if (mJournal != null) {
+            try {
+                mJournal.acknowledge(task.task_id);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to acknowledge task results in journal: " + e.getMessage());
+            }
+        }
+    }
+
+    private void recordLatency(long latencyMs) {
+        mTotalSendLatencyMs.addAndGet(latencyMs);
+        long max = mMaxSendLatencyMs.get();
+        while (latencyMs > max && !mMaxSendLatencyMs.compareAndSet(max, latencyMs)) {
+            max = mMaxSendLatencyMs.get();
+        }
+    }
+
+    /**
+     * @return number of results waiting to be sent
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return number of results that can still be queued
+     */
+    public int getRemainingCapacity() {
+        return mQueue.remainingCapacity();
+    }
+
+    /**
+     * @return number of results dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return number of results successfully posted
+     */
+    public long getSentCount() {
+        return mSentCount.get();
+    }
+
+    /**
+     * @return number of results dropped after a fatal error
+     */
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * @return number of post attempts that failed with a temporary error
+     */
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * @return average time from queueing a result to posting it successfully, in milliseconds
+     */
+    public long getAverageSendLatencyMs() {
+        long sent = mSentCount.get();
+        return sent == 0 ? 0 : mTotalSendLatencyMs.get() / sent;
+    }
+
+    /**
+     * @return longest time from queueing a result to posting it successfully, in milliseconds
+     */
+    public long getMaxSendLatencyMs() {
+        return mMaxSendLatencyMs.get();
+    }
+
+    private static class PendingResult {
+        private static final Gson sGson = new Gson();
+
+        final String taskId;
+        // Null for journaled results, which are read from the journal when posted
+        final Task task;
+        final long queuedAt;
+        private long size = -1;
+
+        PendingResult(Task task) {
+            this.taskId = task.task_id;
+            this.task = task;
+            this.queuedAt = System.currentTimeMillis();
+        }
+
+        PendingResult(String taskId, long size) {
+            this.taskId = taskId;
+            this.task = null;
+            this.queuedAt = System.currentTimeMillis();
+            this.size = size;
+        }
+
+        /**
+         * @return length of the result entry serialized as JSON
+         */
+        long size() {
+            if (size < 0) {
+                size = sGson.toJson(new TaskResultRequest(task, null)).length();
+            }
+            return size;
+        }
+    }
+}
@@ -13,17 +13,17 @@ public class SimpleAgentEventListener implements AgentEventListener {
     }
 
     @Override
-    public void taskCompleted() {
+    public void taskCompleted(String taskId, String taskType, long durationMs) {
 
     }
 
     @Override
-    public void taskError(String message) {
+    public void taskError(String taskId, String taskType, long durationMs, String message) {
 
     }
 
     @Override
-    public void taskStarted() {
+    public void taskStarted(String taskId, String taskType) {
 
     }
 
@@ -32,6 +32,11 @@ public class SimpleAgentEventListener implements AgentEventListener {
 
     }
 
+    @Override
+    public void circuitStateChanged(String circuit, CircuitBreaker.State state) {
+
+    }
+
     @Override
     public void connectionToAfm(long returnTime) {
 
@@ -20,6 +20,8 @@ public class Task extends GenericJson {
     public Map<String, Object> task_result;
     public String task_error;
     public String task_failed;
+    // Results in the form they were journaled in, posted as is, see TaskResultEncoder
+    transient String encoded_result;
 
     public Task() {
     }
@@ -1,22 +1,40 @@
 package org.slamon;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Abstract base class for all SLAMon tasks.
  */
 public abstract class TaskHandler {
 
-    private static final Map<String, TaskHandler> sHandlers = new HashMap<String, TaskHandler>();
+    // Handlers by name and version. Version maps are replaced, never modified, on registration.
+    private static final ConcurrentMap<String, Map<Integer, TaskHandler>> sHandlers =
+            new ConcurrentHashMap<String, Map<Integer, TaskHandler>>();
+    private static final Object sRegistrationLock = new Object();
+    private static volatile Capabilities sCapabilities = Capabilities.EMPTY;
 
     /**
      * Register a new handler. List of tasks is stored statically.
+     * Handlers with the same name but different versions are served side by side,
+     * while registering a handler with existing name and version replaces the old handler.
      *
      * @param handler the new handler to register
      */
     static void registerHandler(TaskHandler handler) {
-        sHandlers.put(handler.getName(), handler);
+        synchronized (sRegistrationLock) {
+            Map<Integer, TaskHandler> versions = new HashMap<Integer, TaskHandler>();
+            Map<Integer, TaskHandler> previous = sHandlers.get(handler.getName());
+            if (previous != null) {
+                versions.putAll(previous);
+            }
+            versions.put(handler.getVersion(), handler);
+            sHandlers.put(handler.getName(), Collections.unmodifiableMap(versions));
+            sCapabilities = new Capabilities(sHandlers);
+        }
     }
 
     /**
@@ -27,24 +45,22 @@ public abstract class TaskHandler {
      * @return Matching handler or null if none found
      */
     static TaskHandler getHandler(String name, int version) {
-        TaskHandler ret = sHandlers.get(name);
-        if (ret != null && ret.getVersion() == version) {
-            return ret;
+        Map<Integer, TaskHandler> versions = sHandlers.get(name);
+        if (versions != null) {
+            return versions.get(version);
         }
         return null;
     }
 
     /**
-     * Get registered handlers and their versions
+     * Get registered handlers and their versions. The returned snapshot is immutable
+     * and replaced whenever handler registrations change. If several versions of
+     * a handler are registered, the highest version is given.
      *
      * @return map with registered handler names as keys and versions as values
      */
-    static Map<String, Integer> capabilities() {
-        Map<String, Integer> ret = new HashMap<String, Integer>();
-        for (Map.Entry<String, TaskHandler> handler : sHandlers.entrySet()) {
-            ret.put(handler.getKey(), handler.getValue().getVersion());
-        }
-        return ret;
+    static Capabilities capabilities() {
+        return sCapabilities;
     }
 
     /**
@@ -70,6 +86,28 @@ public abstract class TaskHandler {
      */
     public abstract int getVersion();
 
+    /**
+     * Get default execution timeout for tasks of this handler. Tasks may override
+     * the default with a "task_timeout" entry in task data, given in seconds.
+     *
+     * @return timeout in milliseconds, or 0 for no timeout
+     */
+    public long getTimeout() {
+        return 0;
+    }
+
+    /**
+     * Get maximum number of tasks of this handler the agent runs concurrently.
+     * Limiting concurrency of slow task types keeps agent capacity available
+     * for other task types. Tasks exceeding the limit wait for a running task
+     * of the same type to finish.
+     *
+     * @return maximum number of concurrent tasks, or 0 to only use the agent limit
+     */
+    public int getMaxConcurrentTasks() {
+        return 0;
+    }
+
     // Finding all TaskHandlers using Java Reflection. Currently commented out in order not to crash Android library,
     // where this approach does not work
     /*
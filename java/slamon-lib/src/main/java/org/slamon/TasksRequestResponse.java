@@ -1,15 +1,26 @@
 package org.slamon;
 
 import com.google.api.client.util.Key;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.Collection;
 import java.util.List;
 
 public class TasksRequestResponse {
+    private static final Gson sGson = new Gson();
+
     @Key
     public List<Task> tasks;
     @Key
     public String return_time;
+    @Key
+    public Integer protocol;
+    @Key
+    public Boolean capabilities_required;
 
     TasksRequestResponse() {
     }
@@ -18,4 +29,40 @@ public class TasksRequestResponse {
         this.tasks = (List) tasks;
         this.return_time = return_time;
     }
-}
\ No newline at end of file
+
+    /**
+     * Read tasks request response incrementally. Each task is added to the collection
+     * as soon as it has been parsed, before the rest of the response has been read.
+     *
+     * @param reader        response content
+     * @param receivedTasks collection to which received tasks are added
+     * @return response fields other than tasks
+     * @throws IOException if reading fails or content is not valid JSON
+     */
+    static TasksRequestResponse read(Reader reader, Collection<Task> receivedTasks) throws IOException {
+        TasksRequestResponse response = new TasksRequestResponse();
+        JsonReader json = new JsonReader(reader);
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("return_time".equals(name) && json.peek() != JsonToken.NULL) {
+                response.return_time = json.nextString();
+            } else if ("protocol".equals(name) && json.peek() != JsonToken.NULL) {
+                response.protocol = json.nextInt();
+            } else if ("capabilities_required".equals(name) && json.peek() != JsonToken.NULL) {
+                response.capabilities_required = json.nextBoolean();
+            } else if ("tasks".equals(name) && json.peek() != JsonToken.NULL) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    Task task = sGson.fromJson(json, Task.class);
+                    receivedTasks.add(task);
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return response;
+    }
+}
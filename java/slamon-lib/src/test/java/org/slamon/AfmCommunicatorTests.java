@@ -7,7 +7,9 @@ import com.google.api.client.json.Json;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.gson.Gson;
 import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -20,9 +22,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.spy;
@@ -149,6 +154,216 @@ public class AfmCommunicatorTests {
         assertEquals(list.get(0).task_data, taskData);
     }
 
+    @Test
+    public void testTasksStreamedBeforeResponseEnd() throws Exception {
+        // Response cut off after the first task
+        String truncated = valid_response_json.substring(0, valid_response_json.lastIndexOf('}') - 2) + ", {";
+        mockCommunicator.httpRequests = new JsonMockHttpTransport(truncated).createRequestFactory();
+        List<Task> list = new ArrayList<Task>();
+        try {
+            mockCommunicator.requestTasks("", "", new HashMap<String, Integer>(), 2, list);
+            assertTrue("requestTasks should have thrown", false);
+        } catch (AfmCommunicator.FatalException e) {
+            assertEquals(1, list.size());
+            assertEquals("TASK_UUID", list.get(0).task_id);
+        }
+    }
+
+    @Test
+    public void testBatchResults() throws Exception {
+        final List<String> posted = new ArrayList<String>();
+        mockCommunicator.httpRequests = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+                return new MockLowLevelHttpRequest() {
+                    public LowLevelHttpResponse execute() throws IOException {
+                        posted.add(getContentAsString());
+                        return new MockLowLevelHttpResponse();
+                    }
+                };
+            }
+        }.createRequestFactory();
+
+        List<Task> tasks = new ArrayList<Task>();
+        tasks.add(new Task("TASK_1", "android-wait", 1, null));
+        tasks.add(new Task("TASK_2", "android-wait", 1, null));
+        tasks.get(0).task_result = new HashMap<String, Object>();
+        tasks.get(1).task_error = "error";
+        mockCommunicator.postResults(tasks);
+
+        assertEquals(1, posted.size());
+        assertEquals("{\"protocol\":2,\"results\":[{\"task_data\":{},\"task_id\":\"TASK_1\"}," +
+                "{\"task_error\":\"error\",\"task_id\":\"TASK_2\"}]}", posted.get(0));
+        assertTrue(mockCommunicator.isBatchResultsSupported());
+    }
+
+    @Test
+    public void testBatchResultsRejected() throws Exception {
+        mockCommunicator.httpRequests = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+                return new MockLowLevelHttpRequest() {
+                    public LowLevelHttpResponse execute() throws IOException {
+                        MockLowLevelHttpResponse result = new MockLowLevelHttpResponse();
+                        result.setStatusCode(400);
+                        return result;
+                    }
+                };
+            }
+        }.createRequestFactory();
+
+        List<Task> tasks = new ArrayList<Task>();
+        tasks.add(new Task("TASK_1", "android-wait", 1, null));
+        tasks.add(new Task("TASK_2", "android-wait", 1, null));
+        try {
+            mockCommunicator.postResults(tasks);
+            assertTrue("postResults should have thrown", false);
+        } catch (AfmCommunicator.FatalException e) {
+            assertFalse(mockCommunicator.isBatchResultsSupported());
+        }
+    }
+
+    @Test
+    public void testBatchResultsContentRejected() throws Exception {
+        mockCommunicator.httpRequests = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+                return new MockLowLevelHttpRequest() {
+                    public LowLevelHttpResponse execute() throws IOException {
+                        MockLowLevelHttpResponse result = new MockLowLevelHttpResponse();
+                        result.setStatusCode(400);
+                        result.setContentType(Json.MEDIA_TYPE);
+                        result.setContent("{\"protocol\":2,\"error\":\"unknown task TASK_2\"}");
+                        return result;
+                    }
+                };
+            }
+        }.createRequestFactory();
+
+        List<Task> tasks = new ArrayList<Task>();
+        tasks.add(new Task("TASK_1", "android-wait", 1, null));
+        tasks.add(new Task("TASK_2", "android-wait", 1, null));
+        try {
+            mockCommunicator.postResults(tasks);
+            assertTrue("postResults should have thrown", false);
+        } catch (AfmCommunicator.FatalException e) {
+            // AFM supports batches, but rejected the results in this one
+            assertTrue(mockCommunicator.isBatchResultsSupported());
+        }
+    }
+
+    @Test
+    public void testTaskRequestTemplate() throws Exception {
+        final List<String> posted = new ArrayList<String>();
+        mockCommunicator.httpRequests = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+                return new MockLowLevelHttpRequest() {
+                    public LowLevelHttpResponse execute() throws IOException {
+                        posted.add(getContentAsString());
+                        MockLowLevelHttpResponse result = new MockLowLevelHttpResponse();
+                        result.setContent(valid_response_json);
+                        return result;
+                    }
+                };
+            }
+        }.createRequestFactory();
+        mockCommunicator.setCapabilityHashEnabled(false);
+
+        Map<String, Integer> capabilities = new HashMap<String, Integer>();
+        capabilities.put("android-wait", 1);
+        mockCommunicator.requestTasks("id", "name", capabilities, 2, new ArrayList<Task>());
+        mockCommunicator.requestTasks("id", "name", capabilities, 3, new ArrayList<Task>());
+        assertEquals(1, mockCommunicator.tasksRequestTemplate("id").getBuildCount());
+
+        // Identities sharing the communicator keep templates of their own
+        mockCommunicator.requestTasks("id2", "name2", capabilities, 2, new ArrayList<Task>());
+        mockCommunicator.requestTasks("id", "name", capabilities, 3, new ArrayList<Task>());
+        assertEquals(1, mockCommunicator.tasksRequestTemplate("id").getBuildCount());
+        assertEquals(1, mockCommunicator.tasksRequestTemplate("id2").getBuildCount());
+        Map<?, ?> otherRequest = new Gson().fromJson(posted.get(2), Map.class);
+        assertEquals("id2", otherRequest.get("agent_id"));
+
+        Map<?, ?> request = new Gson().fromJson(posted.get(1), Map.class);
+        assertEquals(1.0, request.get("protocol"));
+        assertEquals("id", request.get("agent_id"));
+        assertEquals("name", request.get("agent_name"));
+        assertEquals(3.0, request.get("max_tasks"));
+        assertTrue(request.get("agent_time") instanceof String);
+        Map<?, ?> capability = (Map<?, ?>) ((Map<?, ?>) request.get("agent_capabilities")).get("android-wait");
+        assertEquals(1.0, capability.get("version"));
+
+        // Changed capabilities are encoded again
+        capabilities.put("android-wait", 2);
+        mockCommunicator.requestTasks("id", "name", capabilities, 3, new ArrayList<Task>());
+        assertEquals(2, mockCommunicator.tasksRequestTemplate("id").getBuildCount());
+        request = new Gson().fromJson(posted.get(4), Map.class);
+        capability = (Map<?, ?>) ((Map<?, ?>) request.get("agent_capabilities")).get("android-wait");
+        assertEquals(2.0, capability.get("version"));
+    }
+
+    @Test
+    public void testClockOffset() throws Exception {
+        // AFM clock is an hour ahead
+        final String date = DateTimeFormat.forPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'")
+                .withZoneUTC().withLocale(Locale.US).print(System.currentTimeMillis() + 60 * 60 * 1000);
+        mockCommunicator.httpRequests = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+                return new MockLowLevelHttpRequest() {
+                    public LowLevelHttpResponse execute() throws IOException {
+                        MockLowLevelHttpResponse result = new MockLowLevelHttpResponse();
+                        result.addHeader("Date", date);
+                        result.setContent(valid_response_json);
+                        return result;
+                    }
+                };
+            }
+        }.createRequestFactory();
+
+        assertEquals(0, mockCommunicator.getClockOffset());
+        mockCommunicator.requestTasks("id", "name", new HashMap<String, Integer>(), 1, new ArrayList<Task>());
+        assertTrue(Math.abs(mockCommunicator.getClockOffset() - 60 * 60 * 1000) <= 1000);
+    }
+
+    @Test
+    public void testAsyncRequests() throws Exception {
+        final List<String> posted = new ArrayList<String>();
+        mockCommunicator.setAsyncTransport(new AsyncHttpTransport() {
+            @Override
+            public void post(String url, String contentType, byte[] body, Callback callback) {
+                posted.add(url);
+                try {
+                    if (url.endsWith("tasks/")) {
+                        callback.completed(new Response(200, "OK", new HashMap<String, String>(),
+                                valid_response_json.getBytes("UTF-8")));
+                    } else {
+                        callback.completed(new Response(400, "Bad Request", new HashMap<String, String>(),
+                                new byte[0]));
+                    }
+                } catch (IOException e) {
+                    callback.failed(e);
+                }
+            }
+        });
+
+        List<Task> list = new ArrayList<Task>();
+        DateTime returnTime = mockCommunicator.requestTasksAsync("", "", new HashMap<String, Integer>(),
+                new HashMap<String, Integer>(), 1, list, null).get();
+        assertEquals("2015-02-17T22:19:41.620+02:00", returnTime.toString());
+        assertEquals(1, list.size());
+        assertEquals("http://slamon.address.to.be/tasks/", posted.get(0));
+
+        // Client errors fail with FatalException
+        try {
+            mockCommunicator.postResultsAsync(list, null).get();
+            assertTrue("postResultsAsync should have failed", false);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AfmCommunicator.FatalException);
+            assertFalse(mockCommunicator.isBatchResultsSupported());
+        }
+    }
+
     class JsonMockHttpTransport extends MockHttpTransport {
         String content;
 
@@ -0,0 +1,207 @@
+package org.slamon;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the task request protocols against a stand-in AFM. The stand-in AFM runs an HTTP
+ * server of the JDK, which can not be loaded by the class loader of PowerMock, so these
+ * tests are kept apart from {@link AfmCommunicatorTests}.
+ */
+public class AfmProtocolTests {
+
+    @Test
+    public void testLongPoll() throws Exception {
+        final StandInAfm afm = new StandInAfm();
+        try {
+            AfmCommunicator communicator = new AfmCommunicator(afm.getUrl());
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                    }
+                    afm.addTask(new Task("TASK_1", "android-wait", 1, new HashMap<String, Object>()));
+                }
+            }.start();
+
+            // The request is held until the task is available
+            List<Task> list = new ArrayList<Task>();
+            long startTime = System.currentTimeMillis();
+            communicator.requestTasksLongPoll("id", "name", new HashMap<String, Integer>(),
+                    new HashMap<String, Integer>(), 1, 10000, list);
+            long duration = System.currentTimeMillis() - startTime;
+
+            assertEquals(1, list.size());
+            assertEquals("TASK_1", list.get(0).task_id);
+            assertTrue(duration >= 150 && duration < 5000);
+            assertTrue(communicator.isLongPollSupported());
+            assertEquals((double) AfmCommunicator.CAPABILITY_HASH_PROTOCOL, afm.getRequests().get(0).get("protocol"));
+            assertEquals(10.0, afm.getRequests().get(0).get("wait_timeout"));
+        } finally {
+            afm.stop();
+        }
+    }
+
+    @Test
+    public void testLongPollFallback() throws Exception {
+        StandInAfm afm = new StandInAfm();
+        try {
+            afm.setMaxProtocol(1);
+            afm.addTask(new Task("TASK_1", "android-wait", 1, new HashMap<String, Object>()));
+            AfmCommunicator communicator = new AfmCommunicator(afm.getUrl());
+
+            // Rejected requests are retried with older protocols down to the classic protocol
+            List<Task> list = new ArrayList<Task>();
+            communicator.requestTasksLongPoll("id", "name", new HashMap<String, Integer>(),
+                    new HashMap<String, Integer>(), 1, 10000, list);
+            assertEquals(1, list.size());
+            assertFalse(communicator.isLongPollSupported());
+            assertEquals(3, afm.getRequests().size());
+            assertEquals(3.0, afm.getRequests().get(1).get("protocol"));
+            assertEquals(1.0, afm.getRequests().get(2).get("protocol"));
+            assertFalse(afm.getRequests().get(2).containsKey("wait_timeout"));
+            assertFalse(afm.getRequests().get(2).containsKey("capabilities_hash"));
+        } finally {
+            afm.stop();
+        }
+    }
+
+    @Test
+    public void testCapabilityHash() throws Exception {
+        StandInAfm afm = new StandInAfm();
+        try {
+            AfmCommunicator communicator = new AfmCommunicator(afm.getUrl());
+            Map<String, Integer> capabilities = new HashMap<String, Integer>();
+            capabilities.put("android-wait", 1);
+            Map<String, Integer> capabilityMaxTasks = new HashMap<String, Integer>();
+            capabilityMaxTasks.put("android-wait", 1);
+
+            // Capabilities are sent only until the AFM has accepted them
+            communicator.requestTasks("id", "name", capabilities, capabilityMaxTasks, 2, new ArrayList<Task>());
+            communicator.requestTasks("id", "name", capabilities, capabilityMaxTasks, 2, new ArrayList<Task>());
+            List<Map<?, ?>> requests = afm.getRequests();
+            String hash = Capabilities.fingerprint(capabilities);
+            assertEquals(4.0, requests.get(0).get("protocol"));
+            assertEquals(hash, requests.get(0).get("capabilities_hash"));
+            assertTrue(requests.get(0).containsKey("agent_capabilities"));
+            assertEquals(1.0, ((Map<?, ?>) requests.get(0).get("capability_max_tasks")).get("android-wait"));
+            assertEquals(hash, requests.get(1).get("capabilities_hash"));
+            assertFalse(requests.get(1).containsKey("agent_capabilities"));
+            assertEquals(1.0, ((Map<?, ?>) requests.get(1).get("capability_max_tasks")).get("android-wait"));
+
+            // Changed capabilities are sent again
+            capabilities.put("android-wait", 2);
+            communicator.requestTasks("id", "name", capabilities, capabilityMaxTasks, 2, new ArrayList<Task>());
+            requests = afm.getRequests();
+            assertEquals(3, requests.size());
+            assertTrue(requests.get(2).containsKey("agent_capabilities"));
+            assertFalse(hash.equals(requests.get(2).get("capabilities_hash")));
+
+            // Unknown fingerprint is answered by sending capabilities right away
+            afm.forgetCapabilities();
+            afm.addTask(new Task("TASK_1", "android-wait", 2, new HashMap<String, Object>()));
+            List<Task> list = new ArrayList<Task>();
+            communicator.requestTasks("id", "name", capabilities, capabilityMaxTasks, 2, list);
+            requests = afm.getRequests();
+            assertEquals(5, requests.size());
+            assertFalse(requests.get(3).containsKey("agent_capabilities"));
+            assertTrue(requests.get(4).containsKey("agent_capabilities"));
+            assertEquals(1, list.size());
+        } finally {
+            afm.stop();
+        }
+    }
+
+    @Test
+    public void testCapabilityHashFallback() throws Exception {
+        StandInAfm afm = new StandInAfm();
+        try {
+            afm.setMaxProtocol(AfmCommunicator.LONG_POLL_PROTOCOL);
+            AfmCommunicator communicator = new AfmCommunicator(afm.getUrl());
+            Map<String, Integer> capabilities = new HashMap<String, Integer>();
+            capabilities.put("android-wait", 1);
+
+            // AFMs without fingerprint support keep receiving capabilities, long polling still works
+            communicator.requestTasksLongPoll("id", "name", capabilities, new HashMap<String, Integer>(), 0, 1000,
+                    new ArrayList<Task>());
+            communicator.requestTasksLongPoll("id", "name", capabilities, new HashMap<String, Integer>(), 0, 1000,
+                    new ArrayList<Task>());
+            List<Map<?, ?>> requests = afm.getRequests();
+            assertEquals(3, requests.size());
+            assertEquals(3.0, requests.get(1).get("protocol"));
+            assertEquals(3.0, requests.get(2).get("protocol"));
+            assertTrue(requests.get(2).containsKey("agent_capabilities"));
+            assertFalse(requests.get(2).containsKey("capabilities_hash"));
+            assertTrue(communicator.isLongPollSupported());
+        } finally {
+            afm.stop();
+        }
+    }
+
+    @Test
+    public void testCapabilityHashRetried() throws Exception {
+        StandInAfm afm = new StandInAfm();
+        try {
+            afm.setMaxProtocol(AfmCommunicator.LONG_POLL_PROTOCOL);
+            AfmCommunicator communicator = new AfmCommunicator(afm.getUrl());
+            communicator.setProtocolRetryInterval(200);
+            Map<String, Integer> capabilities = new HashMap<String, Integer>();
+            capabilities.put("android-wait", 1);
+
+            communicator.requestTasks("id", "name", capabilities, new HashMap<String, Integer>(), 1,
+                    new ArrayList<Task>());
+            communicator.requestTasks("id", "name", capabilities, new HashMap<String, Integer>(), 1,
+                    new ArrayList<Task>());
+            assertEquals(3, afm.getRequests().size());
+            assertEquals(1.0, afm.getRequests().get(2).get("protocol"));
+
+            // A bare rejection may have had other reasons, fingerprints are tried again later
+            afm.setMaxProtocol(AfmCommunicator.CAPABILITY_HASH_PROTOCOL);
+            Thread.sleep(300);
+            communicator.requestTasks("id", "name", capabilities, new HashMap<String, Integer>(), 1,
+                    new ArrayList<Task>());
+            List<Map<?, ?>> requests = afm.getRequests();
+            assertEquals(4, requests.size());
+            assertEquals(4.0, requests.get(3).get("protocol"));
+        } finally {
+            afm.stop();
+        }
+    }
+
+    @Test
+    public void testRejectionEchoingProtocol() throws Exception {
+        StandInAfm afm = new StandInAfm();
+        try {
+            AfmCommunicator communicator = new AfmCommunicator(afm.getUrl());
+            Map<String, Integer> capabilities = new HashMap<String, Integer>();
+            capabilities.put("android-wait", 1);
+
+            // The AFM understood the protocol, so the request is not retried with older protocols
+            afm.rejectNextRequest("{\"protocol\": 4, \"error\": \"invalid request\"}");
+            try {
+                communicator.requestTasks("id", "name", capabilities, new HashMap<String, Integer>(), 1,
+                        new ArrayList<Task>());
+                assertTrue("request should have failed", false);
+            } catch (AfmCommunicator.FatalException e) {
+                // expected
+            }
+            communicator.requestTasks("id", "name", capabilities, new HashMap<String, Integer>(), 1,
+                    new ArrayList<Task>());
+            List<Map<?, ?>> requests = afm.getRequests();
+            assertEquals(2, requests.size());
+            assertEquals(4.0, requests.get(1).get("protocol"));
+        } finally {
+            afm.stop();
+        }
+    }
+}
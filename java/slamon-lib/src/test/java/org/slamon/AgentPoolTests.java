@@ -0,0 +1,211 @@
+package org.slamon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AgentPoolTests {
+
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    volatile CountDownLatch release = new CountDownLatch(0);
+    StandInAfm afm;
+
+    @Before
+    public void setUp() throws Exception {
+        Agent.registerHandler(new TaskHandler() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } finally {
+                    running.decrementAndGet();
+                }
+                return inputParams;
+            }
+
+            @Override
+            public String getName() {
+                return "pool-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return 1;
+            }
+        });
+        afm = new StandInAfm();
+        afm.setReturnInterval(100);
+    }
+
+    @After
+    public void tearDown() {
+        afm.stop();
+    }
+
+    private AgentPool newPool(int agents) {
+        AgentPool pool = new AgentPool(afm.getUrl());
+        pool.setMinimumPollInterval(50);
+        pool.setMaxPollJitter(0);
+        for (int i = 0; i < agents; ++i) {
+            pool.addAgent("UUID-" + i, "agent " + i);
+        }
+        return pool;
+    }
+
+    private void awaitRunning(int count) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 5000;
+        while (running.get() < count && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void addTasks(int count) {
+        for (int i = 0; i < count; ++i) {
+            afm.addTask(new Task("TASK_" + i, "pool-task", 1, new HashMap<String, Object>()));
+        }
+    }
+
+    @Test
+    public void testTasksRunForAllIdentities() throws Exception {
+        AgentPool pool = newPool(3);
+        pool.start(2);
+        try {
+            addTasks(6);
+            assertEquals(6, afm.awaitResults(6, 5000).size());
+            Thread.sleep(300);
+
+            Set<Object> agentIds = new HashSet<Object>();
+            for (Map<?, ?> request : afm.getRequests()) {
+                agentIds.add(request.get("agent_id"));
+                assertEquals(1.0, request.get("protocol"));
+            }
+            assertEquals(3, agentIds.size());
+            assertEquals(6, pool.getMetrics().counter("agent.tasks_completed").sum());
+        } finally {
+            pool.shutdown(5000);
+        }
+    }
+
+    @Test
+    public void testCapacityDividedAmongIdentities() throws Exception {
+        release = new CountDownLatch(1);
+        AgentPool pool = newPool(2);
+        pool.start(4);
+        try {
+            addTasks(10);
+            awaitRunning(4);
+            // Neither identity takes more than its share, and together they fill the executors
+            for (Map<?, ?> request : afm.getRequests()) {
+                assertTrue(((Number) request.get("max_tasks")).intValue() <= 2);
+            }
+            assertEquals(4, running.get());
+
+            release.countDown();
+            assertEquals(10, afm.awaitResults(10, 5000).size());
+            assertEquals(4, maxRunning.get());
+        } finally {
+            pool.shutdown(5000);
+        }
+    }
+
+    @Test
+    public void testIdentitiesShareExecutors() throws Exception {
+        release = new CountDownLatch(1);
+        AgentPool pool = newPool(5);
+        pool.start(2);
+        try {
+            addTasks(6);
+            awaitRunning(2);
+            Thread.sleep(300);
+            // Every identity gets one executor, but the pool runs no more tasks than it has executors
+            assertEquals(2, running.get());
+
+            release.countDown();
+            assertEquals(6, afm.awaitResults(6, 5000).size());
+            assertEquals(2, maxRunning.get());
+        } finally {
+            pool.shutdown(5000);
+        }
+    }
+
+    @Test
+    public void testSharesExceedingExecutors() throws Exception {
+        release = new CountDownLatch(1);
+        AgentPool pool = newPool(3);
+        pool.start(4);
+        try {
+            addTasks(10);
+            awaitRunning(4);
+            Thread.sleep(300);
+            // Shares of two executors add up to six, the identities polling first take the four executors
+            for (Map<?, ?> request : afm.getRequests()) {
+                assertTrue(((Number) request.get("max_tasks")).intValue() <= 2);
+            }
+            assertEquals(4, running.get());
+
+            release.countDown();
+            assertEquals(10, afm.awaitResults(10, 5000).size());
+            assertEquals(4, maxRunning.get());
+        } finally {
+            pool.shutdown(5000);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoExecutors() {
+        newPool(1).start(0);
+    }
+
+    @Test
+    public void testThreadCountIndependentOfIdentities() throws Exception {
+        int threadsBefore = agentThreadCount();
+        AgentPool pool = newPool(200);
+        pool.start(2);
+        try {
+            long endTime = System.currentTimeMillis() + 5000;
+            while (afm.getRequests().size() < 200 && System.currentTimeMillis() < endTime) {
+                Thread.sleep(10);
+            }
+            assertTrue(afm.getRequests().size() >= 200);
+            // Scheduler, result sender and possibly the shared I/O thread
+            assertTrue(agentThreadCount() - threadsBefore <= 3);
+        } finally {
+            pool.shutdown(5000);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHttpsRejected() {
+        // Polls of pooled identities can not reach an https AFM
+        new AgentPool("https://afm.example.com/");
+    }
+
+    /**
+     * @return number of agent threads, excluding executor threads and the threads of the stand-in AFM
+     */
+    private static int agentThreadCount() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("slamon-") || thread.getName().startsWith("Thread-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -6,11 +6,15 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.TestCase.assertNotNull;
 import static org.junit.Assert.*;
@@ -27,7 +31,7 @@ public class AgentTests {
 
         AfmCommunicator afm = mock(AfmCommunicator.class);
 
-        when(afm.requestTasks(anyString(), anyString(), anyMap(), anyInt(), anyCollection()))
+        when(afm.requestTasks(anyString(), anyString(), anyMap(), anyMap(), anyInt(), anyCollection()))
                 .thenThrow(new AfmCommunicator.FatalException("test"));
 
         Agent agent = new Agent("UUID", "test agent", afm);
@@ -45,12 +49,12 @@ public class AgentTests {
 
         AfmCommunicator afm = mock(AfmCommunicator.class);
 
-        when(afm.requestTasks(anyString(), anyString(), anyMap(), anyInt(), anyCollection()))
+        when(afm.requestTasks(anyString(), anyString(), anyMap(), anyMap(), anyInt(), anyCollection()))
                 .thenThrow(new AfmCommunicator.TemporaryException("test"));
 
         Agent agent = new Agent("UUID", "test agent", afm);
 
-        final ArrayList<Agent.ConnectionState> stateUpdates = new ArrayList<Agent.ConnectionState>();
+        final List<Agent.ConnectionState> stateUpdates = new CopyOnWriteArrayList<Agent.ConnectionState>();
 
         agent.addEventListener(new SimpleAgentEventListener() {
             @Override
@@ -73,6 +77,47 @@ public class AgentTests {
         }
     }
 
+    @Test
+    public void testBackoffOnTemporaryError() throws Exception {
+
+        final CountDownLatch polls = new CountDownLatch(4);
+        final AtomicInteger failures = new AtomicInteger(3);
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                polls.countDown();
+                if (failures.getAndDecrement() > 0) {
+                    throw new TemporaryException("test");
+                }
+                return DateTime.now().plusSeconds(60);
+            }
+        };
+
+        final List<CircuitBreaker.State> states = new CopyOnWriteArrayList<CircuitBreaker.State>();
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.addEventListener(new SimpleAgentEventListener() {
+            @Override
+            public void circuitStateChanged(String circuit, CircuitBreaker.State state) {
+                assertEquals("afm", circuit);
+                states.add(state);
+            }
+        });
+        agent.getCircuitBreaker().setDelays(10, 100);
+        agent.start(1);
+
+        // Agent reconnects soon after a short outage, probing once the circuit has opened
+        assertTrue("Agent should poll again after backing off", polls.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Agent.ConnectionState.CONNECTED, agent.getConnectionState());
+        assertEquals(3, states.size());
+        assertEquals(CircuitBreaker.State.OPEN, states.get(0));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, states.get(1));
+        assertEquals(CircuitBreaker.State.CLOSED, states.get(2));
+
+        agent.shutdown(1000);
+    }
+
     @Test
     public void testTaskExecution() throws InterruptedException, ExecutionException, TimeoutException {
 
@@ -98,7 +143,7 @@ public class AgentTests {
 
         AfmCommunicator afm = spy(new AfmCommunicator("url") {
             @Override
-            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
                 DateTime d = DateTime.now().plusSeconds(1);
 
                 Task task = new Task("id", "test-task", 1, new HashMap<String, Object>());
@@ -121,6 +166,541 @@ public class AgentTests {
         assertNotNull(postTask);
         assertEquals("output", postTask.task_result.get("output"));
 
+        MetricsRegistry.Snapshot metrics = agent.getMetrics().snapshot();
+        assertTrue(metrics.getCounters().get("agent.tasks_received") >= 1);
+        assertTrue(metrics.getCounters().get("agent.tasks_completed") >= 1);
+        assertTrue(metrics.getHistograms().get("task.execution_ms.test-task").getCount() >= 1);
+        assertTrue(metrics.getHistograms().get("agent.claim_to_start_ms").getCount() >= 1);
+        assertTrue(metrics.getGauges().containsKey("results.queue_depth"));
+
+        agent.shutdown(1000);
+    }
+
+    @Test
+    public void testInvalidTaskReportedAsError() throws InterruptedException, TimeoutException {
+
+        final List<Task> posted = new CopyOnWriteArrayList<Task>();
+        final CountDownLatch results = new CountDownLatch(2);
+        final AtomicInteger polls = new AtomicInteger();
+
+        Agent.registerHandler(new TaskHandler() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+                return inputParams;
+            }
+
+            @Override
+            public String getName() {
+                return "test-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return 1;
+            }
+        });
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                if (polls.incrementAndGet() == 1) {
+                    Task invalid = new Task("invalid", "test-task", 1, new HashMap<String, Object>());
+                    invalid.task_version = null;
+                    receivedTasks.add(invalid);
+                    receivedTasks.add(new Task("valid", "test-task", 1, new HashMap<String, Object>()));
+                }
+                return DateTime.now().plusSeconds(1);
+            }
+
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+                posted.add(task);
+                results.countDown();
+            }
+        };
+
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.start(2);
+
+        // Invalid task is reported as failed, and the rest of the response is still dispatched
+        assertTrue(results.await(5, TimeUnit.SECONDS));
+        for (Task task : posted) {
+            if (task.task_id.equals("invalid")) {
+                assertNotNull(task.task_error);
+            } else {
+                assertNull(task.task_error);
+            }
+        }
+
+        agent.shutdown(1000);
+    }
+
+    @Test
+    public void testEarlyPollWhenExecutorsFreeUp() throws InterruptedException, TimeoutException {
+
+        final CountDownLatch polls = new CountDownLatch(2);
+
+        Agent.registerHandler(new TaskHandler() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+                return inputParams;
+            }
+
+            @Override
+            public String getName() {
+                return "test-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return 1;
+            }
+        });
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                polls.countDown();
+                for (int i = 0; i < maxTasks; ++i) {
+                    receivedTasks.add(new Task("id", "test-task", 1, new HashMap<String, Object>()));
+                }
+                // Far enough in the future to fail the test unless agent polls early
+                return DateTime.now().plusSeconds(60);
+            }
+
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+            }
+        };
+
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.setMinimumPollInterval(100);
+        agent.start(1);
+
+        assertTrue("Agent should poll again when executor becomes available", polls.await(5, TimeUnit.SECONDS));
+
         agent.shutdown(1000);
     }
+
+    @Test
+    public void testSlowEventListener() throws Exception {
+
+        final CompletableFuture<Task> taskFuture = new CompletableFuture<Task>();
+        final CompletableFuture<String> completedEvent = new CompletableFuture<String>();
+
+        Agent.registerHandler(new TaskHandler() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+                Thread.sleep(50);
+                return inputParams;
+            }
+
+            @Override
+            public String getName() {
+                return "event-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return 1;
+            }
+        });
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            final AtomicInteger polls = new AtomicInteger();
+
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                if (polls.getAndIncrement() == 0) {
+                    receivedTasks.add(new Task("TASK_1", "event-task", 1, new HashMap<String, Object>()));
+                }
+                return DateTime.now().plusSeconds(60);
+            }
+
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+                taskFuture.complete(task);
+            }
+        };
+
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.addEventListener(new SimpleAgentEventListener() {
+            @Override
+            public void taskStarted(String taskId, String taskType) {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                }
+            }
+
+            @Override
+            public void taskCompleted(String taskId, String taskType, long durationMs) {
+                completedEvent.complete(taskId + " " + taskType + " " + (durationMs >= 50));
+            }
+        });
+        agent.start(1);
+
+        // Task runs and its results are posted while the listener is still busy with the start event
+        assertEquals("TASK_1", taskFuture.get(1000, TimeUnit.MILLISECONDS).task_id);
+        assertFalse(completedEvent.isDone());
+        assertEquals("TASK_1 event-task true", completedEvent.get(5000, TimeUnit.MILLISECONDS));
+
+        agent.shutdown(1000);
+    }
+
+    @Test
+    public void testPollOnSkewedAfmClock() throws InterruptedException, TimeoutException {
+
+        final long offset = 60 * 60 * 1000;
+        final CountDownLatch polls = new CountDownLatch(3);
+        final AtomicInteger pollCount = new AtomicInteger();
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                pollCount.incrementAndGet();
+                polls.countDown();
+                // AFM clock is an hour ahead of the agent
+                return new DateTime(System.currentTimeMillis() + offset + 300);
+            }
+
+            @Override
+            public long getClockOffset() {
+                return offset;
+            }
+        };
+
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.start(1);
+
+        // Polls follow the return time given on the AFM clock, neither an hour late nor in a busy loop
+        long startTime = System.currentTimeMillis();
+        assertTrue("Agent should poll at the AFM return time", polls.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - startTime >= 500);
+        assertTrue(pollCount.get() <= 4);
+
+        agent.shutdown(1000);
+    }
+
+    @Test
+    public void testPrefetchRequestsBacklog() throws InterruptedException, ExecutionException, TimeoutException {
+
+        final CompletableFuture<Integer> maxTasksFuture = new CompletableFuture<Integer>();
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                maxTasksFuture.complete(maxTasks);
+                return DateTime.now().plusSeconds(60);
+            }
+        };
+
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.setPrefetchDepth(2);
+        agent.start(2);
+
+        // Before any tasks have been observed, one task per executor is prefetched
+        assertEquals(Integer.valueOf(4), maxTasksFuture.get(1000, TimeUnit.MILLISECONDS));
+
+        agent.shutdown(1000);
+    }
+
+    @Test
+    public void testThreadPerTaskCapacity() throws InterruptedException, ExecutionException, TimeoutException {
+
+        final CountDownLatch running = new CountDownLatch(50);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompletableFuture<Integer> secondPollFuture = new CompletableFuture<Integer>();
+
+        Agent.registerHandler(new TaskHandler() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+                running.countDown();
+                release.await();
+                return inputParams;
+            }
+
+            @Override
+            public String getName() {
+                return "blocking-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return 1;
+            }
+        });
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            boolean first = true;
+
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                if (first) {
+                    first = false;
+                    assertEquals(100, maxTasks);
+                    for (int i = 0; i < 50; ++i) {
+                        receivedTasks.add(new Task("id" + i, "blocking-task", 1, new HashMap<String, Object>()));
+                    }
+                    return DateTime.now();
+                }
+                secondPollFuture.complete(maxTasks);
+                return DateTime.now().plusSeconds(60);
+            }
+
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+            }
+        };
+
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.startWithThreadPerTask(100);
+
+        // All tasks run concurrently, and the remaining capacity is advertised
+        assertTrue(running.await(1000, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(50), secondPollFuture.get(1000, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        agent.shutdown(1000);
+    }
+
+    @Test
+    public void testAsyncTaskExecution() throws InterruptedException, ExecutionException, TimeoutException {
+
+        final CompletableFuture<Task> taskFuture = new CompletableFuture<Task>();
+
+        Agent.registerHandler(new AsyncTaskHandler() {
+            @Override
+            public void execute(final Map<String, Object> inputParams, final Callback callback) {
+                // Complete from another thread, after execute has returned
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        inputParams.put("output", "async");
+                        callback.completed(inputParams);
+                    }
+                }).start();
+            }
+
+            @Override
+            public String getName() {
+                return "async-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return 1;
+            }
+        });
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                if (maxTasks > 0) {
+                    receivedTasks.add(new Task("id", "async-task", 1, new HashMap<String, Object>()));
+                }
+                return DateTime.now().plusSeconds(60);
+            }
+
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+                taskFuture.complete(task);
+            }
+        };
+
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.start(1);
+
+        Task postTask = taskFuture.get(1000, TimeUnit.MILLISECONDS);
+        assertEquals("async", postTask.task_result.get("output"));
+
+        agent.shutdown(1000);
+    }
+
+    @Test
+    public void testTaskTimeout() throws InterruptedException, ExecutionException, TimeoutException {
+
+        final CompletableFuture<Task> timedOutFuture = new CompletableFuture<Task>();
+        final CompletableFuture<Task> nextFuture = new CompletableFuture<Task>();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Agent.registerHandler(new TaskHandler() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+                if (inputParams.containsKey("hang")) {
+                    // Ignore interrupts, like a handler stuck in uninterruptible I/O
+                    while (release.getCount() > 0) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                }
+                return inputParams;
+            }
+
+            @Override
+            public String getName() {
+                return "hanging-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return 1;
+            }
+
+            @Override
+            public long getTimeout() {
+                return 60 * 1000;
+            }
+        });
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            int polls = 0;
+
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                HashMap<String, Object> data = new HashMap<String, Object>();
+                if (polls++ == 0) {
+                    data.put("hang", true);
+                    data.put(Agent.TASK_TIMEOUT_KEY, 0.1);
+                    receivedTasks.add(new Task("hanging", "hanging-task", 1, data));
+                } else if (maxTasks > 0) {
+                    receivedTasks.add(new Task("next", "hanging-task", 1, data));
+                }
+                return DateTime.now().plusSeconds(60);
+            }
+
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+                if (task.task_id.equals("hanging")) {
+                    timedOutFuture.complete(task);
+                } else {
+                    nextFuture.complete(task);
+                }
+            }
+        };
+
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.setMinimumPollInterval(100);
+        agent.start(1);
+
+        Task timedOut = timedOutFuture.get(1000, TimeUnit.MILLISECONDS);
+        assertNotNull(timedOut.task_error);
+        assertTrue(timedOut.task_error.contains("timed out"));
+
+        // Capacity is returned and the next task runs although the first one is still stuck
+        Task next = nextFuture.get(1000, TimeUnit.MILLISECONDS);
+        assertNull(next.task_error);
+
+        release.countDown();
+        agent.shutdown(1000);
+    }
+
+    @Test
+    public void testBulkhead() throws InterruptedException, ExecutionException, TimeoutException {
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(2);
+        final CompletableFuture<Map<String, Integer>> secondPollFuture = new CompletableFuture<Map<String, Integer>>();
+
+        Agent.registerHandler(new TaskHandler() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+                maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                Thread.sleep(100);
+                running.decrementAndGet();
+                return inputParams;
+            }
+
+            @Override
+            public String getName() {
+                return "limited-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return 1;
+            }
+
+            @Override
+            public int getMaxConcurrentTasks() {
+                return 1;
+            }
+        });
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            boolean first = true;
+
+            @Override
+            public DateTime requestTasks(String agentId, String agentName, Map<String, Integer> agentCapabilities, Map<String, Integer> capabilityMaxTasks, int maxTasks, Collection<Task> receivedTasks) throws FatalException, TemporaryException {
+                if (first) {
+                    first = false;
+                    assertEquals(Integer.valueOf(1), capabilityMaxTasks.get("limited-task"));
+                    receivedTasks.add(new Task("id1", "limited-task", 1, new HashMap<String, Object>()));
+                    receivedTasks.add(new Task("id2", "limited-task", 1, new HashMap<String, Object>()));
+                    return DateTime.now();
+                }
+                secondPollFuture.complete(capabilityMaxTasks);
+                return DateTime.now().plusSeconds(60);
+            }
+
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+                completed.countDown();
+            }
+        };
+
+        Agent agent = new Agent("UUID", "test agent", afm);
+        agent.start(3);
+
+        // Limited task type is advertised as full while its tasks are running or waiting
+        assertEquals(Integer.valueOf(0), secondPollFuture.get(1000, TimeUnit.MILLISECONDS).get("limited-task"));
+
+        assertTrue(completed.await(1000, TimeUnit.MILLISECONDS));
+        assertEquals(1, maxRunning.get());
+
+        agent.shutdown(1000);
+    }
+
+    @Test
+    public void testLongPollDispatch() throws Exception {
+
+        Agent.registerHandler(new TaskHandler() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+                return inputParams;
+            }
+
+            @Override
+            public String getName() {
+                return "long-poll-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return 1;
+            }
+        });
+
+        StandInAfm afm = new StandInAfm();
+        Agent agent = new Agent("UUID", "test agent", afm.getUrl());
+        try {
+            agent.setLongPollTimeout(10000);
+            agent.start(1);
+            Thread.sleep(300);
+
+            // Held request returns the task right away, far before the classic return time
+            long startTime = System.currentTimeMillis();
+            afm.addTask(new Task("TASK_1", "long-poll-task", 1, new HashMap<String, Object>()));
+            assertEquals(1, afm.awaitResults(1, 5000).size());
+            assertTrue(System.currentTimeMillis() - startTime < 5000);
+            assertEquals((double) AfmCommunicator.CAPABILITY_HASH_PROTOCOL, afm.getRequests().get(0).get("protocol"));
+        } finally {
+            // Closing the server releases the held request
+            afm.stop();
+            agent.shutdown(5000);
+        }
+    }
 }
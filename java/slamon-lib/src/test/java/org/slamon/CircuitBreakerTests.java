@@ -0,0 +1,74 @@
+package org.slamon;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTests {
+
+    @Test
+    public void testBackoff() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test");
+        breaker.setDelays(100, 400);
+        breaker.setFailureThreshold(100);
+
+        // Full jitter keeps delays between zero and the exponentially growing bound
+        long[] bounds = {100, 200, 400, 400, 400};
+        for (long bound : bounds) {
+            long delay = breaker.recordFailure();
+            assertTrue(delay >= 0 && delay < bound);
+            assertTrue(breaker.getRetryDelay() <= delay);
+        }
+        assertEquals(5, breaker.getConsecutiveFailures());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.recordSuccess();
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertEquals(0, breaker.getRetryDelay());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testOpenAndProbe() throws Exception {
+        final List<CircuitBreaker.State> states = new ArrayList<CircuitBreaker.State>();
+        CircuitBreaker breaker = new CircuitBreaker("test");
+        breaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(CircuitBreaker breaker, CircuitBreaker.State state) {
+                states.add(state);
+            }
+        });
+        breaker.setDelays(10, 10);
+        breaker.setFailureThreshold(2);
+
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // Only a single probe is let through once the delay has passed
+        breaker.await();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        // Failed probe opens the circuit again, successful one closes it
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        breaker.await();
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+
+        assertEquals(5, states.size());
+        assertEquals(CircuitBreaker.State.OPEN, states.get(0));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, states.get(1));
+        assertEquals(CircuitBreaker.State.OPEN, states.get(2));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, states.get(3));
+        assertEquals(CircuitBreaker.State.CLOSED, states.get(4));
+    }
+}
@@ -0,0 +1,75 @@
+package org.slamon;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventDispatcherTests {
+
+    List<String> publishAndDeliver(Agent.EventOverflow overflow) {
+        final List<String> messages = new CopyOnWriteArrayList<String>();
+        List<AgentEventListener> listeners = new CopyOnWriteArrayList<AgentEventListener>();
+        listeners.add(new SimpleAgentEventListener() {
+            @Override
+            public void temporaryError(String message) {
+                messages.add(message);
+            }
+        });
+
+        // Fill the buffer before the dispatcher is started
+        EventDispatcher dispatcher = new EventDispatcher(listeners, 3, overflow);
+        for (int i = 0; i < 6; ++i) {
+            dispatcher.temporaryError("event " + i);
+        }
+        assertEquals(2, dispatcher.getDroppedCount());
+        dispatcher.start();
+        dispatcher.shutdown(1000);
+        return messages;
+    }
+
+    @Test
+    public void testDropNewest() {
+        List<String> messages = publishAndDeliver(Agent.EventOverflow.DROP_NEWEST);
+        assertEquals(4, messages.size());
+        assertEquals("event 0", messages.get(0));
+        assertEquals("event 3", messages.get(3));
+    }
+
+    @Test
+    public void testDropOldest() {
+        List<String> messages = publishAndDeliver(Agent.EventOverflow.DROP_OLDEST);
+        assertEquals(4, messages.size());
+        assertEquals("event 2", messages.get(0));
+        assertEquals("event 5", messages.get(3));
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        final List<String> messages = new CopyOnWriteArrayList<String>();
+        List<AgentEventListener> listeners = new CopyOnWriteArrayList<AgentEventListener>();
+        listeners.add(new SimpleAgentEventListener() {
+            @Override
+            public void taskCompleted(String taskId, String taskType, long durationMs) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                }
+                messages.add(taskId + ":" + taskType + ":" + durationMs);
+            }
+        });
+
+        // Publishers wait for slow listeners instead of dropping events
+        EventDispatcher dispatcher = new EventDispatcher(listeners, 2, Agent.EventOverflow.BLOCK);
+        dispatcher.start();
+        for (int i = 0; i < 10; ++i) {
+            dispatcher.taskCompleted(new Task("TASK_" + i, "test-task", 1, null), i);
+        }
+        dispatcher.shutdown(1000);
+        assertEquals(0, dispatcher.getDroppedCount());
+        assertEquals(10, messages.size());
+        assertEquals("TASK_9:test-task:9", messages.get(9));
+    }
+}
@@ -0,0 +1,84 @@
+package org.slamon;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsRegistryTests {
+
+    @Test
+    public void testCounterFromManyThreads() throws Exception {
+        final Counter counter = new MetricsRegistry().counter("test");
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; ++i) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; ++j) {
+                        counter.increment();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, counter.sum());
+        assertEquals(80000, counter.sumAndReset());
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i);
+        }
+        histogram.record(-1);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(101, snapshot.getCount());
+        assertEquals(5050, snapshot.getSum());
+        assertEquals(100, snapshot.getMax());
+        // Values 32-63 fall in the bucket of the median, values 64-100 in the bucket of the 90th percentile
+        assertEquals(63, snapshot.getPercentile(50));
+        assertEquals(100, snapshot.getPercentile(90));
+        assertEquals(0, snapshot.getPercentile(0.5));
+        assertEquals(1, snapshot.getBucketCounts()[0]);
+        assertEquals(2, snapshot.getBucketCounts()[2]);
+        assertEquals(Long.MAX_VALUE, Histogram.Snapshot.upperBound(Histogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void testSnapshotAndReset() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        assertSame(metrics.counter("counter"), metrics.counter("counter"));
+        metrics.counter("counter").add(3);
+        metrics.histogram("histogram").record(10);
+        metrics.gauge("gauge", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return 7;
+            }
+        });
+
+        MetricsRegistry.Snapshot snapshot = metrics.snapshotAndReset();
+        assertEquals(3L, (long) snapshot.getCounters().get("counter"));
+        assertEquals(1, snapshot.getHistograms().get("histogram").getCount());
+        assertEquals(7L, (long) snapshot.getGauges().get("gauge"));
+
+        // Gauges are sampled again, counters and histograms start from zero
+        snapshot = metrics.snapshot();
+        assertEquals(0L, (long) snapshot.getCounters().get("counter"));
+        assertEquals(0, snapshot.getHistograms().get("histogram").getCount());
+        assertEquals(7L, (long) snapshot.getGauges().get("gauge"));
+        assertTrue(snapshot.getHistograms().get("histogram").getMean() == 0);
+    }
+}
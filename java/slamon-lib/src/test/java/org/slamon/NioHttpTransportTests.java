@@ -0,0 +1,182 @@
+package org.slamon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioHttpTransportTests {
+
+    HttpServer server;
+    NioHttpTransport transport;
+    String url;
+    CountDownLatch release = new CountDownLatch(0);
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        // Echoes the request body
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                byte[] response = PooledHttpTransportTests.readAll(exchange.getRequestBody());
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/gzip")) {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                    gzip.write(response);
+                    gzip.close();
+                    response = compressed.toByteArray();
+                    exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                } else if (path.equals("/error")) {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                // Length 0 sends a chunked response
+                exchange.sendResponseHeaders(200, path.equals("/chunked") ? 0 : response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+        transport = new NioHttpTransport();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        transport.shutdown();
+        server.stop(0);
+    }
+
+    CompletableFuture<AsyncHttpTransport.Response> post(String path, String body) throws Exception {
+        final CompletableFuture<AsyncHttpTransport.Response> future = new CompletableFuture<AsyncHttpTransport.Response>();
+        transport.post(url + path, "text/plain", body.getBytes("UTF-8"), new AsyncHttpTransport.Callback() {
+            @Override
+            public void completed(AsyncHttpTransport.Response response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void failed(IOException error) {
+                future.completeExceptionally(error);
+            }
+        });
+        return future;
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        for (String path : new String[]{"/", "/chunked", "/gzip"}) {
+            AsyncHttpTransport.Response response = post(path, "body of " + path).get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatusCode());
+            assertEquals("body of " + path, new String(response.getContent(), response.getContentCharset()));
+        }
+        assertEquals(503, post("/error", "").get(5, TimeUnit.SECONDS).getStatusCode());
+    }
+
+    @Test
+    public void testManyRequestsInFlight() throws Exception {
+        release = new CountDownLatch(1);
+        List<CompletableFuture<AsyncHttpTransport.Response>> futures =
+                new ArrayList<CompletableFuture<AsyncHttpTransport.Response>>();
+        for (int i = 0; i < 50; ++i) {
+            futures.add(post("/", "request " + i));
+        }
+        Thread.sleep(100);
+        assertEquals(50, transport.getInFlightCount());
+
+        release.countDown();
+        for (int i = 0; i < 50; ++i) {
+            assertEquals("request " + i, new String(futures.get(i).get(5, TimeUnit.SECONDS).getContent(), "UTF-8"));
+        }
+        assertEquals(0, transport.getInFlightCount());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        release = new CountDownLatch(1);
+        transport.setTimeout(100);
+        try {
+            post("/", "").get(5, TimeUnit.SECONDS);
+            assertTrue("request should have timed out", false);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void testInterimResponseSkipped() throws Exception {
+        ServerSocket raw = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        url = "http://127.0.0.1:" + raw.getLocalPort();
+        Socket socket = null;
+        try {
+            CompletableFuture<AsyncHttpTransport.Response> future = post("/", "");
+            socket = raw.accept();
+            socket.getOutputStream().write(("HTTP/1.1 100 Continue\r\n\r\n" +
+                    "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok").getBytes("ISO-8859-1"));
+            AsyncHttpTransport.Response response = future.get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatusCode());
+            assertEquals("ok", new String(response.getContent(), "UTF-8"));
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+            raw.close();
+        }
+    }
+
+    @Test
+    public void testMaxResponseSize() throws Exception {
+        transport.setMaxResponseSize(10000);
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 20000) {
+            body.append("response ");
+        }
+        try {
+            post("/", body.toString()).get(5, TimeUnit.SECONDS);
+            assertTrue("response should have been rejected", false);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        // Compressed responses are limited by their decompressed size
+        try {
+            post("/gzip", body.toString()).get(5, TimeUnit.SECONDS);
+            assertTrue("response should have been rejected", false);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(200, post("/", "small").get(5, TimeUnit.SECONDS).getStatusCode());
+    }
+}
@@ -0,0 +1,317 @@
+package org.slamon;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledHttpTransportTests {
+
+    HttpServer server;
+    PooledHttpTransport transport;
+    HttpRequestFactory requests;
+    String url;
+    String responseBody;
+    final AtomicInteger handled = new AtomicInteger();
+    volatile String lastRequestUri;
+
+    @Before
+    public void setup() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            body.append("{\"task_id\": \"").append(i).append("\"}");
+        }
+        responseBody = body.toString();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Echoes request body, or responds with a fixed body
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handled.incrementAndGet();
+                lastRequestUri = exchange.getRequestURI().toString();
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    in = new GZIPInputStream(in);
+                }
+                byte[] request = readAll(in);
+                byte[] response = request.length > 0 ? request : responseBody.getBytes("UTF-8");
+
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/slow")) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (path.equals("/gzip")) {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                    gzip.write(response);
+                    gzip.close();
+                    response = compressed.toByteArray();
+                    exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                }
+                // Length 0 sends a chunked response
+                exchange.sendResponseHeaders(200, path.equals("/chunked") ? 0 : response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        transport = new PooledHttpTransport();
+        requests = transport.createRequestFactory();
+    }
+
+    @After
+    public void tearDown() {
+        transport.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testConnectionReuse() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            HttpResponse response = requests.buildGetRequest(new GenericUrl(url + "/")).execute();
+            assertEquals(responseBody, response.parseAsString());
+        }
+        assertEquals(1, transport.getNewConnectionCount());
+        assertEquals(2, transport.getReusedConnectionCount());
+        assertEquals(1, transport.getIdleConnectionCount());
+    }
+
+    @Test
+    public void testChunkedResponse() throws Exception {
+        for (int i = 0; i < 2; ++i) {
+            HttpResponse response = requests.buildGetRequest(new GenericUrl(url + "/chunked")).execute();
+            assertEquals(responseBody, response.parseAsString());
+        }
+        assertEquals(1, transport.getNewConnectionCount());
+    }
+
+    @Test
+    public void testGzipResponse() throws Exception {
+        HttpResponse response = requests.buildGetRequest(new GenericUrl(url + "/gzip")).execute();
+        assertEquals(responseBody, response.parseAsString());
+        assertTrue(transport.getBytesSaved() > 0);
+        assertEquals(1, transport.getIdleConnectionCount());
+    }
+
+    @Test
+    public void testGzipRequest() throws Exception {
+        transport.setCompressRequests(true);
+        HttpResponse response = requests.buildPostRequest(new GenericUrl(url + "/"),
+                ByteArrayContent.fromString("application/json", responseBody)).execute();
+        assertEquals(responseBody, response.parseAsString());
+        assertTrue(transport.getBytesSaved() > 0);
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        transport.setKeepAlive(0);
+        requests.buildGetRequest(new GenericUrl(url + "/")).execute().disconnect();
+        Thread.sleep(10);
+        transport.evictIdleConnections();
+        assertEquals(0, transport.getIdleConnectionCount());
+        assertEquals(1, transport.getEvictedConnectionCount());
+
+        requests.buildGetRequest(new GenericUrl(url + "/")).execute().disconnect();
+        assertEquals(2, transport.getNewConnectionCount());
+    }
+
+    @Test
+    public void testServerClosedConnection() throws Exception {
+        requests.buildGetRequest(new GenericUrl(url + "/")).execute().disconnect();
+
+        // Idle connection is closed by the server restart
+        int port = server.getAddress().getPort();
+        server.stop(0);
+        HttpServer restarted = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        restarted.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        restarted.start();
+        try {
+            HttpResponse response = requests.buildGetRequest(new GenericUrl(url + "/")).execute();
+            assertEquals(204, response.getStatusCode());
+            assertEquals(2, transport.getNewConnectionCount());
+        } finally {
+            restarted.stop(0);
+        }
+    }
+
+    @Test
+    public void testTimedOutRequestNotRetried() throws Exception {
+        requests.buildGetRequest(new GenericUrl(url + "/")).execute().disconnect();
+        handled.set(0);
+
+        try {
+            requests.buildPostRequest(new GenericUrl(url + "/slow"),
+                    ByteArrayContent.fromString("application/json", "{}")).setReadTimeout(200).execute();
+            fail("Expected timeout");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        Thread.sleep(1500);
+        // The server may have processed the request, so it is sent only once over the reused connection
+        assertEquals(1, handled.get());
+        assertEquals(1, transport.getNewConnectionCount());
+    }
+
+    @Test
+    public void testInterimResponseSkipped() throws Exception {
+        final ServerSocket raw = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        Thread thread = serveRaw(raw, new String[]{
+                "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"});
+        try {
+            HttpResponse response = requests.buildPostRequest(new GenericUrl("http://127.0.0.1:" + raw.getLocalPort() + "/"),
+                    ByteArrayContent.fromString("application/json", "{}")).execute();
+            assertEquals(200, response.getStatusCode());
+            assertEquals("ok", response.parseAsString());
+        } finally {
+            raw.close();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    public void testWrittenRequestNotRetried() throws Exception {
+        final ServerSocket raw = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        // Second request over the kept-alive connection is read, and the connection closed without a response
+        Thread thread = serveRaw(raw, new String[]{"HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", null});
+        try {
+            GenericUrl rawUrl = new GenericUrl("http://127.0.0.1:" + raw.getLocalPort() + "/");
+            assertEquals("ok", requests.buildGetRequest(rawUrl).execute().parseAsString());
+            try {
+                requests.buildPostRequest(rawUrl, ByteArrayContent.fromString("application/json", "{}")).execute();
+                fail("Expected failure");
+            } catch (IOException e) {
+                // expected
+            }
+            // The server may have processed the request, so it is not sent again over a new connection
+            assertEquals(1, transport.getNewConnectionCount());
+        } finally {
+            raw.close();
+            thread.join(1000);
+        }
+    }
+
+    /**
+     * Serve one connection, answering each request with the given raw response,
+     * or closing the connection without a response if it is null.
+     */
+    private static Thread serveRaw(final ServerSocket raw, final String[] responses) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = raw.accept();
+                    InputStream in = socket.getInputStream();
+                    for (String response : responses) {
+                        readRequest(in);
+                        if (response == null) {
+                            break;
+                        }
+                        socket.getOutputStream().write(response.getBytes("ISO-8859-1"));
+                        socket.getOutputStream().flush();
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // Server closed by the test
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void readRequest(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if (c == -1) {
+                throw new IOException("Connection closed");
+            }
+            head.append((char) c);
+        }
+        String lower = head.toString().toLowerCase();
+        int index = lower.indexOf("content-length:");
+        if (index >= 0) {
+            int length = Integer.parseInt(lower.substring(index + 15, lower.indexOf("\r\n", index)).trim());
+            for (int i = 0; i < length; ++i) {
+                in.read();
+            }
+        }
+    }
+
+    @Test
+    public void testHttpProxy() throws Exception {
+        ProxySelector defaultSelector = ProxySelector.getDefault();
+        // The test server stands in for the proxy
+        final Proxy proxy = new Proxy(Proxy.Type.HTTP, server.getAddress());
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                return Collections.singletonList(proxy);
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+            }
+        });
+        try {
+            HttpResponse response = requests.buildGetRequest(new GenericUrl("http://afm.example.com/tasks")).execute();
+            assertEquals(responseBody, response.parseAsString());
+            assertEquals("http://afm.example.com/tasks", lastRequestUri);
+        } finally {
+            ProxySelector.setDefault(defaultSelector);
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,97 @@
+package org.slamon;
+
+import com.google.api.client.json.gson.GsonFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultJournalTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Task finishedTask(String id) {
+        Task task = new Task(id, "test-task", 1, new HashMap<String, Object>());
+        task.task_result = new HashMap<String, Object>();
+        task.task_result.put("output", id);
+        return task;
+    }
+
+    @Test
+    public void testReplayAfterReopen() throws Exception {
+        File file = new File(folder.getRoot(), "results.journal");
+
+        ResultJournal journal = new ResultJournal(file);
+        journal.append(finishedTask("id1"));
+        journal.append(finishedTask("id2"));
+        Task failed = new Task("id3", "test-task", 1, null);
+        failed.task_error = "error";
+        journal.append(failed);
+        journal.acknowledge("id1");
+        journal.close();
+
+        journal = new ResultJournal(file);
+        assertEquals(Arrays.asList("id2", "id3"), journal.pendingTaskIds());
+        assertEquals("id2", journal.read("id2").task_result.get("output"));
+        assertEquals("error", journal.read("id3").task_error);
+        assertNull(journal.read("id1"));
+        journal.close();
+    }
+
+    @Test
+    public void testResultsPostedAsJournaled() throws Exception {
+        File file = new File(folder.getRoot(), "results.journal");
+
+        ResultJournal journal = new ResultJournal(file);
+        Task task = finishedTask("id1");
+        task.task_result.put("status", 200);
+        journal.append(task);
+        journal.close();
+
+        journal = new ResultJournal(file);
+        String posted = new String(TaskResultEncoder.encode(GsonFactory.getDefaultInstance(), journal.read("id1")), "UTF-8");
+        // Numbers are not turned into decimals by the round trip
+        assertTrue(posted, posted.contains("\"status\":200") && !posted.contains("200.0"));
+        assertTrue(posted, posted.startsWith("{\"protocol\":1,"));
+        journal.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File file = new File(folder.getRoot(), "results.journal");
+
+        ResultJournal journal = new ResultJournal(file);
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("payload", new String(new char[1000]).replace('\0', 'x'));
+        for (int i = 0; i < 500; ++i) {
+            Task task = finishedTask("id" + i);
+            task.task_result.putAll(data);
+            journal.append(task);
+            if (i != 250) {
+                journal.acknowledge("id" + i);
+            }
+        }
+        journal.compact();
+
+        assertTrue("Journal should have been compacted", file.length() < 2 * ResultJournal.INITIAL_SIZE);
+        assertEquals(Arrays.asList("id250"), journal.pendingTaskIds());
+        assertEquals("id250", journal.read("id250").task_result.get("output"));
+
+        // Journal remains writable after compaction
+        journal.append(finishedTask("next"));
+        journal.close();
+
+        journal = new ResultJournal(file);
+        assertEquals(Arrays.asList("id250", "next"), journal.pendingTaskIds());
+        journal.close();
+    }
+}
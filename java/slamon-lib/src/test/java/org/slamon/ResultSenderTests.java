@@ -0,0 +1,213 @@
+package org.slamon;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResultSenderTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRetryOnTemporaryError() throws Exception {
+
+        final CompletableFuture<Task> postedFuture = new CompletableFuture<Task>();
+        final AtomicInteger attempts = new AtomicInteger();
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+                if (attempts.incrementAndGet() < 3) {
+                    throw new TemporaryException("test");
+                }
+                postedFuture.complete(task);
+            }
+        };
+
+        ResultSender sender = new ResultSender(afm, 10);
+        sender.setRetryDelays(10, 100);
+        sender.start();
+
+        Task task = new Task("id", "test-task", 1, new HashMap<String, Object>());
+        sender.submit(task);
+
+        assertSame(task, postedFuture.get(1000, TimeUnit.MILLISECONDS));
+        sender.shutdown(1000);
+
+        assertEquals(1, sender.getSentCount());
+        assertEquals(2, sender.getRetryCount());
+        assertEquals(0, sender.getFailedCount());
+        assertEquals(0, sender.getQueueDepth());
+    }
+
+    @Test
+    public void testDropOnFatalError() throws Exception {
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+                throw new FatalException("test");
+            }
+        };
+
+        ResultSender sender = new ResultSender(afm, 10);
+        sender.start();
+        sender.submit(new Task("id", "test-task", 1, new HashMap<String, Object>()));
+
+        // Shutdown waits until the queue has been drained
+        sender.shutdown(1000);
+
+        assertEquals(0, sender.getSentCount());
+        assertEquals(1, sender.getFailedCount());
+    }
+
+    @Test
+    public void testOfferDoesNotBlockWhenQueueFull() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> posted = new CopyOnWriteArrayList<String>();
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new TemporaryException("interrupted");
+                }
+                posted.add(task.task_id);
+            }
+        };
+
+        ResultSender sender = new ResultSender(afm, 2);
+        assertEquals(2, sender.getRemainingCapacity());
+        sender.start();
+        int queued = 0;
+        for (int i = 0; i < 10; ++i) {
+            if (sender.offer(new Task("id" + i, "test-task", 1, new HashMap<String, Object>()))) {
+                queued++;
+            }
+        }
+        // Queue stays bounded, results beyond it are dropped instead of blocking
+        assertTrue(queued <= 3);
+        assertEquals(10 - queued, sender.getDroppedCount());
+
+        release.countDown();
+        sender.shutdown(5000);
+
+        assertEquals(queued, sender.getSentCount());
+        assertEquals(queued, posted.size());
+        assertEquals(0, sender.getQueueDepth());
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+
+        final CompletableFuture<List<Task>> postedFuture = new CompletableFuture<List<Task>>();
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public void postResults(List<Task> tasks) throws FatalException, TemporaryException {
+                postedFuture.complete(new ArrayList<Task>(tasks));
+            }
+        };
+
+        ResultSender sender = new ResultSender(afm, 10);
+        sender.setBatching(10, Long.MAX_VALUE, 500);
+        for (int i = 0; i < 3; ++i) {
+            sender.submit(new Task("id" + i, "test-task", 1, new HashMap<String, Object>()));
+        }
+        sender.start();
+
+        List<Task> posted = postedFuture.get(1000, TimeUnit.MILLISECONDS);
+        assertEquals(3, posted.size());
+        assertEquals("id0", posted.get(0).task_id);
+
+        sender.shutdown(1000);
+        assertEquals(3, sender.getSentCount());
+    }
+
+    @Test
+    public void testJournalReplay() throws Exception {
+
+        final CompletableFuture<Task> postedFuture = new CompletableFuture<Task>();
+        File file = new File(folder.getRoot(), "results.journal");
+
+        // Results left unsent by a previous run
+        ResultJournal journal = new ResultJournal(file);
+        Task task = new Task("id", "test-task", 1, null);
+        task.task_error = "error";
+        journal.append(task);
+        journal.close();
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public void postResults(Task task) throws FatalException, TemporaryException {
+                postedFuture.complete(task);
+            }
+        };
+
+        journal = new ResultJournal(file);
+        ResultSender sender = new ResultSender(afm, 10);
+        sender.setJournal(journal);
+        sender.start();
+
+        Task posted = postedFuture.get(1000, TimeUnit.MILLISECONDS);
+        assertEquals("id", posted.task_id);
+        assertEquals("error", posted.task_error);
+
+        sender.shutdown(1000);
+        assertTrue(new ResultJournal(file).pendingTaskIds().isEmpty());
+    }
+
+    @Test
+    public void testJournaledResultsReadBack() throws Exception {
+
+        final List<Task> posted = new CopyOnWriteArrayList<Task>();
+        File file = new File(folder.getRoot(), "results.journal");
+
+        AfmCommunicator afm = new AfmCommunicator("url") {
+            @Override
+            public void postResults(List<Task> tasks) throws FatalException, TemporaryException {
+                posted.addAll(tasks);
+            }
+        };
+
+        ResultSender sender = new ResultSender(afm, 10);
+        sender.setJournal(new ResultJournal(file));
+        sender.setBatching(10, Long.MAX_VALUE, 100);
+        sender.start();
+        for (int i = 0; i < 3; ++i) {
+            Task task = new Task("id" + i, "test-task", 1, null);
+            task.task_result = new HashMap<String, Object>();
+            task.task_result.put("output", "value" + i);
+            sender.submit(task);
+        }
+        sender.shutdown(1000);
+
+        assertEquals(3, posted.size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals("id" + i, posted.get(i).task_id);
+            assertEquals("test-task", posted.get(i).task_type);
+            assertEquals("value" + i, posted.get(i).task_result.get("output"));
+        }
+        ResultJournal journal = new ResultJournal(file);
+        assertTrue(journal.pendingTaskIds().isEmpty());
+        journal.close();
+    }
+}
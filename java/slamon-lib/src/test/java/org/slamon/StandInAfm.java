@@ -0,0 +1,200 @@
+package org.slamon;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal local stand-in for the AFM, for testing agents over HTTP. Serves task requests
+ * with the classic protocol and, unless limited, with long polling and capability fingerprints,
+ * and collects posted results.
+ */
+public class StandInAfm implements HttpHandler {
+
+    final private HttpServer mServer;
+    final private Gson mGson = new Gson();
+    final private LinkedList<Task> mTasks = new LinkedList<Task>();
+    final private List<Map<?, ?>> mRequests = new ArrayList<Map<?, ?>>();
+    final private List<Map<?, ?>> mResults = new ArrayList<Map<?, ?>>();
+    final private Map<String, String> mCapabilityHashes = new HashMap<String, String>();
+    private int mMaxProtocol = AfmCommunicator.CAPABILITY_HASH_PROTOCOL;
+    private long mReturnIntervalMs = 60 * 1000;
+    private String mRejection;
+
+    public StandInAfm() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/", this);
+        mServer.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param protocol newest protocol to accept, newer requests are rejected like older AFMs do
+     */
+    public synchronized void setMaxProtocol(int protocol) {
+        mMaxProtocol = protocol;
+    }
+
+    /**
+     * Reject the next task request, for example with an error echoing the protocol of the request.
+     *
+     * @param body content of the 400 response
+     */
+    public synchronized void rejectNextRequest(String body) {
+        mRejection = body;
+    }
+
+    /**
+     * Forget capabilities received from agents, like an AFM does when restarted.
+     */
+    public synchronized void forgetCapabilities() {
+        mCapabilityHashes.clear();
+    }
+
+    /**
+     * @param intervalMs time to the next poll given to agents in responses
+     */
+    public synchronized void setReturnInterval(long intervalMs) {
+        mReturnIntervalMs = intervalMs;
+    }
+
+    /**
+     * Queue task for agents, waking up held long poll requests.
+     */
+    public synchronized void addTask(Task task) {
+        mTasks.add(task);
+        notifyAll();
+    }
+
+    /**
+     * @return received task requests
+     */
+    public synchronized List<Map<?, ?>> getRequests() {
+        return new ArrayList<Map<?, ?>>(mRequests);
+    }
+
+    /**
+     * Wait for results to be posted.
+     *
+     * @return posted results
+     */
+    public synchronized List<Map<?, ?>> awaitResults(int count, long timeoutMs) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + timeoutMs;
+        while (mResults.size() < count && System.currentTimeMillis() < endTime) {
+            wait(endTime - System.currentTimeMillis());
+        }
+        return new ArrayList<Map<?, ?>>(mResults);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            notifyAll();
+        }
+        mServer.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Map<?, ?> request = mGson.fromJson(new InputStreamReader(exchange.getRequestBody(), "UTF-8"), Map.class);
+        String path = exchange.getRequestURI().getPath();
+        try {
+            if (path.equals("/tasks/")) {
+                handleTasksRequest(exchange, request);
+            } else if (path.equals("/tasks/response")) {
+                synchronized (this) {
+                    mResults.add(request);
+                    notifyAll();
+                }
+                respond(exchange, 200, "");
+            } else {
+                respond(exchange, 404, "");
+            }
+        } catch (InterruptedException e) {
+            respond(exchange, 500, "");
+        }
+    }
+
+    private void handleTasksRequest(HttpExchange exchange, Map<?, ?> request)
+            throws IOException, InterruptedException {
+        int protocol = ((Number) request.get("protocol")).intValue();
+        int maxTasks = ((Number) request.get("max_tasks")).intValue();
+        List<Map<String, Object>> tasks = new ArrayList<Map<String, Object>>();
+        boolean capabilitiesRequired = false;
+        long returnInterval;
+        synchronized (this) {
+            mRequests.add(request);
+            if (protocol > mMaxProtocol) {
+                respond(exchange, 400, "unsupported protocol");
+                return;
+            }
+            if (mRejection != null) {
+                respond(exchange, 400, mRejection);
+                mRejection = null;
+                return;
+            }
+            if (protocol >= AfmCommunicator.CAPABILITY_HASH_PROTOCOL) {
+                String agentId = (String) request.get("agent_id");
+                String hash = (String) request.get("capabilities_hash");
+                if (request.containsKey("agent_capabilities")) {
+                    mCapabilityHashes.put(agentId, hash);
+                } else if (!hash.equals(mCapabilityHashes.get(agentId))) {
+                    capabilitiesRequired = true;
+                    maxTasks = 0;
+                }
+            }
+            if (protocol >= AfmCommunicator.LONG_POLL_PROTOCOL && request.containsKey("wait_timeout")) {
+                long endTime = System.currentTimeMillis() + ((Number) request.get("wait_timeout")).longValue() * 1000;
+                while (mTasks.isEmpty() && maxTasks > 0 && System.currentTimeMillis() < endTime) {
+                    wait(endTime - System.currentTimeMillis());
+                }
+            }
+            while (!mTasks.isEmpty() && tasks.size() < maxTasks) {
+                Task task = mTasks.removeFirst();
+                Map<String, Object> entry = new HashMap<String, Object>();
+                entry.put("task_id", task.task_id);
+                entry.put("task_type", task.task_type);
+                entry.put("task_version", task.task_version.intValue());
+                entry.put("task_data", task.task_data);
+                tasks.add(entry);
+            }
+            returnInterval = mReturnIntervalMs;
+        }
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("tasks", tasks);
+        response.put("return_time", new DateTime(System.currentTimeMillis() + returnInterval).toString());
+        if (protocol >= AfmCommunicator.LONG_POLL_PROTOCOL) {
+            response.put("protocol", Math.min(protocol, AfmCommunicator.CAPABILITY_HASH_PROTOCOL));
+        }
+        if (capabilitiesRequired) {
+            response.put("capabilities_required", true);
+        }
+        respond(exchange, 200, mGson.toJson(response));
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] content = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, content.length > 0 ? content.length : -1);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content);
+        out.close();
+    }
+}
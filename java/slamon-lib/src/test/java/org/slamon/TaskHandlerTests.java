@@ -4,6 +4,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.slamon.handlers.WaitTaskHandler;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.Assert.*;
 
 /**
@@ -27,4 +31,53 @@ public class TaskHandlerTests {
         assertNotNull(handler);
         assertEquals(handler.getClass(), WaitTaskHandler.class);
     }
+
+    private static TaskHandler versionedHandler(final int version) {
+        return new TaskHandler() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> inputParams) throws Exception {
+                return inputParams;
+            }
+
+            @Override
+            public String getName() {
+                return "versioned-task";
+            }
+
+            @Override
+            public int getVersion() {
+                return version;
+            }
+        };
+    }
+
+    @Test
+    public void testMultipleVersions() {
+        TaskHandler v1 = versionedHandler(1);
+        TaskHandler v2 = versionedHandler(2);
+        Agent.registerHandler(v1);
+        Agent.registerHandler(v2);
+
+        assertSame(v1, TaskHandler.getHandler("versioned-task", 1));
+        assertSame(v2, TaskHandler.getHandler("versioned-task", 2));
+        assertNull(TaskHandler.getHandler("versioned-task", 3));
+
+        Capabilities capabilities = TaskHandler.capabilities();
+        assertEquals(Integer.valueOf(2), capabilities.get("versioned-task"));
+        assertEquals(2, capabilities.toJSON().get("versioned-task").get("version"));
+        assertEquals(Arrays.asList(1, 2), capabilities.toJSON().get("versioned-task").get("versions"));
+    }
+
+    @Test
+    public void testCapabilitySnapshot() {
+        Capabilities capabilities = TaskHandler.capabilities();
+
+        // Snapshot is reused until registrations change
+        assertSame(capabilities, TaskHandler.capabilities());
+        assertSame(capabilities.toJSON(), new TasksRequest(1, "id", "name", capabilities,
+                new HashMap<String, Integer>(), 1).agent_capabilities);
+
+        Agent.registerHandler(versionedHandler(3));
+        assertNotSame(capabilities, TaskHandler.capabilities());
+    }
 }